@@ -0,0 +1,25 @@
+#!/bin/bash
+# Builds dist/cafe.jar and a class data sharing archive (AppCDS) of the
+# classes loaded while the application starts, so later starts map them
+# instead of loading and verifying them again. Requires JDK 13 or newer and a
+# running database for the training run.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+ROOT=$DIR/..
+
+if [ -n "$JAVA_HOME" ]; then
+  export PATH=$JAVA_HOME/bin:$PATH
+fi
+
+rm -rf $ROOT/classes $ROOT/dist
+mkdir -p $ROOT/classes $ROOT/dist
+javac -d $ROOT/classes -cp $ROOT/lib/postgresql-42.4.0.jar $ROOT/src/*.java || exit 1
+
+# The driver is referenced from the manifest, relative to dist/
+printf 'Main-Class: src.Cafe\nClass-Path: ../lib/postgresql-42.4.0.jar\n' > $ROOT/dist/MANIFEST.MF
+jar --create --file $ROOT/dist/cafe.jar --manifest $ROOT/dist/MANIFEST.MF -C $ROOT/classes . || exit 1
+rm $ROOT/dist/MANIFEST.MF
+
+# Training run: start, wait for the background startup and exit from the main menu
+echo 9 | java -XX:ArchiveClassesAtExit=$ROOT/dist/cafe.jsa -jar $ROOT/dist/cafe.jar $USER"_DB" $PGPORT $USER > /dev/null
+
+echo "Packaged $ROOT/dist/cafe.jar with archive $ROOT/dist/cafe.jsa; start with scripts/run.sh"
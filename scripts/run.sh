@@ -0,0 +1,10 @@
+#!/bin/bash
+# Starts the packaged application (see package.sh) with its class data sharing archive
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+if [ -n "$JAVA_HOME" ]; then
+  export PATH=$JAVA_HOME/bin:$PATH
+fi
+
+#Use your database name, port number and login
+java -XX:SharedArchiveFile=$DIR/../dist/cafe.jsa -Xshare:auto -jar $DIR/../dist/cafe.jar $USER"_DB" $PGPORT $USER "$@"
@@ -0,0 +1,22 @@
+#! /bin/bash
+# Starts N local PostgreSQL servers on ports 1025, 1026, ... as extra shards
+# and prints the -Dcafe.shards value to run the application with.
+# The server of startPostgreDB.sh (port 1024) is shard 0.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+N=${1:-2}
+SHARDS=""
+
+for i in $(seq 1 $N); do
+  folder=/tmp/$USER/shard$i
+  port=$((1024 + i))
+  rm -rf $folder
+  mkdir -p $folder/data $folder/sockets
+  initdb -D $folder/data > /dev/null
+  pg_ctl -o "-c unix_socket_directories=$folder/sockets -p $port" -D $folder/data -l $folder/logfile start
+  sleep 1
+  createdb -h localhost -p $port $USER"_DB"
+  psql -h localhost -p $port $USER"_DB" < $DIR/../sql/create_tables.sql > /dev/null
+  SHARDS=$SHARDS${SHARDS:+,}localhost:$port/$USER"_DB"
+done
+
+echo "-Dcafe.shards=$SHARDS"
@@ -1,7 +1,16 @@
+-- Drops everything the application's migrations created too, so that they run
+-- again from version 0 (see src/SchemaMigrator.java).
+DROP TABLE IF EXISTS schema_version;
+DROP TABLE IF EXISTS order_journal_applied;
+DROP TABLE IF EXISTS menu_version;
+DROP TABLE IF EXISTS shard_layout;
 DROP TABLE IF EXISTS Users CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS Menu CASCADE;
 DROP TABLE IF EXISTS ItemStatus;
+DROP FUNCTION IF EXISTS bump_menu_version() CASCADE;
+DROP TYPE IF EXISTS user_type CASCADE;
+DROP TYPE IF EXISTS item_status CASCADE;
 
 CREATE TABLE Users(
 	login char(50) UNIQUE NOT NULL, 
@@ -19,20 +28,33 @@ CREATE TABLE Menu(
 	imageURL char(256),
 	PRIMARY KEY(itemName));
 
+-- Orders and ItemStatus are range partitioned by the time the order was received.
+-- Monthly partitions (orders_pYYYY_MM, itemstatus_pYYYY_MM) are created, detached
+-- and archived by the application (see src/PartitionManager.java).
+-- Rows outside of every monthly range land in the default partitions.
 CREATE TABLE Orders(
-	orderid serial UNIQUE NOT NULL,
+	orderid serial NOT NULL,
 	login char(50), 
 	paid boolean,
 	timeStampRecieved timestamp NOT NULL,
 	total real NOT NULL,
-	PRIMARY KEY(orderid));
+	CONSTRAINT orders_pkey PRIMARY KEY(orderid, timeStampRecieved))
+	PARTITION BY RANGE (timeStampRecieved);
 
+CREATE TABLE Orders_default PARTITION OF Orders DEFAULT;
+
+-- orderTimeStamp copies Orders.timeStampRecieved so that an order and its items
+-- always live in partitions covering the same month.
 CREATE TABLE ItemStatus(
 	orderid integer,
+	orderTimeStamp timestamp NOT NULL,
 	itemName char(50), 
 	lastUpdated timestamp NOT NULL,
 	status char(20), 
 	comments char(130), 
-	PRIMARY KEY(orderid,itemName),
-	FOREIGN KEY(orderid) REFERENCES Orders(orderid) ON DELETE CASCADE,
-	FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON DELETE CASCADE);
\ No newline at end of file
+	CONSTRAINT itemstatus_pkey PRIMARY KEY(orderid,orderTimeStamp,itemName),
+	CONSTRAINT itemstatus_order_fkey FOREIGN KEY(orderid,orderTimeStamp) REFERENCES Orders(orderid,timeStampRecieved) ON DELETE CASCADE,
+	CONSTRAINT itemstatus_itemname_fkey FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON DELETE CASCADE)
+	PARTITION BY RANGE (orderTimeStamp);
+
+CREATE TABLE ItemStatus_default PARTITION OF ItemStatus DEFAULT;
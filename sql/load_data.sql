@@ -7,11 +7,41 @@ COPY USERS
 FROM 'data\users.csv'
 WITH DELIMITER ';';
 
-COPY ORDERS
+-- Orders go through a staging table too, so every month of history gets its own
+-- partitions (see src/PartitionManager.java) instead of the default partitions
+CREATE TEMP TABLE Orders_load (LIKE Orders);
+
+COPY Orders_load
 FROM 'data\orders.csv'
 WITH DELIMITER ';';
+
+DO $$
+DECLARE
+	month date;
+BEGIN
+	FOR month IN SELECT DISTINCT date_trunc('month', timeStampRecieved)::date FROM Orders_load LOOP
+		EXECUTE format('CREATE TABLE IF NOT EXISTS %I PARTITION OF Orders FOR VALUES FROM (%L) TO (%L)',
+			'orders_p' || to_char(month, 'YYYY_MM'), month, month + interval '1 month');
+		EXECUTE format('CREATE TABLE IF NOT EXISTS %I PARTITION OF ItemStatus FOR VALUES FROM (%L) TO (%L)',
+			'itemstatus_p' || to_char(month, 'YYYY_MM'), month, month + interval '1 month');
+	END LOOP;
+END $$;
+
+INSERT INTO Orders SELECT * FROM Orders_load;
 ALTER SEQUENCE orders_orderid_seq RESTART 87257;
 
-COPY ITEMSTATUS
+-- ItemStatus carries its order's timestamp as partition key, so load through a staging table
+CREATE TEMP TABLE ItemStatus_load(
+	orderid integer,
+	itemName char(50),
+	lastUpdated timestamp,
+	status char(20),
+	comments char(130));
+
+COPY ItemStatus_load
 FROM 'data\itemStatus.csv'
-WITH DELIMITER ';';
\ No newline at end of file
+WITH DELIMITER ';';
+
+INSERT INTO ItemStatus (orderid, orderTimeStamp, itemName, lastUpdated, status, comments)
+SELECT l.orderid, o.timeStampRecieved, l.itemName, l.lastUpdated, l.status, l.comments
+FROM ItemStatus_load l JOIN Orders o ON o.orderid = l.orderid;
\ No newline at end of file
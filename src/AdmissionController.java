@@ -0,0 +1,209 @@
+package src;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds how many database operations of each class run at once.
+ *
+ * Every class (writes, reads, reports, exports) has its own concurrency limit, queue
+ * length, queueing deadline and query timeout, so a manager's report never
+ * takes the capacity checkouts need. An operation that finds the queue of its
+ * class full, or that waits longer than the deadline, is rejected right away
+ * with an SQLTransientException (SQLSTATE 53000) instead of piling up.
+ *
+ * Operations nested in an admitted one (e.g. the reads of a checkout) run
+ * under the outer admission. The limits are read from system properties
+ * cafe.admission.<class>.concurrency, .queue, .waitMillis and .timeoutSeconds.
+ */
+public final class AdmissionController {
+
+   // SQLSTATE of rejected operations (insufficient_resources)
+   static final String REJECTED = "53000";
+   // SQLSTATE of statements cancelled by their timeout (query_canceled)
+   static final String CANCELLED = "57014";
+
+   public enum OperationClass {
+      WRITE(8, 32, 2000, 10),
+      READ(16, 64, 1000, 10),
+      REPORT(1, 1, 0, 600),
+      // bulk COPY out of orders, which takes as long as there are rows
+      EXPORT(1, 1, 0, 3600);
+
+      final int concurrency;
+      final int queue;
+      final long waitMillis;
+      final int timeoutSeconds;
+
+      OperationClass(int concurrency, int queue, long waitMillis, int timeoutSeconds) {
+         String prefix = "cafe.admission." + name().toLowerCase() + ".";
+         this.concurrency = Integer.getInteger(prefix + "concurrency", concurrency);
+         this.queue = Integer.getInteger(prefix + "queue", queue);
+         this.waitMillis = Long.getLong(prefix + "waitMillis", waitMillis);
+         this.timeoutSeconds = Integer.getInteger(prefix + "timeoutSeconds", timeoutSeconds);
+      }
+   }
+
+   // An operation run under admission
+   public interface Operation<T, E extends Exception> {
+      T run() throws E;
+   }
+
+   // Permits, queue and counters of one class
+   private static final class Gate {
+      final OperationClass operationClass;
+      final Semaphore permits;
+      final AtomicInteger waiting = new AtomicInteger();
+      final AtomicLong admitted = new AtomicLong();
+      final AtomicLong rejected = new AtomicLong();
+      final AtomicLong timedOut = new AtomicLong();
+      final AtomicLong waitNanos = new AtomicLong();
+
+      Gate(OperationClass operationClass) {
+         this.operationClass = operationClass;
+         this.permits = new Semaphore(operationClass.concurrency, true);
+      }
+
+      void admit() throws SQLException {
+         if(permits.tryAcquire()) {
+            admitted.incrementAndGet();
+            return;
+         }
+         if(waiting.incrementAndGet() > operationClass.queue) {
+            waiting.decrementAndGet();
+            throw reject("queue is full");
+         }
+         long start = System.nanoTime();
+         try {
+            if(!permits.tryAcquire(operationClass.waitMillis, TimeUnit.MILLISECONDS))
+               throw reject("waited " + operationClass.waitMillis + " ms");
+            admitted.incrementAndGet();
+            waitNanos.addAndGet(System.nanoTime() - start);
+         } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw reject("interrupted");
+         } finally {
+            waiting.decrementAndGet();
+         }
+      }
+
+      private SQLException reject(String reason) {
+         rejected.incrementAndGet();
+         return new SQLTransientException("The database is busy with " + operationClass.name().toLowerCase() +
+            " operations (" + reason + "); please try again", REJECTED);
+      }
+   }
+
+   private static final Map<OperationClass, Gate> gates = new EnumMap<OperationClass, Gate>(OperationClass.class);
+   static {
+      for(OperationClass operationClass : OperationClass.values())
+         gates.put(operationClass, new Gate(operationClass));
+   }
+
+   // class of the operation the current thread was admitted for
+   private static final ThreadLocal<OperationClass> current = new ThreadLocal<OperationClass>();
+
+   private AdmissionController() {
+   }
+
+   /**
+    * Runs an operation once its class admits it.
+    *
+    * @param operationClass the class the operation is limited by
+    * @param operation the operation
+    * @return the result of the operation
+    * @throws java.sql.SQLException when the operation was rejected or failed
+    */
+   public static <T, E extends Exception> T run(OperationClass operationClass, Operation<T, E> operation) throws E, SQLException {
+      if(current.get() != null)
+         return operation.run();
+      Gate gate = gates.get(operationClass);
+      gate.admit();
+      current.set(operationClass);
+      try {
+         return operation.run();
+      } catch(Exception e) {
+         if(e instanceof SQLException && CANCELLED.equals(((SQLException) e).getSQLState()))
+            gate.timedOut.incrementAndGet();
+         throw e;
+      } finally {
+         current.remove();
+         gate.permits.release();
+      }
+   }
+
+   /**
+    * Runs part of an admitted operation on another thread, e.g. one shard of
+    * a scatter-gather report. It is not admitted again but gets the timeouts
+    * of the given class.
+    *
+    * @param operationClass the class the enclosing operation was admitted for
+    * @param operation the part to run on the current thread
+    * @return the result of the operation
+    */
+   public static <T, E extends Exception> T within(OperationClass operationClass, Operation<T, E> operation) throws E {
+      OperationClass outer = current.get();
+      current.set(operationClass);
+      try {
+         return operation.run();
+      } finally {
+         if(outer == null)
+            current.remove();
+         else
+            current.set(outer);
+      }
+   }
+
+   /**
+    * Runs one statement execution under admission, with the query timeout of
+    * the class it is admitted under.
+    *
+    * @param operationClass the class the statement is limited by
+    * @param stmt the statement to set the timeout of
+    * @param execution the execution of the statement
+    * @return the result of the execution
+    * @throws java.sql.SQLException when the statement was rejected, timed out or failed
+    */
+   public static <T> T execute(OperationClass operationClass, Statement stmt, Operation<T, SQLException> execution) throws SQLException {
+      return run(operationClass, () -> {
+         stmt.setQueryTimeout(queryTimeout());
+         return execution.run();
+      });
+   }
+
+   // Query timeout in seconds for a statement of the current thread's operation
+   public static int queryTimeout() {
+      OperationClass operationClass = current.get();
+      return (operationClass == null ? OperationClass.READ : operationClass).timeoutSeconds;
+   }
+
+   // Operations of a class running or queued right now
+   public static int inFlight(OperationClass operationClass) {
+      Gate gate = gates.get(operationClass);
+      return operationClass.concurrency - gate.permits.availablePermits() + gate.waiting.get();
+   }
+
+   // Limits and counters per class
+   public static List<String> stats() {
+      List<String> lines = new ArrayList<String>();
+      lines.add(String.format("%-7s %5s %5s %8s %6s %10s %9s %9s %10s", "class", "limit", "queue", "timeout",
+                              "active", "admitted", "rejected", "timedout", "avg wait"));
+      for(Gate gate : gates.values()) {
+         OperationClass c = gate.operationClass;
+         long admitted = gate.admitted.get();
+         lines.add(String.format("%-7s %5d %5d %7ds %6d %10d %9d %9d %8.1fms", c.name().toLowerCase(), c.concurrency,
+            c.queue, c.timeoutSeconds, c.concurrency - gate.permits.availablePermits(), admitted, gate.rejected.get(),
+            gate.timedOut.get(), admitted == 0 ? 0 : gate.waitNanos.get() / 1e6 / admitted));
+      }
+      return lines;
+   }
+}
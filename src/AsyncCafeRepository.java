@@ -0,0 +1,192 @@
+package src;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs CafeRepository reads on a pool of connections and returns their
+ * results as CompletableFutures, so independent reads of a screen overlap:
+ *
+ *   CompletableFuture<Boolean> paid = async.isPaid(orderid);
+ *   CompletableFuture<List<List<String>>> items = async.itemsOfOrder(orderid);
+ *   AsyncCafeRepository.await(paid.thenCombine(items, ...));
+ *
+ * Each call borrows a repository with its own connection (a session of the
+ * application's Cafe, one per shard when sharded) for its duration. Sessions
+ * are opened on first use, up to -Dcafe.async.connections (default 4); calls
+ * beyond that wait for a free one. Calls run on virtual threads when the JDK
+ * has them (21 and newer) and on a cached pool of platform threads otherwise,
+ * or always with -Dcafe.async.threads=platform. Every statement still passes
+ * the admission controller.
+ */
+public class AsyncCafeRepository implements AutoCloseable {
+
+   static final int CONNECTIONS = Integer.getInteger("cafe.async.connections", 4);
+
+   // A call on a borrowed repository
+   public interface Call<T> {
+      T run(CafeRepository repository) throws SQLException;
+   }
+
+   private final Cafe esql;
+   private final Executor executor;
+   private final Semaphore permits;
+   private final ConcurrentLinkedQueue<CafeRepository> idle = new ConcurrentLinkedQueue<CafeRepository>();
+   private final List<Cafe> sessions = new CopyOnWriteArrayList<Cafe>();
+
+   /**
+    * @param esql the connected application, whose sessions form the pool
+    * @param connections most repositories used at once
+    * @param executor runs the calls
+    */
+   public AsyncCafeRepository(Cafe esql, int connections, Executor executor) {
+      this.esql = esql;
+      this.executor = executor;
+      this.permits = new Semaphore(connections, true);
+   }
+
+   /**
+    * Virtual threads when the JDK offers them, otherwise daemon platform
+    * threads; looked up reflectively so the application still builds on
+    * older JDKs.
+    */
+   public static Executor defaultExecutor() {
+      if(!"platform".equals(System.getProperty("cafe.async.threads"))) {
+         try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+         } catch(ReflectiveOperationException | UnsupportedOperationException e) {
+            // JDK without (or with preview only) virtual threads
+         }
+      }
+      return Executors.newCachedThreadPool(r -> {
+         Thread thread = new Thread(r, "async-query");
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   /**
+    * Runs a call on a pooled repository.
+    *
+    * @return the result; a failure completes it with a CompletionException
+    *         around the SQLException
+    */
+   public <T> CompletableFuture<T> call(Call<T> call) {
+      return CompletableFuture.supplyAsync(() -> {
+         try {
+            CafeRepository repository = borrow();
+            try {
+               return call.run(repository);
+            } finally {
+               idle.add(repository);
+               permits.release();
+            }
+         } catch(SQLException e) {
+            throw new CompletionException(e);
+         }
+      }, executor);
+   }
+
+   // Waits for a free repository, opening a new session when none is idle
+   private CafeRepository borrow() throws SQLException {
+      try {
+         permits.acquire();
+      } catch(InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a connection");
+      }
+      CafeRepository repository = idle.poll();
+      if(repository != null)
+         return repository;
+      try {
+         return open();
+      } catch(SQLException | RuntimeException e) {
+         permits.release();
+         throw e;
+      }
+   }
+
+   // A repository on new sessions, sharded like the application's
+   private CafeRepository open() throws SQLException {
+      if(!(esql.repository() instanceof ShardedCafeRepository)) {
+         Cafe session = esql.openSession();
+         sessions.add(session);
+         return session.repository();
+      }
+      List<Cafe> shardSessions = new ArrayList<Cafe>();
+      for(Cafe shard : ((ShardedCafeRepository) esql.repository()).shards()) {
+         Cafe session = shard.openSession();
+         sessions.add(session);
+         shardSessions.add(session);
+      }
+      return new ShardedCafeRepository(shardSessions);
+   }
+
+   /**
+    * Waits for a future of this repository.
+    *
+    * @throws java.sql.SQLException the failure of the call
+    */
+   public static <T> T await(CompletableFuture<T> future) throws SQLException {
+      try {
+         return future.join();
+      } catch(CompletionException e) {
+         if(e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw e;
+      }
+   }
+
+   // READS
+
+   public CompletableFuture<Boolean> isManager(String login) {
+      return call(repository -> repository.isManager(login));
+   }
+
+   public CompletableFuture<String> getFavorites(String login) {
+      return call(repository -> repository.getFavorites(login));
+   }
+
+   public CompletableFuture<List<List<String>>> menuTypes() {
+      return call(CafeRepository::menuTypes);
+   }
+
+   public CompletableFuture<List<List<String>>> itemsOfType(String type) {
+      return call(repository -> repository.itemsOfType(type));
+   }
+
+   public CompletableFuture<BigDecimal> price(String itemName) {
+      return call(repository -> repository.price(itemName));
+   }
+
+   public CompletableFuture<List<List<String>>> ordersOf(String login) {
+      return call(repository -> repository.ordersOf(login));
+   }
+
+   public CompletableFuture<Boolean> isPaid(int orderid) {
+      return call(repository -> repository.isPaid(orderid));
+   }
+
+   public CompletableFuture<List<List<String>>> itemsOfOrder(int orderid) {
+      return call(repository -> repository.itemsOfOrder(orderid));
+   }
+
+   // Closes the pooled sessions, and the executor when it is a pool of its own
+   @Override
+   public void close() {
+      for(Cafe session : sessions)
+         session.cleanup();
+      if(executor instanceof ExecutorService)
+         ((ExecutorService) executor).shutdownNow();
+   }
+}
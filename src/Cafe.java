@@ -16,6 +16,7 @@ package src;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.Statement;
@@ -23,8 +24,22 @@ import java.sql.SQLException;
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import src.AdmissionController.OperationClass;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -36,11 +51,64 @@ public class Cafe {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // connection URL and credentials, kept to open further connections
+   private String _url = null;
+   private String _user = null;
+   private String _passwd = null;
+
+   // data access used by the screens
+   private CafeRepository _repository = new JdbcCafeRepository(this);
+
+   // notified after the Menu table changed, e.g. to drop cached menu data
+   private final List<Runnable> _menuListeners = new CopyOnWriteArrayList<Runnable>();
+
+   // results of repeated reads, enabled with -Dcafe.cache.bytes=<budget>; shared by the sessions of a database
+   private final QueryCache _cache;
+
+   // number of monthly order partitions created ahead of the current month
+   static final int PARTITION_MONTHS_AHEAD = 3;
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
                                 new InputStreamReader(System.in));
 
+   // ranked prefix/fuzzy search over the menu, shared by every screen
+   static MenuSearch menuSearch = null;
+
+   // number of results shown by the quick search
+   static final int SEARCH_LIMIT = 10;
+
+   // local journal of checkouts and payments, enabled with -Dcafe.journal=<file>
+   static OrderJournal journal = null;
+
+   // seconds between background replays of the journal
+   static final int JOURNAL_REPLAY_SECONDS = 5;
+
+   // memory-mapped menu used for browsing, also while the database is unreachable
+   static MenuSnapshotStore menuSnapshots = null;
+
+   // seconds between checks of the database's menu version
+   static final int MENU_REFRESH_SECONDS = 30;
+
+   // time-decayed popularity of the menu items, overall and per user
+   static PopularityIndex popularity = null;
+
+   // seconds between reloads of the popularity index
+   static final int POPULARITY_REFRESH_SECONDS = 300;
+
+   // deletes unpaid orders older than -Dcafe.sweeper.ttlHours, off unless set
+   static OrderSweeper sweeper = null;
+
+   // reads run in parallel on pooled connections
+   static AsyncCafeRepository async = null;
+
+   // simulated network in front of the database with -Dcafe.proxy.rtt and friends, off unless set
+   static LatencyProxy proxy = null;
+
+   // connection and preparation of the database, running in the background
+   static CompletableFuture<Cafe> startup = null;
+
    /**
     * Creates a new instance of Cafe
     *
@@ -52,23 +120,105 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Cafe(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(dbname, dbport, user, passwd, true);
+   }
+
+   /**
+    * Creates a new instance of Cafe, optionally without progress output,
+    * e.g. when connecting in the background of the first menu.
+    *
+    * @param verbose whether to print the connection progress
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   Cafe(String dbname, String dbport, String user, String passwd, boolean verbose) throws SQLException {
+      this("localhost", dbname, dbport, user, passwd, verbose);
+   }
 
-      System.out.print("Connecting to database...");
+   /**
+    * Creates a new instance of Cafe connected to a database on any host,
+    * e.g. one shard of a sharded deployment.
+    *
+    * @param host the PostgreSQL server hostname
+    * @param verbose whether to print the connection progress
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   Cafe(String host, String dbname, String dbport, String user, String passwd, boolean verbose) throws SQLException {
+      this._cache = QueryCache.fromProperties();
+
+      if(verbose)
+         System.out.print("Connecting to database...");
       try {
-         // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-         System.out.println ("Connection URL: " + url + "\n");
+         // constructs the connection URL; statements are prepared on the server from their first execution
+         String url = "jdbc:postgresql://" + host + ":" + dbport + "/" + dbname + "?prepareThreshold=1";
+         if(verbose)
+            System.out.println ("Connection URL: " + url + "\n");
+         this._url = url;
+         this._user = user;
+         this._passwd = passwd;
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
-         System.out.println("Done");
+         if(verbose)
+            System.out.println("Done");
       } catch (Exception e) {
+         // Without progress output the caller decides how to carry on
+         if(!verbose)
+            throw new SQLException("Unable to Connect to Database: " + e.getMessage(), e);
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
          System.exit(-1);
       } // end catch
    } // end Cafe
 
+   /**
+    * Creates another session on the database of a Cafe, with its own
+    * connection and repository.
+    *
+    * @param other the connected Cafe
+    * @param cache the query cache of the session
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   private Cafe(Cafe other, QueryCache cache) throws SQLException {
+      this._url = other._url;
+      this._user = other._user;
+      this._passwd = other._passwd;
+      this._cache = cache;
+      this._connection = DriverManager.getConnection(this._url, this._user, this._passwd);
+   }
+
+   /**
+    * Method to open another session on the same database, e.g. for a pool
+    * of connections running queries in parallel.
+    *
+    * @return the new session, to be closed with cleanup()
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Cafe openSession() throws SQLException {
+      return new Cafe(this, this._cache);
+   }
+
+   /**
+    * Method to open another session on the same database whose unqualified
+    * table names resolve to the given schema first, e.g. the scratch copy of
+    * DataSeeder. Its results are never cached, as the same query means other
+    * tables there.
+    *
+    * @param schema the schema, which must exist
+    * @return the new session, to be closed with cleanup()
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Cafe openSession(String schema) throws SQLException {
+      Cafe session = new Cafe(this, new QueryCache(0, 0));
+      try {
+         session.executeQuery(String.format(
+            "SELECT set_config('search_path', '%s, ' || current_setting('search_path'), false)", schema));
+      } catch(SQLException e) {
+         session.cleanup();
+         throw e;
+      }
+      return session;
+   }
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -81,12 +231,43 @@ public class Cafe {
       Statement stmt = this._connection.createStatement();
 
       // issues the update instruction
-      stmt.executeUpdate (sql);
+      long start = System.nanoTime();
+      AdmissionController.execute(OperationClass.WRITE, stmt, () -> stmt.executeUpdate (sql));
+      QueryLog.record(sql, System.nanoTime() - start);
+      this._cache.written(sql);
 
       // close the instruction
       stmt.close();
    } // end executeUpdate
 
+   /**
+    * Method to execute a parameterized update SQL statement once for every
+    * row of parameters. The executions are sent in JDBC batches of at most
+    * batchSize rows, and each batch is admitted, timed and logged as one write.
+    *
+    * @param sql the statement, with ? placeholders
+    * @param rows the parameters of every execution
+    * @param batchSize the most executions sent at once
+    * @throws java.sql.SQLException when a batch failed
+    */
+   public void executeBatch(String sql, List<Object[]> rows, int batchSize) throws SQLException {
+      if(rows.isEmpty())
+         return;
+      try (PreparedStatement stmt = this._connection.prepareStatement(sql)) {
+         for(int first = 0; first < rows.size(); first += batchSize) {
+            for(Object[] params : rows.subList(first, Math.min(rows.size(), first + batchSize))) {
+               for(int i = 0; i < params.length; i++)
+                  stmt.setObject(i + 1, params[i]);
+               stmt.addBatch();
+            }
+            long start = System.nanoTime();
+            AdmissionController.execute(OperationClass.WRITE, stmt, stmt::executeBatch);
+            QueryLog.record(sql, System.nanoTime() - start);
+         }
+      }
+      this._cache.written(sql);
+   } // end executeBatch
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).
     * This method issues the query to the DBMS and outputs the results
@@ -101,31 +282,12 @@ public class Cafe {
       Statement stmt = this._connection.createStatement();
 
       // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
+      long start = System.nanoTime();
+      ResultSet rs = AdmissionController.execute(OperationClass.READ, stmt, () -> stmt.executeQuery(query));
+      QueryLog.record(query, System.nanoTime() - start);
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData();
-      int numCol = rsmd.getColumnCount();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()) {
-		   if(outputHeader) {
-   			for(int i = 1; i <= numCol; i++) {
-	      		System.out.print(rsmd.getColumnName(i) + "\t");
-			   }
-			   System.out.println();
-			   outputHeader = false;
-		   }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      } // end while
+      // renders the rows as aligned columns, paged on a terminal
+      int rowCount = ResultPrinter.console(in).print(rs);
       stmt.close();
       return rowCount;
    } // end executeQuery
@@ -140,11 +302,33 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult(String query) throws SQLException {
+      // served from the query cache outside of transactions
+      if(this._connection.getAutoCommit())
+         return this._cache.read(query, new Object[0], () -> queryResult(query));
+      return queryResult(query);
+   } // end executeQueryAndReturnResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) past the
+    * query cache, e.g. when the result decides what is written next.
+    *
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnFreshResult(String query) throws SQLException {
+      return queryResult(query);
+   } // end executeQueryAndReturnFreshResult
+
+   // Runs a query and returns its records
+   private List<List<String>> queryResult(String query) throws SQLException {
       // creates a statement object
       Statement stmt = this._connection.createStatement();
 
       // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
+      long start = System.nanoTime();
+      ResultSet rs = AdmissionController.execute(OperationClass.READ, stmt, () -> stmt.executeQuery(query));
+      QueryLog.record(query, System.nanoTime() - start);
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -163,7 +347,7 @@ public class Cafe {
       } // end while
       stmt.close();
       return result;
-   } // end executeQueryAndReturnResult
+   }
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -178,7 +362,9 @@ public class Cafe {
        Statement stmt = this._connection.createStatement ();
 
        // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+       long start = System.nanoTime();
+       ResultSet rs = AdmissionController.execute(OperationClass.READ, stmt, () -> stmt.executeQuery (query));
+       QueryLog.record(query, System.nanoTime() - start);
 
        int rowCount = 0;
 
@@ -208,6 +394,113 @@ public class Cafe {
 	return -1;
    }
 
+   /**
+    * Method to access the physical connection, for JDBC features such as
+    * COPY that are not covered by the execute methods.
+    *
+    * @return the physical database connection
+    */
+   public Connection getConnection() {
+      return this._connection;
+   }
+
+   /**
+    * Method to open an additional physical connection to the same database,
+    * for background work that must not share the transaction state of the
+    * main connection. The caller closes it.
+    *
+    * @return a new physical database connection
+    * @throws java.sql.SQLException when failed to make a connection
+    */
+   public Connection openConnection() throws SQLException {
+      return DriverManager.getConnection(this._url, this._user, this._passwd);
+   }
+
+   /**
+    * Runs a manager report or maintenance task under the REPORT
+    * admission class. The session's statement_timeout is set for its
+    * duration, which also bounds COPY transfers.
+    *
+    * @param operation the report
+    * @return the result of the report
+    * @throws Exception when the report was rejected or failed
+    */
+   public <T> T report(AdmissionController.Operation<T, ? extends Exception> operation) throws Exception {
+      return report(OperationClass.REPORT, operation);
+   }
+
+   /**
+    * Runs a long task under the given admission class, e.g. EXPORT for bulk
+    * COPY out, with that class's timeout as the session's statement_timeout.
+    *
+    * @param operationClass the class the task is limited by
+    * @param operation the task
+    * @return the result of the task
+    * @throws Exception when the task was rejected or failed
+    */
+   public <T> T report(OperationClass operationClass, AdmissionController.Operation<T, ? extends Exception> operation) throws Exception {
+      return AdmissionController.run(operationClass, () -> {
+         executeUpdate(String.format("SET statement_timeout = %d", operationClass.timeoutSeconds * 1000));
+         try {
+            return operation.run();
+         } finally {
+            executeUpdate("RESET statement_timeout");
+         }
+      });
+   }
+
+   /**
+    * Method to access the query result cache, e.g. to report the tables a
+    * write on another connection changed.
+    *
+    * @return the cache, which caches nothing unless enabled
+    */
+   public QueryCache cache() {
+      return this._cache;
+   }
+
+   /**
+    * Method to access the data layer used by the screens.
+    *
+    * @return the repository, JDBC backed unless replaced
+    */
+   public CafeRepository repository() {
+      return this._repository;
+   }
+
+   /**
+    * Method to replace the data layer used by the screens.
+    *
+    * @param repository the new repository
+    */
+   public void setRepository(CafeRepository repository) {
+      this._repository = repository;
+   }
+
+   /**
+    * Method to register a listener run after every change to the Menu table.
+    *
+    * @param listener the listener to run
+    */
+   public void addMenuListener(Runnable listener) {
+      this._menuListeners.add(listener);
+   }
+
+   /**
+    * Method to notify the menu listeners once a change to the Menu table
+    * has been committed.
+    */
+   public void menuChanged() {
+      this._cache.invalidateTables("menu");
+      for (Runnable listener : this._menuListeners) {
+         try {
+            listener.run();
+         } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+         }
+      }
+   }
+
    /**
     * Method to close the physical connection if it is open.
     */
@@ -234,27 +527,11 @@ public class Cafe {
       }
 
       Greeting();
+      menuSnapshots = new MenuSnapshotStore(Paths.get(System.getProperty("cafe.menuSnapshot", "menu-" + args[0] + ".snapshot")));
+      // Connect, migrate and warm up in the background while the first menu is shown
+      startup = CompletableFuture.supplyAsync(() -> startup(args));
       Cafe esql = null;
-      try { // use postgres JDBC driver
-         try {
-            Class.forName("org.postgresql.Driver");
-         }
-         catch (ClassNotFoundException e) {
-            System.err.println (e);
-            System.exit (-1);
-         }
-         // instantiate the Cafe object and create a physical connection
-         String dbname = args[0];
-         String dbport = args[1];
-         String user = args[2];
-         if(args.length == 4) {
-            String passwd = args[3];
-            esql = new Cafe(dbname, dbport, user, passwd);
-         } else {
-            esql = new Cafe(dbname, dbport, user, "");
-         }
-         
-
+      try {
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
@@ -262,15 +539,24 @@ public class Cafe {
             System.out.println("---------");
             System.out.println("1. Create user");
             System.out.println("2. Log in");
+            System.out.println("3. Browse menu");
             System.out.println("9. < EXIT");
             String authorisedUser = null;
-            switch (readChoice()) {
+            int choice = readChoice();
+            if(choice != 3) {
+               esql = ready(args);
+               if(esql == null && choice != 9)
+                  continue;
+            }
+            switch (choice) {
                case 1: CreateUser(esql); break;
                case 2: authorisedUser = LogIn(esql); clear(); break;
+               case 3: browseMenu(); break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }
             if (authorisedUser != null) {
+              boolean manager = isManager(esql, authorisedUser);
               boolean usermenu = true;
               while(usermenu) {
                 System.out.println("MAIN MENU");
@@ -279,6 +565,9 @@ public class Cafe {
                 System.out.println("2. Update Profile");
                 System.out.println("3. Place an Order");
                 System.out.println("4. Update an Order");
+                if(manager) { // Manager only menu options
+                   System.out.println("5. Manager tools");
+                }
                 System.out.println(".........................");
                 System.out.println("9. Log out");
                 switch (readChoice()) {
@@ -286,6 +575,12 @@ public class Cafe {
                    case 2: UpdateProfile(esql, authorisedUser); break;
                    case 3: PlaceOrder(esql, authorisedUser); break;
                    case 4: UpdateOrder(esql, authorisedUser); break;
+                   case 5:
+                      if(manager)
+                         ManagerTools(esql);
+                      else
+                         System.out.println("Unrecognized choice!");
+                      break;
                    case 9: usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
@@ -297,17 +592,157 @@ public class Cafe {
       } finally {
          // make sure to cleanup the created table and close the connection.
          try{
+            if(menuSnapshots != null) {
+               menuSnapshots.close();
+            }
+            if(journal != null) {
+               journal.close();
+            }
+            if(popularity != null) {
+               popularity.close();
+            }
+            if(sweeper != null) {
+               sweeper.close();
+            }
+            if(async != null) {
+               async.close();
+            }
+            if(esql != null && esql.repository() instanceof ShardedCafeRepository) {
+               ((ShardedCafeRepository) esql.repository()).close();
+            }
             if(esql != null) {
                System.out.print("Disconnecting from database...");
                esql.cleanup();
                System.out.println("Done\n\nBye !");
             } // end if
+            if(proxy != null) {
+               proxy.close();
+            }
          } catch (Exception e) {
             // ignored.
          } // end try
       } // end try
    } // end main
 
+   // Connects to the database and prepares everything the screens need. The
+   // statics are only set once everything is ready; a failed attempt closes
+   // what it built, so the next attempt starts over from nothing.
+   private static Cafe startup(String[] args) {
+      LatencyProxy newProxy = null;
+      Cafe esql = null;
+      AsyncCafeRepository newAsync = null;
+      OrderJournal newJournal = null;
+      PopularityIndex newPopularity = null;
+      OrderSweeper newSweeper = null;
+      try {
+         // use postgres JDBC driver
+         Class.forName("org.postgresql.Driver");
+         // instantiate the Cafe object and create a physical connection
+         String dbname = args[0];
+         String dbport = args[1];
+         String user = args[2];
+         String passwd = args.length == 4 ? args[3] : "";
+         LatencyProxy.Conditions conditions = LatencyProxy.Conditions.fromProperties();
+         if(conditions != null) {
+            newProxy = new LatencyProxy("localhost", Integer.parseInt(dbport), 0, conditions);
+            dbport = String.valueOf(newProxy.port());
+         }
+         esql = new Cafe(dbname, dbport, user, passwd, false);
+
+         // Bring the schema up to date before anything touches the tables
+         new SchemaMigrator(esql).migrate();
+
+         // Spread users and orders over the shards listed in -Dcafe.shards, this database being shard 0
+         if(System.getProperty("cafe.shards") != null)
+            esql.setRepository(ShardedCafeRepository.connect(esql, System.getProperty("cafe.shards"), user, passwd,
+                                                             conditions));
+         else
+            ShardedCafeRepository.checkLayout(Collections.singletonList(esql));
+
+         newAsync = new AsyncCafeRepository(esql, AsyncCafeRepository.CONNECTIONS, AsyncCafeRepository.defaultExecutor());
+         if(System.getProperty("cafe.journal") != null) {
+            newJournal = new OrderJournal(esql, Paths.get(System.getProperty("cafe.journal")), JOURNAL_REPLAY_SECONDS);
+            if(newJournal.pending() > 0)
+               System.out.println(newJournal.pending() + " journaled order command(s) waiting for the database");
+         }
+         newPopularity = new PopularityIndex(esql, newJournal, POPULARITY_REFRESH_SECONDS);
+
+         // Keep the upcoming monthly order partitions of every shard ready ahead of
+         // time, and give the months still in the default partitions their own.
+         // Moving history takes longer than the write timeout allows, so it runs as a report.
+         for(Cafe database : orderDatabases(esql)) {
+            try {
+               PartitionManager partitions = new PartitionManager(database);
+               int history = database.report(() -> {
+                  partitions.ensureFuturePartitions(PARTITION_MONTHS_AHEAD);
+                  return partitions.ensureHistoryPartitions();
+               });
+               if(history > 0)
+                  System.out.println("Moved " + history + " month(s) of orders out of the default partitions");
+            } catch(Exception e) {
+               System.err.println("Unable to create order partitions: " + e.getMessage());
+            }
+         }
+
+         // Sweep abandoned unpaid orders of every shard in the background
+         if(Integer.getInteger("cafe.sweeper.ttlHours") != null)
+            newSweeper = new OrderSweeper(orderDatabases(esql), Integer.getInteger("cafe.sweeper.ttlHours"));
+
+         // Prepare the statements of the first screens on the server
+         esql.repository().warmUp();
+
+         // Everything is ready: publish it to the screens
+         menuSearch = new MenuSearch(esql);
+         // Menu changes of other processes reach the search index through the snapshot's version
+         menuSnapshots.addListener(menuSearch::invalidate);
+         menuSnapshots.connect(esql, MENU_REFRESH_SECONDS);
+         proxy = newProxy;
+         async = newAsync;
+         journal = newJournal;
+         popularity = newPopularity;
+         sweeper = newSweeper;
+         return esql;
+      } catch(Exception e) {
+         closeQuietly(newSweeper, newPopularity, newJournal, newAsync);
+         if(esql != null) {
+            if(esql.repository() instanceof ShardedCafeRepository)
+               ((ShardedCafeRepository) esql.repository()).close();
+            esql.cleanup();
+         }
+         closeQuietly(newProxy);
+         throw new CompletionException(e);
+      }
+   }
+
+   // Closes what a failed startup built, ignoring further failures
+   private static void closeQuietly(AutoCloseable... resources) {
+      for(AutoCloseable resource : resources) {
+         try {
+            if(resource != null)
+               resource.close();
+         } catch(Exception e) {
+            // ignored
+         }
+      }
+   }
+
+   /**
+    * Waits for the background startup to finish. When it failed, the reason is
+    * shown and the next call starts connecting again.
+    *
+    * @return the connected Cafe, or null while the database is unreachable
+    */
+   private static Cafe ready(String[] args) {
+      try {
+         return startup.join();
+      } catch(CompletionException e) {
+         System.err.println(e.getCause().getMessage());
+         System.out.println("Make sure you started postgres on this machine; the menu can still be browsed");
+         startup = CompletableFuture.supplyAsync(() -> startup(args));
+         return null;
+      }
+   }
+
    public static void Greeting() {
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -347,12 +782,7 @@ public class Cafe {
          System.out.print("\tEnter user phone: ");
          String phone = in.readLine();
          
-	      String type = "Customer";
-	      String favItems = "";
-
-			String query = String.format("INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone, login, password, favItems, type);
-
-         esql.executeUpdate(query);
+         esql.repository().createUser(login, password, phone);
          System.out.println ("User successfully created!");
       } catch(Exception e) {
          System.err.println (e.getMessage ());
@@ -371,9 +801,7 @@ public class Cafe {
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	      if (userNum > 0)
+	      if (esql.repository().checkCredentials(login, password))
 		      return login;
          System.out.println("Wrong username/password!");
          return null;
@@ -482,10 +910,18 @@ public static void UpdateProfile(Cafe esql, String login) {
          }
       }
 
+      // Edits are checked against the version of the profile read here
+      List<String> profile = esql.repository().profile(editUser);
+      if(profile == null) {
+         System.out.println("User not found!");
+         return;
+      }
+
       // Run while loop until exit (9)
       clear();
       boolean run = true;
       while(run) {
+         editUser = profile.get(0).trim();
          System.out.println("UPDATE PROFILE");
          System.out.println("---------");
          System.out.println("1. Phone number");
@@ -501,15 +937,15 @@ public static void UpdateProfile(Cafe esql, String login) {
          // User Input
          switch(readChoice()){
             case 1: // Update Phone Number
-               updateField("phonenum", editUser, esql);
+               profile = updateField("phonenum", profile, esql);
                clear();
                break;
             case 2: // Update Login
-               updateField("login", editUser, esql);
+               profile = updateField("login", profile, esql);
                clear();
                break;
             case 3: // Update Password
-               updateField("password", editUser, esql);
+               profile = updateField("password", profile, esql);
                clear();
                break;
             case 4: // Update Favorite Items
@@ -521,21 +957,24 @@ public static void UpdateProfile(Cafe esql, String login) {
                int choice = getInputPosFromDynamic(favorites);
                if(choice != -1){
                   removeFromFavorites(esql, login, favorites, choice);
-                  esql.executeQueryAndPrintResult(String.format("SELECT favitems FROM users WHERE login = '%s'", login));
+                  System.out.println("favitems");
+                  System.out.println(esql.repository().getFavorites(login));
                }
                clear();
                break;
             case 5: // Update Type | Manager Only
                if(isManager){
-                  esql.executeQuery(String.format("UPDATE users SET type = '%s' WHERE login = '%s'", selectUserType(), editUser));
+                  esql.repository().setUserType(editUser, selectUserType());
+                  profile = esql.repository().profile(editUser);
                   clear();
                } else {
                   System.out.println("Unrecognized choice!");
                }
                break;
             case 8: // Make User Manager
-               String query = String.format("UPDATE users SET type = 'Manager' WHERE login = '%s'", login);
-               esql.executeUpdate(query);
+               esql.repository().setUserType(login, "Manager");
+               if(editUser.equals(login.trim()))
+                  profile = esql.repository().profile(editUser);
                clear();
                break;
             case 9: // Exit
@@ -588,22 +1027,28 @@ public static void UpdateProfile(Cafe esql, String login) {
 
             // Print current user's orders
             System.out.println("YOUR ORDERS");
-            System.out.println("orderid \t paid (t/f) \t timeStampRecieved \t total");
-            String query = String.format("SELECT orderid, paid, timeStampRecieved, total FROM Orders WHERE login = '%s'", login);
-            List<List<String>> result = esql.executeQueryAndReturnResult(query);
-            printAndNumberResult(result, 4);
+            List<List<String>> result = esql.repository().ordersOf(login);
+            printAndNumberResult(result, 4, "orderid", "paid (t/f)", "timeStampRecieved", "total");
 
             // Select an order
             System.out.println("Which order would you like to update?");
-            int orderID = Integer.parseInt(getInputStringFromDynamic(result));
+            String chosenOrder = getInputStringFromDynamic(result);
+            if(chosenOrder == null) { // Exit
+               run = false;
+               break;
+            }
+            int orderID = Integer.parseInt(chosenOrder);
 
-            // Get paid boolean in String form
-            query = String.format("SELECT paid FROM Orders WHERE orderID = '%d'", orderID);
-            result = esql.executeQueryAndReturnResult(query);
-            String paid = result.get(0).get(0);
+            // Look up the items and the payment of the order at the same time
+            CompletableFuture<List<List<String>>> items = async.itemsOfOrder(orderID);
+            CompletableFuture<Boolean> paid = async.isPaid(orderID);
+            System.out.println("ORDER " + orderID);
+            ResultPrinter printer = ResultPrinter.console(in);
+            printer.printNumbered(AsyncCafeRepository.await(items), 3, "Item", "Quantity", "Status");
+            printer.flush();
 
             // Update order if not paid for
-            if(paid.equals("t")) {
+            if(Boolean.TRUE.equals(AsyncCafeRepository.await(paid))) {
                System.out.println("Order is already paid for!");
             } else {
                System.out.println("What would you like to do?");
@@ -622,15 +1067,318 @@ public static void UpdateProfile(Cafe esql, String login) {
       }
    } // End UpdateOrder
 
+   // 5. "Manager tools" | Manager only
+   public static void ManagerTools(Cafe esql) {
+      try {
+         clear();
+         boolean run = true;
+         while(run) {
+            System.out.println("MANAGER TOOLS");
+            System.out.println("---------");
+            System.out.println("1. Order partitions");
+            System.out.println("2. Export orders");
+            System.out.println("3. Bulk menu import");
+            System.out.println("4. Index advisor");
+            System.out.println("5. Runtime stats");
+            System.out.println("6. Cross-shard reports");
+            System.out.println("7. Contention diagnostics");
+            System.out.println("9. < EXIT");
+            switch(readChoice()) {
+               case 1: ManagePartitions(esql); break;
+               case 2: exportOrders(esql); break;
+               case 3: importMenu(esql); break;
+               case 4: adviseIndexes(esql); break;
+               case 5: runtimeStats(esql); break;
+               case 6: shardReports(esql); break;
+               case 7: contentionDiagnostics(esql); break;
+               case 9: run = false; break;
+               default: System.out.println("Unrecognized choice!"); break;
+            }
+         }
+         clear();
+      } catch(Exception e) {
+         System.err.println(e.getMessage());
+      }
+   } // End ManagerTools
+
   
 // HELPER FUNCTIONS
 
+// Reports merged over every shard; an unsharded database is reported as a single shard
+private static void shardReports(Cafe esql) {
+   try {
+      ShardedCafeRepository shards = esql.repository() instanceof ShardedCafeRepository
+         ? (ShardedCafeRepository) esql.repository()
+         : new ShardedCafeRepository(Collections.singletonList(esql));
+      System.out.println("CROSS-SHARD REPORTS (" + shards.shardCount() + " shard(s))");
+      System.out.println("---------");
+      System.out.println("1. Users and orders per shard");
+      System.out.println("2. Revenue by month");
+      System.out.println("3. Most ordered items");
+      System.out.println("9. < EXIT");
+      switch(readChoice()) {
+         case 1:
+            printAndNumberResult(esql.report(shards::shardSizes), 4, "Shard", "Users", "Orders", "Unpaid");
+            break;
+         case 2:
+            printAndNumberResult(esql.report(shards::revenueByMonth), 3, "Month", "Orders", "Revenue");
+            break;
+         case 3:
+            printAndNumberResult(esql.report(() -> shards.topItems(SEARCH_LIMIT)), 2, "Item", "Quantity");
+            break;
+         default:
+            break;
+      }
+   } catch(Exception e) {
+      System.err.println(e.getMessage());
+   }
+}
+
+// Prints the admission counters and the most time consuming statement shapes
+private static void runtimeStats(Cafe esql) {
+   System.out.println("ADMISSION");
+   for(String line : AdmissionController.stats())
+      System.out.println(line);
+   if(sweeper != null) {
+      System.out.println("\nUNPAID ORDER SWEEPER");
+      for(String line : sweeper.stats())
+         System.out.println(line);
+   }
+   if(proxy != null) {
+      System.out.println("\nNETWORK PROXY");
+      for(String line : proxy.stats())
+         System.out.println(line);
+      if(esql.repository() instanceof ShardedCafeRepository) {
+         List<LatencyProxy> shardProxies = ((ShardedCafeRepository) esql.repository()).proxies();
+         for(int i = 0; i < shardProxies.size(); i++) {
+            System.out.println("Shard " + (i + 1) + ": " + shardProxies.get(i).stats().get(0));
+            for(String line : shardProxies.get(i).stats().subList(1, 3))
+               System.out.println(line);
+         }
+      }
+   }
+   if(journal != null) {
+      System.out.println("\nORDER JOURNAL");
+      for(String line : journal.stats())
+         System.out.println(line);
+   }
+   System.out.println("\nPASSWORD HASHING");
+   for(String line : PasswordHasher.stats())
+      System.out.println(line);
+   System.out.println("\nQUERY CACHE");
+   for(String line : esql.cache().stats())
+      System.out.println(line);
+   System.out.println("\nTOP STATEMENTS");
+   System.out.println(String.format("%8s %10s  %s", "count", "total ms", "statement"));
+   List<QueryLog.Shape> shapes = QueryLog.shapes();
+   for(QueryLog.Shape shape : shapes.subList(0, Math.min(10, shapes.size())))
+      System.out.println(String.format("%8d %10.1f  %s", shape.count.get(), shape.totalNanos.get() / 1e6, shape.shape));
+   System.out.println();
+}
+
+// Samples lock waits of every shard while other registers work, then prints where they come from
+private static void contentionDiagnostics(Cafe esql) {
+   try (ContentionMonitor monitor = new ContentionMonitor(orderDatabases(esql))) {
+      System.out.print("\tSample for how many seconds? ");
+      int seconds = Integer.parseInt(in.readLine().trim());
+      monitor.start();
+      System.out.println("Sampling lock waits for " + seconds + " s...");
+      Thread.sleep(seconds * 1000L);
+      monitor.stop();
+      for(String line : monitor.report())
+         System.out.println(line);
+      System.out.println();
+   } catch(Exception e) {
+      System.err.println(e.getMessage());
+   }
+}
+
+// Explains the recorded workload and proposes indexes on a scratch copy of the tables, optionally with a seeded dataset
+private static void adviseIndexes(Cafe esql) {
+   DataSeeder seeder = new DataSeeder(esql);
+   try {
+      System.out.print("\tAlso seed a scaled dataset? Scale (0 for none): ");
+      int scale = Integer.parseInt(in.readLine().trim());
+      // Candidate indexes lock their table, so they are tried on a copy, never on the live tables
+      System.out.println("Copying the tables into the scratch schema " + DataSeeder.SCHEMA + "...");
+      Cafe scratch = esql.report(() -> seeder.open(true));
+      if(scale > 0) {
+         System.out.println("Seeding " + scale * DataSeeder.ORDERS_PER_SCALE + " orders...");
+         scratch.report(() -> { seeder.seed(scale); return null; });
+      }
+      IndexAdvisor advisor = new IndexAdvisor(scratch);
+      List<String> workload = advisor.workload();
+      System.out.println("Explaining " + workload.size() + " statement(s)...");
+      for(String line : IndexAdvisor.report(scratch.report(() -> advisor.advise(workload))))
+         System.out.println(line);
+   } catch(Exception e) {
+      System.err.println(e.getMessage());
+   } finally {
+      try {
+         System.out.println("Dropping the scratch schema...");
+         esql.report(() -> { seeder.clear(); return null; });
+      } catch(Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+}
+
+// Applies a CSV or JSON delta file to the Menu in one transaction
+private static void importMenu(Cafe esql) {
+   try {
+      System.out.print("\tDelta file (.csv or .json): ");
+      Path file = Paths.get(in.readLine().trim());
+      System.out.print("\tDelete items missing from the file? (y/n)");
+      boolean replace = in.readLine().trim().equalsIgnoreCase("y");
+
+      MenuImport menuImport = new MenuImport(esql);
+      MenuImport.Plan plan = menuImport.diff(MenuImport.read(file), replace);
+      System.out.println(plan);
+      if(plan.isEmpty()) {
+         System.out.println("Menu is already up to date!");
+         return;
+      }
+      System.out.print("Apply these changes? (y/n)");
+      if(in.readLine().trim().equalsIgnoreCase("y")) {
+         esql.report(() -> { menuImport.apply(plan); return null; });
+         System.out.println("Menu successfully updated!");
+      }
+   } catch(Exception e) {
+      System.err.println(e.getMessage());
+   }
+}
+
+// Streams the orders and items of a time range to files for accounting
+private static void exportOrders(Cafe esql) {
+   try {
+      System.out.print("\tFrom (YYYY-MM-DD, inclusive): ");
+      LocalDateTime from = LocalDate.parse(in.readLine().trim()).atStartOfDay();
+      System.out.print("\tTo (YYYY-MM-DD, exclusive): ");
+      LocalDateTime to = LocalDate.parse(in.readLine().trim()).atStartOfDay();
+      System.out.print("\tExport directory: ");
+      Path dir = Paths.get(in.readLine().trim());
+
+      System.out.println("FORMAT");
+      System.out.println("---------");
+      System.out.println("1. CSV");
+      System.out.println("2. Binary (PostgreSQL COPY)");
+      OrderExport.Format format = readChoice() == 2 ? OrderExport.Format.BINARY : OrderExport.Format.CSV;
+      System.out.print("Compress with gzip? (y/n)");
+      OrderExport.Compression compression = in.readLine().trim().equalsIgnoreCase("y")
+         ? OrderExport.Compression.GZIP : OrderExport.Compression.NONE;
+
+      String prefix = "orders_" + from.toLocalDate() + "_" + to.toLocalDate();
+      for(Path file : esql.report(OperationClass.EXPORT, () -> new OrderExport(esql).export(from, to, dir, prefix, format, compression)))
+         System.out.println("Exported " + file);
+   } catch(Exception e) {
+      System.err.println(e.getMessage());
+   }
+}
+
+// The databases holding users and orders: every shard when sharded
+static List<Cafe> orderDatabases(Cafe esql) {
+   return esql.repository() instanceof ShardedCafeRepository
+      ? ((ShardedCafeRepository) esql.repository()).shards() : Collections.singletonList(esql);
+}
+
+// Create, attach, detach and archive the monthly Orders/ItemStatus partitions of every shard
+private static void ManagePartitions(Cafe esql) {
+   List<Cafe> databases = orderDatabases(esql);
+   List<PartitionManager> shards = new ArrayList<PartitionManager>();
+   for(Cafe database : databases)
+      shards.add(new PartitionManager(database));
+   boolean run = true;
+   while(run) {
+      try {
+         System.out.println("ORDER PARTITIONS");
+         System.out.println("---------");
+         System.out.println("1. List partitions");
+         System.out.println("2. Create upcoming partitions");
+         System.out.println("3. Detach month");
+         System.out.println("4. Attach month");
+         System.out.println("5. Archive month");
+         System.out.println("6. Archive old months");
+         System.out.println("9. < EXIT");
+         switch(readChoice()) {
+            case 1:
+               for(int i = 0; i < shards.size(); i++) {
+                  if(shards.size() > 1)
+                     System.out.println("Shard " + i);
+                  printAndNumberResult(shards.get(i).listPartitions(), 4, "table", "partition", "bounds", "size");
+               }
+               break;
+            case 2:
+               System.out.print("How many months ahead? ");
+               int ahead = readChoice();
+               int created = 0;
+               for(int i = 0; i < shards.size(); i++) {
+                  PartitionManager partitions = shards.get(i);
+                  created += databases.get(i).report(() -> partitions.ensureFuturePartitions(ahead));
+               }
+               System.out.println(created + " month(s) of partitions created!");
+               break;
+            case 3:
+               System.out.print("Month to detach (YYYY-MM): ");
+               YearMonth detached = PartitionManager.parseMonth(in.readLine());
+               // Detaching a month still in the default partitions moves its rows first
+               for(int i = 0; i < shards.size(); i++) {
+                  PartitionManager partitions = shards.get(i);
+                  databases.get(i).report(() -> { partitions.detach(detached); return null; });
+               }
+               System.out.println("Partitions detached!");
+               break;
+            case 4:
+               System.out.print("Month to attach (YYYY-MM): ");
+               YearMonth attached = PartitionManager.parseMonth(in.readLine());
+               for(int i = 0; i < shards.size(); i++) {
+                  PartitionManager partitions = shards.get(i);
+                  databases.get(i).report(() -> { partitions.attach(attached); return null; });
+               }
+               System.out.println("Partitions attached!");
+               break;
+            case 5:
+               System.out.print("Month to archive (YYYY-MM): ");
+               YearMonth month = PartitionManager.parseMonth(in.readLine());
+               System.out.print("Archive directory: ");
+               Path monthDir = Paths.get(in.readLine().trim());
+               for(int i = 0; i < shards.size(); i++) {
+                  PartitionManager partitions = shards.get(i);
+                  Path shardDir = shards.size() > 1 ? monthDir.resolve("shard" + i) : monthDir;
+                  for(Path file : databases.get(i).report(OperationClass.EXPORT, () -> partitions.archive(month, shardDir)))
+                     System.out.println("Archived to " + file);
+               }
+               break;
+            case 6:
+               System.out.print("Months to keep online: ");
+               int keep = readChoice();
+               System.out.print("Archive directory: ");
+               Path oldDir = Paths.get(in.readLine().trim());
+               for(int i = 0; i < shards.size(); i++) {
+                  PartitionManager partitions = shards.get(i);
+                  Path shardDir = shards.size() > 1 ? oldDir.resolve("shard" + i) : oldDir;
+                  List<YearMonth> archived = databases.get(i).report(OperationClass.EXPORT,
+                     () -> partitions.archiveOlderThan(keep, shardDir));
+                  System.out.println((shards.size() > 1 ? "Shard " + i + ": " : "") + archived.size() +
+                                     " month(s) archived " + archived);
+               }
+               break;
+            case 9:
+               run = false;
+               break;
+            default:
+               System.out.println("Unrecognized choice!");
+               break;
+         }
+      } catch(Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+}
+
 // Checks if user is a manager
 public static boolean isManager(Cafe esql, String login) {
    try{
-      String query = String.format("SELECT login FROM users WHERE login = '%s' AND type = 'Manager'", login);
-      boolean isManager = (esql.executeQuery(query) != 0);
-      return isManager;
+      return esql.repository().isManager(login);
    } catch(Exception e) {
       System.err.println (e.getMessage ());
       return false;
@@ -638,22 +1386,38 @@ public static boolean isManager(Cafe esql, String login) {
 }
 
 // Update Field
-public static void updateField(String field, String editUser, Cafe esql) {
-   try {
-      System.out.println("Old value: ");
-      String query = String.format("SELECT %s FROM users where login = '%s'", field, editUser);
-      esql.executeQueryAndPrintResult(query);
+// Columns of the profile records of CafeRepository.profile
+private static final List<String> PROFILE_COLUMNS = Arrays.asList("login", "phonenum", "password", "type", "version");
 
+// Updates a field of a profile | Returns the profile as it is afterwards
+public static List<String> updateField(String field, List<String> profile, Cafe esql) {
+   // Passwords are stored as hashes, which are of no use to show
+   boolean secret = field.equals("password");
+   try {
+      if(!secret)
+         System.out.println("Old value: " + String.valueOf(profile.get(PROFILE_COLUMNS.indexOf(field))).trim());
       System.out.println("Enter New Value: ");
       String newValue = in.readLine();
-      query = String.format("UPDATE users SET %s = '%s' WHERE login = '%s'", field, newValue, editUser);
-      esql.executeUpdate(query);
 
-      System.out.println("\nNew value: ");
-      query = String.format("SELECT %s FROM users where login = '%s'", field, editUser);
-      esql.executeQueryAndPrintResult(query);
+      // One UPDATE ... RETURNING, refused if the profile changed since it was read
+      String login = profile.get(0).trim();
+      List<String> updated = esql.repository().updateProfileField(login, field, newValue, Integer.parseInt(profile.get(4)));
+      if(updated == null) {
+         System.out.println("The profile was changed meanwhile, nothing was updated. Please try again.");
+         List<String> current = esql.repository().profile(login);
+         return current == null ? profile : current;
+      }
+      if(secret)
+         System.out.println("\nPassword changed.");
+      else
+         System.out.println("\nNew value: " + String.valueOf(updated.get(1)).trim() + " (was " + String.valueOf(updated.get(0)).trim() + ")");
+      List<String> result = new ArrayList<String>(profile);
+      result.set(PROFILE_COLUMNS.indexOf(field), updated.get(1));
+      result.set(4, updated.get(2));
+      return result;
    } catch(Exception e) {
       System.err.println (e.getMessage ());
+      return profile;
    }
 }
 
@@ -664,6 +1428,7 @@ private static void search(Cafe esql) {
       System.out.println("---------");
       System.out.println("1. Item Name");
       System.out.println("2. Type");
+      System.out.println("3. Quick search (name, type or description; prefixes and typos allowed)");
 
       int choice = readChoice();
       System.out.print("Search for: ");
@@ -683,6 +1448,13 @@ private static void search(Cafe esql) {
                query = String.format("SELECT * FROM menu WHERE type = '%s'", search);
                runSearchBy = false;
                break;
+            case 3:  //Ranked prefix/fuzzy search
+               List<List<String>> items = new ArrayList<List<String>>();
+               for(MenuSearch.Result result : menuSearch.search(search, SEARCH_LIMIT))
+                  items.add(result.item);
+               printAndNumberResult(items, 4, "Item", "Type", "Price", "Description");
+               runSearchBy = false;
+               break;
             default: // Other
                System.out.println("Unrecognized choice!");
                break;
@@ -716,17 +1488,12 @@ private static void guided(Cafe esql, String login) {
                   run = false;
                   break;
                case 2:
-                  addOrder(esql, login, chosenType);
-                  boolean paynow = false;
-                  System.out.print("Would you like to pay now? (y/n)");
-                  String choice = in.readLine().toLowerCase();
-
-                  if(choice.equals("y"))
-                     paynow = true;
-                  if(paynow){
-                     String query = String.format("SELECT orderid FROM orders WHERE login = '%s'", login);
-                     List<List<String>> result = esql.executeQueryAndReturnResult(query);
-                     payOrder(esql, Integer.parseInt(result.get(result.size()-1).get(0)));
+                  int orderID = addOrder(esql, login, chosenType);
+                  // No orderid when nothing was ordered or the order was journaled; it is paid from Update an Order
+                  if(orderID != -1) {
+                     System.out.print("Would you like to pay now? (y/n)");
+                     if(in.readLine().toLowerCase().equals("y"))
+                        payOrder(esql, orderID);
                   }
                   run = false;
                   break;
@@ -754,8 +1521,8 @@ private static void addItem(Cafe esql) {
       System.out.print("\tEnter item name: ");
       String name = sanatizeString(in.readLine());
 
-      System.out.print("\tEnter enter price: ");
-      int price = readChoice();
+      System.out.print("\tEnter price: ");
+      BigDecimal price = new BigDecimal(in.readLine().trim());
 
       System.out.print("\tEnter description: ");
       String description = sanatizeString(in.readLine());
@@ -764,8 +1531,9 @@ private static void addItem(Cafe esql) {
       String url = sanatizeString(in.readLine());
 
       // Insert user defined item into Menu
-      String query = String.format("INSERT INTO menu (type, itemname, price, description, imageurl) VALUES ('%s','%s','%d','%s','%s')", type, name, price, description, url);
+      String query = String.format("INSERT INTO menu (type, itemname, price, description, imageurl) VALUES ('%s','%s','%s','%s','%s')", type, name, price.toPlainString(), description, url);
       esql.executeUpdate(query);
+      esql.menuChanged();
 
       System.out.println ("Item successfully added!");
    } catch(Exception e) {
@@ -777,12 +1545,12 @@ private static void addItem(Cafe esql) {
 private static void deleteItem(Cafe esql, String login) {
    try {
       String itemname = findItem(esql, login);
-      System.out.println(itemname.toUpperCase());
-      System.out.println("---------");
-
       if(itemname != null) {
+         System.out.println(itemname.toUpperCase());
+         System.out.println("---------");
          String query = String.format("DELETE FROM menu WHERE itemname = '%s'", itemname);
          esql.executeUpdate(query);
+         esql.menuChanged();
          System.out.println ("Item successfully deleted!");
       }
    }
@@ -819,10 +1587,11 @@ private static void updateItem(Cafe esql, String login) {
          switch(choice) { //Choosing field to update
             case 1: type = "type"; break; // type
             case 2: type = "itemname"; break; // itemname
-            case 3: // Price is int, not string
+            case 3: // Price is numeric, not string
                try {
-                  query = String.format("UPDATE menu SET price = '%f' WHERE itemname = '%s'", Double.parseDouble(change), itemname);
-                  esql.executeQuery(query);
+                  query = String.format("UPDATE menu SET price = '%s' WHERE itemname = '%s'", new BigDecimal(change.trim()).toPlainString(), itemname);
+                  esql.executeUpdate(query);
+                  esql.menuChanged();
                } catch(Exception e) {
                System.err.println(e.getMessage());
                }
@@ -835,9 +1604,13 @@ private static void updateItem(Cafe esql, String login) {
                break;
          }
 
-         if(type != null && query != null) {
+         if(type != null) {
             try {
-               query = String.format("UPDATE menu SET %s = '%s' WHERE itemname = '%s'", choice, change, itemname);
+               query = String.format("UPDATE menu SET %s = '%s' WHERE itemname = '%s'", type, change, itemname);
+               esql.executeUpdate(query);
+               esql.menuChanged();
+               if(type.equals("itemname"))
+                  itemname = change;
             } catch(Exception e) {
                System.err.println(e.getMessage());
             }
@@ -853,16 +1626,12 @@ private static void clear() {
    System.out.print("\033[H\033[2J");
 }
 
-// Prints the results of the query search
-private static void printAndNumberResult(List<List<String>> results, int colCount) {
-   for(int i = 0; i < results.size(); i++){
-      System.out.print("" + i + ". " + results.get(i).get(0));
-      for(int j = 1; j < colCount; j++){
-         System.out.print("\t" + results.get(i).get(j));
-      }
-      System.out.println();
-   }
-   System.out.println("" + results.size() + ". < Exit\n");
+// Prints the results of the query search, numbered for getInputStringFromDynamic
+private static void printAndNumberResult(List<List<String>> results, int colCount, String... header) {
+   ResultPrinter printer = ResultPrinter.console(in);
+   printer.printNumbered(results, colCount, header);
+   printer.println("" + results.size() + ". < Exit\n");
+   printer.flush();
 }
 
 // Dyanmic Input Handler
@@ -940,9 +1709,7 @@ private static List<List<String>> parseFavorites(Cafe esql, String login) {
    try {
       List<List<String>> favorites = new ArrayList<List<String>>();
       List<String> tmp = new ArrayList<String>();
-      String query = String.format("SELECT favitems FROM users WHERE login = '%s'", login);
-      List<List<String>> rs = esql.executeQueryAndReturnResult(query);
-      String result = rs.get(0).get(0);
+      String result = esql.repository().getFavorites(login);
       String item = "";
       int start = 0;
       int lastPos = 0;
@@ -970,6 +1737,8 @@ private static List<List<String>> parseFavorites(Cafe esql, String login) {
             lastFound = false;
          }
       }
+      if(!lastFound) // No padding after the final favorite item
+         lastPos = result.length();
       tmp.add(item);
       tmp.add("" + start);
       tmp.add("" + lastPos);
@@ -984,9 +1753,7 @@ private static List<List<String>> parseFavorites(Cafe esql, String login) {
 //Intended to be used with getInputDynamic
 private static List<List<String>> removeFromFavorites(Cafe esql, String login, List<List<String>> parsed, int remove) {
    try {
-      String query = String.format("SELECT favitems FROM users WHERE login = '%s'", login);
-      List<List<String>> rs = esql.executeQueryAndReturnResult(query);
-      String result = rs.get(0).get(0);
+      String result = esql.repository().getFavorites(login);
       int firstPos = Integer.parseInt(parsed.get(remove).get(1));
       int lastPos = Integer.parseInt(parsed.get(remove).get(2));
       if (0 < firstPos) {
@@ -1004,8 +1771,7 @@ private static List<List<String>> removeFromFavorites(Cafe esql, String login, L
       parsed.get(remove).remove(1);
       parsed.get(remove).remove(0);
       parsed.remove(remove);
-      query = String.format("UPDATE users SET favitems = '%s' WHERE login = '%s'", result, login);
-      esql.executeQuery(query);
+      esql.repository().setFavorites(login, result);
       return parsed;
    }catch(Exception e) {
       System.err.println(e.getMessage());
@@ -1016,23 +1782,20 @@ private static List<List<String>> removeFromFavorites(Cafe esql, String login, L
 // Add an item to a user's favorites
 private static List<List<String>> addToFavorites(Cafe esql, String login, List<List<String>> parsed, String newFavorite) {
    try {
-      String query = String.format("SELECT favitems FROM users WHERE login = '%s'", login);
-      List<List<String>> rs = esql.executeQueryAndReturnResult(query);
-      String result = rs.get(0).get(0);
+      String result = esql.repository().getFavorites(login);
       int last = Integer.parseInt(parsed.get(parsed.size()-1).get(2));
       if(0 < last) {
          result = result.substring(0, last) + ',' + newFavorite + result.substring(last);
       } else {
          result = newFavorite + result;
       }
-      result = result.substring(0, 400);
+      result = result.substring(0, Math.min(400, result.length()));
       List<String> tmp = new ArrayList<String>();
       tmp.add(newFavorite);
       tmp.add("" + (last + 1));
       tmp.add("" + (last + 1 + newFavorite.length()));
       parsed.add(tmp);
-      query = String.format("UPDATE users SET favitems = '%s' WHERE login = '%s'", result, login);
-      esql.executeQuery(query);
+      esql.repository().setFavorites(login, result);
       return parsed;  
    } catch(Exception e) {
       System.err.println(e.getMessage());
@@ -1040,17 +1803,39 @@ private static List<List<String>> addToFavorites(Cafe esql, String login, List<L
    }
 }
 
+// Browses the menu without logging in, from the menu snapshot while the database is unreachable
+private static void browseMenu() {
+   String itemName = findItem(null, null);
+   if(itemName != null)
+      System.out.println("Log in to order " + itemName + "\n");
+}
+
+// Entries of the type list that are not menu types
+private static final String POPULAR = "Popular right now";
+private static final String USUALS = "Your usuals";
+
 // Guided Search
 private static String findItem(Cafe esql, String login) {
    try {
       clear();
 
-      // Print types of items
-      String query = "SELECT DISTINCT type FROM menu";
-      List<List<String>> result = esql.executeQueryAndReturnResult(query);
-      List<String> tmp = new ArrayList<String>();
-      tmp.add("Favorites");
-      result.add(tmp);
+      // Print types of items; favorites and usuals need a logged in user
+      List<List<String>> result = menuSnapshots.menuTypes();
+      if(login != null && popularity != null && !popularity.usuals(login).isEmpty()) {
+         List<String> tmp = new ArrayList<String>();
+         tmp.add(USUALS);
+         result.add(0, tmp);
+      }
+      if(popularity != null && !popularity.top().isEmpty()) {
+         List<String> tmp = new ArrayList<String>();
+         tmp.add(POPULAR);
+         result.add(0, tmp);
+      }
+      if(login != null) {
+         List<String> tmp = new ArrayList<String>();
+         tmp.add("Favorites");
+         result.add(tmp);
+      }
       System.out.println("TYPES");
       System.out.println("---------");
       printAndNumberResult(result, 1);
@@ -1063,14 +1848,21 @@ private static String findItem(Cafe esql, String login) {
          if("Favorites" == chosenType){
             result = parseFavorites(esql, login);
          }
+         else if(POPULAR == chosenType){
+            result = popularity.top();
+         }
+         else if(USUALS == chosenType){
+            result = popularity.usuals(login);
+         }
          else{
-            query = String.format("SELECT itemname, price, description FROM menu WHERE type = '%s'", chosenType);
-            result = esql.executeQueryAndReturnResult(query);
+            // Most ordered first
+            result = menuSnapshots.itemsOfType(chosenType);
+            if(popularity != null)
+               result = popularity.rank(result);
          }
          System.out.println(chosenType.toUpperCase());
          System.out.println("---------");
-         System.out.println("#  Item\t\t\t\t\t\t\tPrice\t\tDescription\n");
-         printAndNumberResult(result, 3);
+         printAndNumberResult(result, 3, "Item", "Price", "Description");
          return getInputStringFromDynamic(result);
       }
       else
@@ -1113,26 +1905,30 @@ private static String selectUserType() {
 }
 
 // Pay Order
-private static void payOrder(Cafe esql, int orderID) throws SQLException {
-   String query = String.format("UPDATE Orders SET paid = true WHERE orderid = '%d'", orderID);
-   esql.executeUpdate(query);
-   System.out.println("Order successfully paid for!");
+private static void payOrder(Cafe esql, int orderID) throws SQLException, IOException {
+   if(journal != null) { // Recorded locally, applied in the background once the database has it
+      journal.pay(orderID);
+      System.out.println("Payment Recorded! It is applied in the background");
+   } else if(esql.repository().pay(orderID))
+      System.out.println("Order successfully paid for!");
+   else
+      System.out.println("Order not found!");
 }
 
 // Cancel Order
 private static void cancelOrder(Cafe esql, int orderID) throws SQLException {
-   String query = String.format("DELETE FROM Orders WHERE orderID = '%d'", orderID);
-   esql.executeUpdate(query);
-   System.out.println("Order successfully canceled!");
+   if(esql.repository().cancel(orderID))
+      System.out.println("Order successfully canceled!");
+   else
+      System.out.println("Order not found!");
 }
 
-// Add Order
-private static void addOrder(Cafe esql, String login, String chosenItem) throws SQLException, IOException{
+// Add Order | Returns the new orderid, -1 if no order was placed
+private static int addOrder(Cafe esql, String login, String chosenItem) throws SQLException, IOException{
    boolean run = true;
    boolean anotherItem = false;
-   double total = 0;
-   String query;
-   chosenItem = chosenItem.trim();
+   Map<String, Integer> items = new LinkedHashMap<String, Integer>();
+   int orderID = -1;
 
    while(run) {
       // If adding another item, search again
@@ -1141,23 +1937,25 @@ private static void addOrder(Cafe esql, String login, String chosenItem) throws
       }
 
       // Add item to order
-      chosenItem = chosenItem.trim();
+      if(chosenItem != null) {
+         System.out.println(chosenItem.toUpperCase());
 
-      System.out.println(chosenItem.toUpperCase());
- 
-      // Calculate total price
-      query = String.format("SELECT price FROM menu WHERE itemName = '%s'", chosenItem);
-      List<List<String>> result = esql.executeQueryAndReturnResult(query);
-      double price = Double.parseDouble((result.get(0).get(0)));
-      System.out.print("How Many? ");
-      double quantity = Double.parseDouble(in.readLine());
-      total += price * quantity;
-
-      // Print
-      if(quantity == 1) {
-         System.out.println((int)quantity + " " + chosenItem + " added to order!");
-      } else {
-         System.out.println((int)quantity + " " + chosenItem + "s added to order!");
+         // With the journal on the order must not depend on the database, so the snapshot validates it
+         BigDecimal price = journal != null ? menuSnapshots.price(chosenItem) : esql.repository().price(chosenItem);
+         if(price == null) {
+            System.out.println("Item not found!");
+         } else {
+            System.out.print("How Many? ");
+            int quantity = Integer.parseInt(in.readLine().trim());
+            items.merge(chosenItem, quantity, Integer::sum);
+
+            // Print
+            if(quantity == 1) {
+               System.out.println(quantity + " " + chosenItem + " added to order!");
+            } else {
+               System.out.println(quantity + " " + chosenItem + "s added to order!");
+            }
+         }
       }
 
       // Add another item 
@@ -1167,26 +1965,38 @@ private static void addOrder(Cafe esql, String login, String chosenItem) throws
       switch(choice) {
          case "y": anotherItem = true; break; // Add another item
          case "n": // Don't add another item and create order
-            query = String.format("INSERT INTO Orders (login, paid, timeStampRecieved, total) VALUES ('%s','%s','%s','%s')"
-                                     , login, "false", "now()", String.valueOf(total));
-            esql.executeUpdate(query);
+            run = false;
+            if(items.isEmpty()) {
+               System.out.println("Order is empty!");
+               break;
+            }
+            // Total is computed from the current prices when the order is stored
+            long journaled = 0;
+            if(journal != null) { // Recorded locally, placed in the background once the database has it
+               journaled = journal.checkout(login, items);
+            } else {
+               orderID = esql.repository().checkout(login, items);
+            }
+            if(popularity != null)
+               popularity.record(login, items, journaled);
+            if(orderID == -1) {
+               System.out.println("Order Recorded! It is placed in the background and shows up in your orders shortly (Not Paid)");
+               break;
+            }
             System.out.println("Order Successfully Placed! (Not Paid)");
             System.out.println("");
 
             // Print current user's orders
             System.out.println("YOUR ORDERS");
-            System.out.println("orderid \t paid (t/f) \t timeStampRecieved \t total");
-            query = String.format("SELECT orderid, paid, timeStampRecieved, total FROM Orders WHERE login = '%s'", login);
-            result = esql.executeQueryAndReturnResult(query);
-            printAndNumberResult(result, 4);
+            printAndNumberResult(esql.repository().ordersOf(login), 4, "orderid", "paid (t/f)", "timeStampRecieved", "total");
 
             // Wait for Enter to continue
             System.out.println("(press Enter key to continue)");
             try {System.in.read();} catch(Exception e) {}
-            run = false;
             break;
         default: System.out.println("Unrecognized Choice"); break; // Other
       }
    }
+   return orderID;
 } 
 } //end Cafe
\ No newline at end of file
@@ -0,0 +1,254 @@
+package src;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Micro-benchmark of the ordering workload against a CafeRepository.
+ *
+ * Each thread plays a register that first signs up and logs in its customers,
+ * then serves them in turn: it browses
+ * a menu type, checks out a small order, lists the customer's orders, and pays
+ * or cancels the order. Running
+ * the same workload against the in-memory engine and against PostgreSQL
+ * separates the application overhead from the database overhead.
+ *
+ * With --rtt, --jitter, --bandwidth or --drop the jdbc engine connects through
+ * a LatencyProxy simulating that network, and the report adds the round trips
+ * of each operation (exact with --threads 1, where no other register talks at
+ * the same time). With --contention true it samples the lock waits of the run
+ * with a ContentionMonitor and prints its report. The users the jdbc engine
+ * signs up (login prefix bench_) are deleted with their orders at the end of
+ * the run.
+ *
+ * Usage:
+ *   java -cp classes:lib/postgresql-42.4.0.jar src.CafeBench [--engine memory|jdbc]
+ *        [--threads N] [--orders N] [--customers N] [--db dbname --port port --user user [--password password]]
+ *        [--rtt ms] [--jitter ms] [--bandwidth bytes/s] [--drop probability] [--contention true]
+ */
+public class CafeBench {
+
+   // latencies in nanoseconds recorded per operation
+   private final Map<String, List<Long>> latencies = new ConcurrentHashMap<String, List<Long>>();
+   // round trips recorded per operation, when running through a proxy with one thread
+   private final Map<String, AtomicLong> roundTrips = new ConcurrentHashMap<String, AtomicLong>();
+   private final LatencyProxy proxy;
+
+   CafeBench(LatencyProxy proxy) {
+      this.proxy = proxy;
+   }
+
+   public static void main(String[] args) throws Exception {
+      Map<String, String> options = parseOptions(args);
+      String engine = options.getOrDefault("engine", "memory");
+      int threads = Integer.parseInt(options.getOrDefault("threads", "4"));
+      int orders = Integer.parseInt(options.getOrDefault("orders", "10000"));
+      int customers = Integer.parseInt(options.getOrDefault("customers", "50"));
+
+      LatencyProxy.Conditions conditions = LatencyProxy.Conditions.fromOptions(options);
+      LatencyProxy proxy = null;
+      ContentionMonitor monitor = null;
+      List<CafeRepository> repositories = new ArrayList<CafeRepository>();
+      List<Cafe> sessions = new ArrayList<Cafe>();
+      if(engine.equals("memory")) {
+         CafeRepository shared = new InMemoryCafeRepository();
+         seedMenu(shared);
+         for(int i = 0; i < threads; i++)
+            repositories.add(shared);
+      } else if(engine.equals("jdbc")) {
+         String port = options.get("port");
+         if(conditions != null) {
+            proxy = new LatencyProxy("localhost", Integer.parseInt(port), 0, conditions);
+            port = String.valueOf(proxy.port());
+         }
+         // One connection per register, like separate Cafe processes
+         for(int i = 0; i < threads; i++) {
+            Cafe esql = new Cafe(options.get("db"), port, options.get("user"),
+                                 options.getOrDefault("password", ""));
+            sessions.add(esql);
+            repositories.add(esql.repository());
+         }
+         if(Boolean.parseBoolean(options.get("contention"))) {
+            // Sampled directly, not through the proxy
+            monitor = new ContentionMonitor(Collections.singletonList(
+               new Cafe(options.get("db"), options.get("port"), options.get("user"), options.getOrDefault("password", ""))));
+            monitor.start();
+         }
+      } else {
+         System.err.println("Unknown engine: " + engine);
+         return;
+      }
+
+      CafeBench bench = new CafeBench(threads == 1 ? proxy : null);
+      long elapsed;
+      try {
+         elapsed = bench.run(repositories, orders, customers);
+      } finally {
+         if(!sessions.isEmpty())
+            removeBenchRows(sessions.get(0));
+         for(Cafe esql : sessions)
+            esql.cleanup();
+      }
+      System.out.println(String.format("%s engine, %d thread(s), %d order(s) in %.1f ms (%.0f orders/s)",
+         engine, threads, orders, elapsed / 1e6, orders / (elapsed / 1e9)));
+      bench.report();
+      if(monitor != null) {
+         monitor.stop();
+         System.out.println();
+         for(String line : monitor.report())
+            System.out.println(line);
+         monitor.close();
+      }
+      if(proxy != null) {
+         for(String line : proxy.stats())
+            System.out.println(line);
+         proxy.close();
+      }
+   }
+
+   // Deletes the users the jdbc engine signed up and their orders, whose items go by cascade
+   static void removeBenchRows(Cafe esql) throws Exception {
+      esql.report(() -> {
+         esql.executeUpdate("DELETE FROM Orders WHERE login LIKE 'bench\\_%'");
+         esql.executeUpdate("DELETE FROM Users WHERE login LIKE 'bench\\_%'");
+         return null;
+      });
+   }
+
+   // Parses --name value pairs; an option without a value, e.g. --record, is "true"
+   static Map<String, String> parseOptions(String[] args) {
+      Map<String, String> options = new HashMap<String, String>();
+      for(int i = 0; i < args.length; i++) {
+         if(!args[i].startsWith("--"))
+            throw new IllegalArgumentException("Expected an option, got " + args[i]);
+         boolean flag = i + 1 == args.length || args[i + 1].startsWith("--");
+         options.put(args[i].substring(2), flag ? "true" : args[++i]);
+      }
+      return options;
+   }
+
+   // A small menu for the in-memory engine
+   static void seedMenu(CafeRepository repository) throws Exception {
+      String[] types = {"Drinks", "Sweets", "Soup"};
+      for(int i = 0; i < 60; i++) {
+         repository.putMenuItem("Item " + i, types[i % types.length],
+                                new BigDecimal(100 + i).movePointLeft(2), "", "");
+      }
+   }
+
+   /**
+    * Runs the workload, splitting the orders over one thread per repository.
+    *
+    * @param customers number of customers served by each register
+    * @return the elapsed wall time in nanoseconds
+    */
+   long run(List<CafeRepository> repositories, int orders, int customers) throws Exception {
+      int threads = repositories.size();
+      CountDownLatch start = new CountDownLatch(1);
+      CountDownLatch done = new CountDownLatch(threads);
+      List<Throwable> failures = new ArrayList<Throwable>();
+      for(int t = 0; t < threads; t++) {
+         CafeRepository repository = repositories.get(t);
+         String prefix = "bench_" + t + "_" + System.nanoTime() + "_";
+         int share = orders / threads + (t < orders % threads ? 1 : 0);
+         Thread thread = new Thread(() -> {
+            try {
+               start.await();
+               register(repository, prefix, customers, share, new Random(prefix.hashCode()));
+            } catch(Throwable e) {
+               synchronized(failures) {
+                  failures.add(e);
+               }
+            } finally {
+               done.countDown();
+            }
+         }, "register-" + t);
+         thread.start();
+      }
+      long begin = System.nanoTime();
+      start.countDown();
+      done.await();
+      long elapsed = System.nanoTime() - begin;
+      for(Throwable failure : failures)
+         System.err.println(failure);
+      return elapsed;
+   }
+
+   // One register placing orders for its customers in turn
+   private void register(CafeRepository repository, String prefix, int customers, int orders, Random random) throws Exception {
+      for(int c = 0; c < customers; c++) {
+         String login = prefix + c;
+         time("createUser", () -> { repository.createUser(login, "bench", null); return null; });
+         time("login", () -> repository.checkCredentials(login, "bench"));
+      }
+      List<List<String>> types = time("menuTypes", repository::menuTypes);
+      for(int i = 0; i < orders; i++) {
+         String login = prefix + (i % customers);
+         String type = types.get(random.nextInt(types.size())).get(0);
+         List<List<String>> items = time("itemsOfType", () -> repository.itemsOfType(type));
+         Map<String, Integer> order = new LinkedHashMap<String, Integer>();
+         int count = 1 + random.nextInt(3);
+         for(int j = 0; j < count; j++)
+            order.merge(items.get(random.nextInt(items.size())).get(0), 1 + random.nextInt(2), Integer::sum);
+         for(String itemName : order.keySet())
+            time("price", () -> repository.price(itemName));
+         int orderid = time("checkout", () -> repository.checkout(login, order));
+         time("ordersOf", () -> repository.ordersOf(login));
+         if(random.nextInt(4) == 0)
+            time("cancel", () -> repository.cancel(orderid));
+         else
+            time("pay", () -> repository.pay(orderid));
+      }
+   }
+
+   interface Operation<T> {
+      T run() throws Exception;
+   }
+
+   private <T> T time(String name, Operation<T> operation) throws Exception {
+      long trips = proxy == null ? 0 : proxy.roundTrips();
+      long begin = System.nanoTime();
+      T result = operation.run();
+      long latency = System.nanoTime() - begin;
+      if(proxy != null)
+         roundTrips.computeIfAbsent(name, n -> new AtomicLong()).addAndGet(proxy.roundTrips() - trips);
+      List<Long> samples = latencies.computeIfAbsent(name, n -> new ArrayList<Long>());
+      synchronized(samples) {
+         samples.add(latency);
+      }
+      return result;
+   }
+
+   // Prints count and latency percentiles per operation, and round trips when measured
+   void report() {
+      System.out.println(String.format("%-12s %10s %10s %10s %10s %10s", "operation", "count", "p50 us", "p90 us", "p99 us", "max us")
+                         + (proxy == null ? "" : String.format(" %11s", "round trips")));
+      for(String name : new TreeSet<String>(latencies.keySet())) {
+         List<Long> samples = latencies.get(name);
+         long[] sorted;
+         synchronized(samples) {
+            sorted = samples.stream().mapToLong(Long::longValue).toArray();
+         }
+         Arrays.sort(sorted);
+         System.out.println(String.format("%-12s %10d %10.1f %10.1f %10.1f %10.1f", name, sorted.length,
+            percentile(sorted, 0.50) / 1e3, percentile(sorted, 0.90) / 1e3,
+            percentile(sorted, 0.99) / 1e3, sorted[sorted.length - 1] / 1e3) +
+            (proxy == null ? "" : String.format(" %11.1f", (double) roundTrips.get(name).get() / sorted.length)));
+      }
+   }
+
+   private static long percentile(long[] sorted, double p) {
+      return sorted[Math.min(sorted.length - 1, (int) Math.floor(p * sorted.length))];
+   }
+}
@@ -0,0 +1,146 @@
+package src;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Data access for users, the menu, orders, item statuses and favorites.
+ *
+ * Records are returned as lists of attribute values in the same form as
+ * Cafe.executeQueryAndReturnResult, so the screens can print them unchanged.
+ * JdbcCafeRepository talks to PostgreSQL; InMemoryCafeRepository keeps
+ * everything in process for tests and benchmarks.
+ */
+public interface CafeRepository {
+
+   // status of the items of a freshly placed order
+   String NEW_ITEM_STATUS = "Hasn't started";
+
+   // Users columns updateProfileField may change
+   List<String> PROFILE_FIELDS = Arrays.asList("phonenum", "login", "password");
+
+   // Prepares the engine for the first requests, e.g. by preparing hot statements
+   default void warmUp() throws SQLException {
+   }
+
+   // USERS
+
+   /**
+    * Creates a customer with no favorites. The password is stored as a
+    * PasswordHasher hash.
+    *
+    * @throws java.sql.SQLException when the login or phone number is taken
+    */
+   void createUser(String login, String password, String phoneNum) throws SQLException;
+
+   // Checks a login/password pair, upgrading the stored password to a current hash
+   default boolean checkCredentials(String login, String password) throws SQLException {
+      return PasswordHasher.check(this, login, password);
+   }
+
+   /**
+    * @return the stored password of a user (a PasswordHasher hash, or the
+    *         plaintext of users from before hashing), null for an unknown user
+    */
+   String credential(String login) throws SQLException;
+
+   /**
+    * Replaces the stored password of a user if it is still the expected one.
+    * The profile version stays as it is.
+    *
+    * @return whether the password was replaced
+    */
+   boolean replaceCredential(String login, String expected, String replacement) throws SQLException;
+
+   // Checks if user is a manager
+   boolean isManager(String login) throws SQLException;
+
+   // Changes the type (Customer, Employee, Manager) of a user and moves its profile version on
+   void setUserType(String login, String type) throws SQLException;
+
+   /**
+    * @return the record (login, phoneNum, password, type, version) of a user, null for an unknown user;
+    *         the password is the stored hash
+    */
+   List<String> profile(String login) throws SQLException;
+
+   /**
+    * Changes one profile field if the profile is still at the version it was
+    * read at, and moves the version on.
+    *
+    * @param field one of PROFILE_FIELDS; a new password is stored as a PasswordHasher hash
+    * @param version the version of the profile the new value is based on
+    * @return the record (old value, new value, new version), null when the user
+    *         is unknown or the profile was changed since that version
+    * @throws java.sql.SQLException when the field is not editable or the value is rejected
+    */
+   List<String> updateProfileField(String login, String field, String value, int version) throws SQLException;
+
+   // FAVORITES
+
+   /**
+    * @return the comma separated favorite items of a user, null for an unknown user
+    */
+   String getFavorites(String login) throws SQLException;
+
+   // Replaces the comma separated favorite items of a user
+   void setFavorites(String login, String favItems) throws SQLException;
+
+   // MENU
+
+   // Distinct item types
+   List<List<String>> menuTypes() throws SQLException;
+
+   // Records of (itemName, price, description) of one type
+   List<List<String>> itemsOfType(String type) throws SQLException;
+
+   /**
+    * @return the price of an item, null for an unknown item
+    */
+   BigDecimal price(String itemName) throws SQLException;
+
+   // Inserts an item, or replaces the columns of an existing one
+   void putMenuItem(String itemName, String type, BigDecimal price, String description, String imageURL) throws SQLException;
+
+   // Deletes an item and, by cascade, its item statuses
+   boolean deleteMenuItem(String itemName) throws SQLException;
+
+   // ORDERS
+
+   /**
+    * Places an unpaid order atomically: the total is computed from the current
+    * prices and the order is stored together with one item status per item.
+    *
+    * @param login the ordering user
+    * @param items quantity per item name
+    * @return the new orderid
+    * @throws java.sql.SQLException when an item is unknown or the order could not be stored;
+    *         nothing is stored in that case
+    */
+   int checkout(String login, Map<String, Integer> items) throws SQLException;
+
+   // Records of (orderid, paid, timeStampRecieved, total) of a user, oldest first
+   List<List<String>> ordersOf(String login) throws SQLException;
+
+   /**
+    * @return whether an order is paid, null for an unknown order
+    */
+   Boolean isPaid(int orderid) throws SQLException;
+
+   // Marks an order paid; false for an unknown order
+   boolean pay(int orderid) throws SQLException;
+
+   // Deletes an order and, by cascade, its item statuses; false for an unknown order
+   boolean cancel(int orderid) throws SQLException;
+
+   // ITEM STATUS
+
+   // Records of (itemName, quantity, status, lastUpdated, comments) of an order
+   List<List<String>> itemsOfOrder(int orderid) throws SQLException;
+
+   // Updates the kitchen status of one item of an order; false when there is no such item
+   boolean updateItemStatus(int orderid, String itemName, String status, String comments) throws SQLException;
+}
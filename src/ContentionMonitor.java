@@ -0,0 +1,367 @@
+package src;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import src.AdmissionController.OperationClass;
+
+/**
+ * Samples lock waits while the application is under load and reports where
+ * they come from.
+ *
+ * Every SAMPLE_MILLIS, one query per database joins pg_stat_activity with the
+ * ungranted pg_locks of each waiting session and with the session blocking it
+ * (pg_blocking_pids). Waiting and blocking statements are attributed to the
+ * operation of the application that runs them (payOrder, cancelOrder,
+ * addOrder, kitchenUpdate, deleteItem, ...) by their shape, and waits are
+ * counted per operation and wait event, per blocking operation, per table
+ * (partitions count as their parent) and per row when PostgreSQL queued the
+ * waiter on a tuple lock. A session seen waiting in a sample stands for about
+ * SAMPLE_MILLIS of waiting.
+ *
+ * Waits inside foreign key triggers show the statement that fired them: a
+ * deleteItem waiting on ItemStatus is its ON DELETE CASCADE, an addOrder
+ * waiting on Menu is the key check of its items. Row activity and deadlocks
+ * are taken from pg_stat_user_tables and pg_stat_database at start and stop.
+ *
+ * The sampling interval is read from -Dcafe.contention.sampleMillis (100).
+ */
+public class ContentionMonitor implements AutoCloseable {
+
+   static final long SAMPLE_MILLIS = Long.getLong("cafe.contention.sampleMillis", 100);
+   // rows listed in the report
+   static final int TOP_ROWS = 10;
+
+   // columns naming a row of each table in the report; nothing else of a row is shown
+   static final Map<String, String[]> KEY_COLUMNS = new LinkedHashMap<String, String[]>();
+   static {
+      KEY_COLUMNS.put("orders", new String[] {"orderid"});
+      KEY_COLUMNS.put("itemstatus", new String[] {"orderid", "itemName"});
+      KEY_COLUMNS.put("users", new String[] {"login"});
+      KEY_COLUMNS.put("menu", new String[] {"itemName"});
+   }
+
+   // operations of the application by the shape of their statements, first match wins
+   static final Map<String, Pattern> OPERATIONS = new LinkedHashMap<String, Pattern>();
+   static {
+      OPERATIONS.put("payOrder", Pattern.compile("^update orders set paid = true"));
+      OPERATIONS.put("sweeper", Pattern.compile("^delete from orders where paid = false"));
+      OPERATIONS.put("cancelOrder", Pattern.compile("^delete from orders where orderid"));
+      OPERATIONS.put("addOrder", Pattern.compile("^insert into (?:orders|itemstatus)\\b"));
+      OPERATIONS.put("kitchenUpdate", Pattern.compile("^update itemstatus\\b"));
+      OPERATIONS.put("deleteItem", Pattern.compile("^delete from menu\\b"));
+      OPERATIONS.put("updateItem", Pattern.compile("^(?:update menu|insert into menu)\\b"));
+      OPERATIONS.put("journalReplay", Pattern.compile("\\border_journal_applied\\b"));
+      OPERATIONS.put("updateProfile", Pattern.compile("^update users\\b"));
+      OPERATIONS.put("read", Pattern.compile("^select\\b"));
+   }
+
+   // Every waiting client session with the lock it waits for and its first blocker
+   private static final String SAMPLE =
+      "SELECT w.wait_event_type, w.wait_event, w.query, l.locktype, l.mode, l.relation::regclass::text, " +
+             "l.page, l.tuple, b.query, b.state " +
+      "FROM pg_stat_activity w " +
+      "LEFT JOIN LATERAL (SELECT * FROM pg_locks l WHERE l.pid = w.pid AND NOT l.granted LIMIT 1) l ON true " +
+      "LEFT JOIN pg_stat_activity b ON b.pid = (pg_blocking_pids(w.pid))[1] " +
+      "WHERE w.datname = current_database() AND w.pid <> pg_backend_pid() AND w.backend_type = 'client backend' " +
+        "AND w.state = 'active' AND w.wait_event_type IS NOT NULL AND w.wait_event_type <> 'Client'";
+   private static final String TABLE_STATS =
+      "SELECT relname, n_tup_ins, n_tup_upd, n_tup_hot_upd, n_tup_del, n_dead_tup FROM pg_stat_user_tables";
+   private static final String DEADLOCKS = "SELECT deadlocks FROM pg_stat_database WHERE datname = current_database()";
+
+   private static final Pattern TARGET = Pattern.compile("\\b(?:from|into|update)\\s+([a-z_][\\w.]*)");
+   private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+   private final List<Cafe> databases;
+   private final Connection[] connections;
+   private final ScheduledExecutorService sampler;
+
+   // guarded by this
+   private long samples;
+   private long failedSamples;
+   private final Map<List<String>, Integer> waits = new HashMap<List<String>, Integer>();
+   private final Map<List<String>, Integer> blockers = new HashMap<List<String>, Integer>();
+   private final Map<String, Integer> tableWaits = new HashMap<String, Integer>();
+   // (database, relation, ctid) of rows waited for
+   private final Map<List<String>, Integer> rowWaits = new HashMap<List<String>, Integer>();
+   private final Map<String, long[]> tablesBefore = new HashMap<String, long[]>();
+   private final Map<String, long[]> tablesAfter = new HashMap<String, long[]>();
+   private long deadlocksBefore;
+   private long deadlocksAfter;
+   private long startedAt;
+   private long stoppedAt;
+
+   /**
+    * @param databases the databases to sample, e.g. every shard
+    */
+   public ContentionMonitor(List<Cafe> databases) {
+      this.databases = databases;
+      this.connections = new Connection[databases.size()];
+      this.sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread thread = new Thread(r, "contention-monitor");
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   /**
+    * Takes the first table statistics and starts sampling in the background.
+    *
+    * @throws java.sql.SQLException when a database could not be read
+    */
+   public synchronized void start() throws SQLException {
+      deadlocksBefore = tableStats(tablesBefore);
+      startedAt = System.nanoTime();
+      sampler.scheduleAtFixedRate(this::sampleQuietly, 0, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Stops sampling and takes the last table statistics.
+    *
+    * @throws java.sql.SQLException when a database could not be read
+    */
+   public void stop() throws SQLException {
+      sampler.shutdown();
+      try {
+         sampler.awaitTermination(10, TimeUnit.SECONDS);
+      } catch(InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      synchronized(this) {
+         stoppedAt = System.nanoTime();
+         deadlocksAfter = tableStats(tablesAfter);
+      }
+   }
+
+   /**
+    * Records the sessions waiting right now.
+    *
+    * @throws java.sql.SQLException when a database could not be read
+    */
+   public synchronized void sample() throws SQLException {
+      samples++;
+      for(int i = 0; i < databases.size(); i++) {
+         try (Statement stmt = connection(i).createStatement()) {
+            stmt.setQueryTimeout(OperationClass.READ.timeoutSeconds);
+            try (ResultSet rs = stmt.executeQuery(SAMPLE)) {
+               while(rs.next())
+                  record(i, rs);
+            }
+         } catch(SQLException e) {
+            closeConnection(i);
+            throw e;
+         }
+      }
+   }
+
+   // Counts one waiting session of database i
+   private void record(int i, ResultSet rs) throws SQLException {
+      String query = rs.getString(3);
+      String operation = operationOf(query);
+      String event = rs.getString(1) + ":" + rs.getString(2);
+      waits.merge(Arrays.asList(operation, event), 1, Integer::sum);
+      if(rs.getString(9) != null) {
+         // A blocker idle in a transaction finished its statement but not its transaction
+         String blocker = operationOf(rs.getString(9)) + ("idle in transaction".equals(rs.getString(10)) ? " (idle)" : "");
+         blockers.merge(Arrays.asList(operation, blocker), 1, Integer::sum);
+      }
+      if(!"Lock".equals(rs.getString(1)))
+         return;
+      // Transaction id waits name no relation; they wait for rows of the table the statement writes
+      String relation = rs.getString(6);
+      String table = relation != null ? relation : targetOf(query);
+      if(table != null)
+         tableWaits.merge(QueryCache.table(table.toLowerCase(Locale.ROOT)), 1, Integer::sum);
+      if("tuple".equals(rs.getString(4)) && relation != null)
+         rowWaits.merge(Arrays.asList(String.valueOf(i), relation, "(" + rs.getInt(7) + "," + rs.getInt(8) + ")"),
+                        1, Integer::sum);
+   }
+
+   // The operation running a statement, or its shape when it is none of OPERATIONS
+   static String operationOf(String query) {
+      String shape = WHITESPACE.matcher(QueryLog.shapeOf(query == null ? "" : query).toLowerCase(Locale.ROOT))
+                     .replaceAll(" ");
+      for(Map.Entry<String, Pattern> operation : OPERATIONS.entrySet()) {
+         if(operation.getValue().matcher(shape).find())
+            return operation.getKey();
+      }
+      return shape.length() > 40 ? shape.substring(0, 40) + "..." : shape;
+   }
+
+   // The table a statement writes, or reads first
+   private static String targetOf(String query) {
+      Matcher matcher = TARGET.matcher(query == null ? "" : query.toLowerCase(Locale.ROOT));
+      return matcher.find() ? matcher.group(1) : null;
+   }
+
+   // Row counters per table summed over the databases, partitions added to their table; returns the deadlocks
+   private long tableStats(Map<String, long[]> stats) throws SQLException {
+      stats.clear();
+      long deadlocks = 0;
+      for(int i = 0; i < databases.size(); i++) {
+         try (Statement stmt = connection(i).createStatement()) {
+            stmt.setQueryTimeout(OperationClass.READ.timeoutSeconds);
+            try (ResultSet rs = stmt.executeQuery(TABLE_STATS)) {
+               while(rs.next()) {
+                  long[] counters = stats.computeIfAbsent(QueryCache.table(rs.getString(1).toLowerCase(Locale.ROOT)),
+                                                          t -> new long[5]);
+                  for(int c = 0; c < counters.length; c++)
+                     counters[c] += rs.getLong(c + 2);
+               }
+            }
+            try (ResultSet rs = stmt.executeQuery(DEADLOCKS)) {
+               if(rs.next())
+                  deadlocks += rs.getLong(1);
+            }
+         } catch(SQLException e) {
+            closeConnection(i);
+            throw e;
+         }
+      }
+      return deadlocks;
+   }
+
+   // The sampling connection of database i
+   private Connection connection(int i) throws SQLException {
+      if(connections[i] == null)
+         connections[i] = databases.get(i).openConnection();
+      return connections[i];
+   }
+
+   private void sampleQuietly() {
+      try {
+         sample();
+      } catch(Exception e) {
+         // the next sample tries again
+         synchronized(this) {
+            failedSamples++;
+         }
+      }
+   }
+
+   /**
+    * The contention report: waits per operation and wait event with their
+    * main blocker, waits and row activity per table, and the rows waited for
+    * most with their current key.
+    */
+   public synchronized List<String> report() {
+      List<String> lines = new ArrayList<String>();
+      long end = stoppedAt != 0 ? stoppedAt : System.nanoTime();
+      lines.add(String.format("%d sample(s) over %.1f s, one every %d ms%s; %d deadlock(s)", samples,
+         (end - startedAt) / 1e9, SAMPLE_MILLIS, failedSamples == 0 ? "" : " (" + failedSamples + " failed)",
+         deadlocksAfter - deadlocksBefore));
+
+      lines.add("");
+      lines.add("WAITS BY OPERATION");
+      lines.add(String.format("%-16s %-28s %8s %9s  %s", "operation", "wait event", "samples", "est. ms", "blocked most by"));
+      for(Map.Entry<List<String>, Integer> wait : sorted(waits)) {
+         String operation = wait.getKey().get(0);
+         lines.add(String.format("%-16s %-28s %8d %9d  %s", operation, wait.getKey().get(1), wait.getValue(),
+                                 wait.getValue() * SAMPLE_MILLIS, topBlocker(operation)));
+      }
+
+      lines.add("");
+      lines.add("TABLES");
+      lines.add(String.format("%-12s %10s %9s %9s %9s %9s %10s", "table", "lock waits", "inserts", "updates",
+                              "hot upd", "deletes", "dead rows"));
+      List<String> tables = new ArrayList<String>(tablesBefore.keySet());
+      tables.sort((a, b) -> Integer.compare(tableWaits.getOrDefault(b, 0), tableWaits.getOrDefault(a, 0)));
+      for(String table : tables) {
+         long[] before = tablesBefore.get(table);
+         long[] after = tablesAfter.getOrDefault(table, before);
+         if(tableWaits.getOrDefault(table, 0) == 0 && Arrays.equals(before, after))
+            continue;
+         lines.add(String.format("%-12s %10d %9d %9d %9d %9d %10d", table, tableWaits.getOrDefault(table, 0),
+            after[0] - before[0], after[1] - before[1], after[2] - before[2], after[3] - before[3], after[4]));
+      }
+
+      lines.add("");
+      lines.add("HOTTEST ROWS");
+      List<Map.Entry<List<String>, Integer>> rows = sorted(rowWaits);
+      if(rows.isEmpty())
+         lines.add("no waits on a specific row were sampled");
+      for(Map.Entry<List<String>, Integer> row : rows.subList(0, Math.min(TOP_ROWS, rows.size()))) {
+         List<String> key = row.getKey();
+         lines.add(String.format("%-24s %-10s %6d  %s", key.get(1), key.get(2), row.getValue(),
+                                 currentRow(Integer.parseInt(key.get(0)), key.get(1), key.get(2))));
+      }
+      return lines;
+   }
+
+   // The operation that blocked an operation most often, with its share of the samples
+   private String topBlocker(String operation) {
+      String top = "";
+      int count = 0;
+      int total = 0;
+      for(Map.Entry<List<String>, Integer> blocker : blockers.entrySet()) {
+         if(!blocker.getKey().get(0).equals(operation))
+            continue;
+         total += blocker.getValue();
+         if(blocker.getValue() > count) {
+            top = blocker.getKey().get(1);
+            count = blocker.getValue();
+         }
+      }
+      return total == 0 ? "" : String.format("%s (%d of %d)", top, count, total);
+   }
+
+   // The key of the row at a ctid as it is now; it may have moved since it was waited for
+   private String currentRow(int database, String relation, String ctid) {
+      String[] columns = KEY_COLUMNS.get(QueryCache.table(relation.toLowerCase()));
+      if(columns == null)
+         return "";
+      try (PreparedStatement stmt = connection(database).prepareStatement(
+            "SELECT " + String.join(", ", columns) + " FROM " + relation + " WHERE ctid = ?::tid")) {
+         stmt.setQueryTimeout(OperationClass.READ.timeoutSeconds);
+         stmt.setString(1, ctid);
+         try (ResultSet rs = stmt.executeQuery()) {
+            if(!rs.next())
+               return "(row moved or deleted since)";
+            List<String> key = new ArrayList<String>();
+            for(int i = 0; i < columns.length; i++)
+               key.add(columns[i] + "=" + (rs.getString(i + 1) == null ? "null" : rs.getString(i + 1).trim()));
+            return String.join(" ", key);
+         }
+      } catch(SQLException e) {
+         return "(" + e.getMessage() + ")";
+      }
+   }
+
+   private static <K> List<Map.Entry<K, Integer>> sorted(Map<K, Integer> counts) {
+      List<Map.Entry<K, Integer>> entries = new ArrayList<Map.Entry<K, Integer>>(counts.entrySet());
+      entries.sort(Collections.reverseOrder(Map.Entry.comparingByValue()));
+      return entries;
+   }
+
+   private void closeConnection(int i) {
+      try {
+         if(connections[i] != null)
+            connections[i].close();
+      } catch(SQLException e) {
+         // ignored
+      }
+      connections[i] = null;
+   }
+
+   @Override
+   public void close() {
+      sampler.shutdownNow();
+      for(int i = 0; i < connections.length; i++)
+         closeConnection(i);
+   }
+}
@@ -0,0 +1,145 @@
+package src;
+
+import java.sql.SQLException;
+import java.time.YearMonth;
+
+/**
+ * Fills a scratch copy of the application tables with a synthetic,
+ * production-sized dataset so that query plans can be judged at realistic
+ * volumes without touching the live tables.
+ *
+ * open() creates the schema SCHEMA with empty copies of Users, Menu, Orders and
+ * ItemStatus: their columns, defaults, indexes and monthly partitioning, but
+ * neither foreign keys nor triggers, so nothing there bumps the live menu
+ * version. It returns a session whose unqualified table names resolve to the
+ * scratch tables. clear() drops the schema again; callers run it in a finally
+ * block. One scratch copy exists per database, so only one process uses it at a
+ * time. Seeded rows carry the seed_ prefix, seeded users can never log in
+ * (their password is locked, see PasswordHasher.LOCKED) and none of them is a
+ * manager.
+ *
+ * Per unit of scale: 1000 users (10% employees), 100 menu items
+ * spread over 50 types, and 20000 orders of the past year with two items each.
+ */
+public class DataSeeder {
+
+   static final int USERS_PER_SCALE = 1000;
+   static final int ITEMS_PER_SCALE = 100;
+   static final int ORDERS_PER_SCALE = 20000;
+
+   // schema holding the scratch copy of the application tables
+   static final String SCHEMA = "cafe_scratch";
+
+   private final Cafe esql;
+   // session on the scratch schema, null unless open
+   private Cafe scratch;
+
+   /**
+    * @param esql the application, whose database receives the scratch schema
+    */
+   public DataSeeder(Cafe esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Creates the scratch schema, replacing one an interrupted run left behind,
+    * and opens a session on it.
+    *
+    * @param copyRows whether to copy the live rows, e.g. so that recorded statements find their values
+    * @return the session on the scratch schema, closed by clear()
+    * @throws java.sql.SQLException when the schema could not be created
+    */
+   public Cafe open(boolean copyRows) throws SQLException {
+      String live = esql.executeQueryAndReturnResult("SELECT current_schema()").get(0).get(0);
+      esql.executeUpdate(String.format("DROP SCHEMA IF EXISTS %s CASCADE", SCHEMA));
+      esql.executeUpdate(String.format("CREATE SCHEMA %s", SCHEMA));
+      for(String table : new String[] {"Users", "Menu"})
+         esql.executeUpdate(String.format("CREATE TABLE %s.%s (LIKE %s.%s INCLUDING ALL)", SCHEMA, table, live, table));
+      esql.executeUpdate(String.format("CREATE TABLE %s.Orders (LIKE %s.Orders INCLUDING ALL) " +
+                                       "PARTITION BY RANGE (timeStampRecieved)", SCHEMA, live));
+      esql.executeUpdate(String.format("CREATE TABLE %s.ItemStatus (LIKE %s.ItemStatus INCLUDING ALL) " +
+                                       "PARTITION BY RANGE (orderTimeStamp)", SCHEMA, live));
+      esql.executeUpdate(String.format("CREATE TABLE %s.Orders_default PARTITION OF %s.Orders DEFAULT", SCHEMA, SCHEMA));
+      esql.executeUpdate(String.format("CREATE TABLE %s.ItemStatus_default PARTITION OF %s.ItemStatus DEFAULT", SCHEMA, SCHEMA));
+      // The copied default of orderid would draw from the live sequence
+      esql.executeUpdate(String.format("CREATE SEQUENCE %s.orders_orderid_seq", SCHEMA));
+      esql.executeUpdate(String.format("ALTER TABLE %s.Orders ALTER COLUMN orderid SET DEFAULT nextval('%s.orders_orderid_seq')",
+                                       SCHEMA, SCHEMA));
+      if(copyRows) {
+         for(String table : new String[] {"Users", "Menu", "Orders", "ItemStatus"})
+            esql.executeUpdate(String.format("INSERT INTO %s.%s SELECT * FROM %s.%s", SCHEMA, table, live, table));
+         esql.executeQuery(String.format("SELECT setval('%s.orders_orderid_seq', coalesce(max(orderid), 0) + 1, false) " +
+                                         "FROM %s.Orders", SCHEMA, SCHEMA));
+      }
+      scratch = esql.openSession(SCHEMA);
+      // Copied orders move out of the default partitions like the live history did
+      new PartitionManager(scratch).ensureHistoryPartitions();
+      analyze();
+      return scratch;
+   }
+
+   /**
+    * Inserts the seeded rows into the scratch tables and refreshes the planner
+    * statistics.
+    *
+    * @param scale size multiplier, at least 1
+    * @throws java.sql.SQLException when the rows could not be inserted
+    */
+   public void seed(int scale) throws SQLException {
+      if(scratch == null)
+         throw new SQLException("The scratch schema is not open");
+      int users = USERS_PER_SCALE * scale;
+      int items = ITEMS_PER_SCALE * scale;
+      int orders = ORDERS_PER_SCALE * scale;
+
+      // Spread the year of orders over monthly partitions
+      PartitionManager partitions = new PartitionManager(scratch);
+      for(int i = 1; i <= 12; i++)
+         partitions.createPartitions(YearMonth.now().minusMonths(i));
+
+      scratch.executeUpdate(String.format(
+         "INSERT INTO Users (login, phoneNum, password, favItems, type) " +
+         "SELECT 'seed_user_' || g, NULL, '%s', '', " +
+         "       (CASE WHEN g %% 10 = 0 THEN 'Employee' ELSE 'Customer' END)::user_type " +
+         "FROM generate_series(1, %d) g ON CONFLICT DO NOTHING", PasswordHasher.LOCKED, users));
+      scratch.executeUpdate(String.format(
+         "INSERT INTO Menu (itemName, type, price, description, imageURL) " +
+         "SELECT 'seed_item_' || g, 'SeedType' || (g %% 50), round((1 + random() * 20)::numeric, 2), 'Seeded item ' || g, '' " +
+         "FROM generate_series(1, %d) g ON CONFLICT DO NOTHING", items));
+      int lastOrderid = Integer.parseInt(scratch.executeQueryAndReturnResult(
+         "SELECT coalesce(max(orderid), 0) FROM Orders").get(0).get(0));
+      scratch.executeUpdate(String.format(
+         "INSERT INTO Orders (login, paid, timeStampRecieved, total) " +
+         "SELECT 'seed_user_' || (1 + floor(random() * %d)::int), random() < 0.9, " +
+         "       now() - random() * interval '365 days', round((random() * 30)::numeric, 2) " +
+         "FROM generate_series(1, %d)", users, orders));
+      scratch.executeUpdate(String.format(
+         "WITH menu AS (SELECT array_agg(itemName ORDER BY itemName) AS names, count(*)::int AS n FROM Menu) " +
+         "INSERT INTO ItemStatus (orderid, orderTimeStamp, itemName, lastUpdated, status, comments, quantity) " +
+         "SELECT o.orderid, o.timeStampRecieved, menu.names[1 + (o.orderid * 7 + k) %% menu.n], o.timeStampRecieved, " +
+         "       'Finished', '', 1 " +
+         "FROM Orders o, menu, generate_series(0, 1) k " +
+         "WHERE o.orderid > %d AND o.login LIKE 'seed\\_user\\_%%' ON CONFLICT DO NOTHING", lastOrderid));
+      analyze();
+   }
+
+   // Refreshes the planner statistics of the scratch tables
+   private void analyze() throws SQLException {
+      for(String table : new String[] {"Users", "Menu", "Orders", "ItemStatus"})
+         scratch.executeUpdate("ANALYZE " + table);
+   }
+
+   /**
+    * Closes the scratch session and drops the scratch schema with everything
+    * in it.
+    *
+    * @throws java.sql.SQLException when the schema could not be dropped
+    */
+   public void clear() throws SQLException {
+      if(scratch != null) {
+         scratch.cleanup();
+         scratch = null;
+      }
+      esql.executeUpdate(String.format("DROP SCHEMA IF EXISTS %s CASCADE", SCHEMA));
+   }
+}
@@ -0,0 +1,595 @@
+package src;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * CafeRepository kept entirely in memory, for tests and benchmarks that should
+ * run without PostgreSQL.
+ *
+ * Users and menu items live in concurrent maps. Orders are held in an int
+ * keyed open addressing map with secondary indexes on login and on the time
+ * received. Order changes take the write lock of a read/write lock, so a
+ * checkout, payment or cancellation is seen by readers either completely or
+ * not at all, like a committed transaction.
+ */
+public class InMemoryCafeRepository implements CafeRepository {
+
+   private static final class User {
+      final String login;
+      volatile String password;
+      volatile String phoneNum;
+      volatile String favItems = "";
+      volatile String type = "Customer";
+      volatile int version;
+
+      User(String login) {
+         this.login = login;
+      }
+   }
+
+   private static final class MenuItem {
+      final String itemName;
+      final String type;
+      final BigDecimal price;
+      final String description;
+      final String imageURL;
+
+      MenuItem(String itemName, String type, BigDecimal price, String description, String imageURL) {
+         this.itemName = itemName;
+         this.type = type;
+         this.price = price;
+         this.description = description;
+         this.imageURL = imageURL;
+      }
+   }
+
+   private static final class ItemStatus {
+      final String itemName;
+      final int quantity;
+      String status = NEW_ITEM_STATUS;
+      Timestamp lastUpdated;
+      String comments = "";
+
+      ItemStatus(String itemName, int quantity, Timestamp lastUpdated) {
+         this.itemName = itemName;
+         this.quantity = quantity;
+         this.lastUpdated = lastUpdated;
+      }
+   }
+
+   private static final class Order {
+      final int orderid;
+      final String login;
+      final long received;
+      final BigDecimal total;
+      final List<ItemStatus> items;
+      boolean paid;
+
+      Order(int orderid, String login, long received, BigDecimal total, List<ItemStatus> items) {
+         this.orderid = orderid;
+         this.login = login;
+         this.received = received;
+         this.total = total;
+         this.items = items;
+      }
+
+      List<String> record() {
+         return Arrays.asList(String.valueOf(orderid), paid ? "t" : "f",
+                              new Timestamp(received).toString(), total.toPlainString());
+      }
+   }
+
+   private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<String, User>();
+   private final ConcurrentHashMap<String, String> phoneNums = new ConcurrentHashMap<String, String>();
+   private final ConcurrentHashMap<String, MenuItem> menu = new ConcurrentHashMap<String, MenuItem>();
+
+   // guards orders and its indexes
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+   private final IntObjectMap<Order> orders = new IntObjectMap<Order>();
+   private final Map<String, IntList> ordersByLogin = new LinkedHashMap<String, IntList>();
+   private final NavigableMap<Long, IntList> ordersByTime = new TreeMap<Long, IntList>();
+   private int nextOrderid = 1;
+
+   // USERS
+
+   @Override
+   public void createUser(String login, String password, String phoneNum) throws SQLException {
+      User user = new User(login);
+      user.password = PasswordHasher.hash(password);
+      user.phoneNum = phoneNum;
+      if(phoneNum != null && phoneNums.putIfAbsent(phoneNum, login) != null)
+         throw new SQLException("Phone number already in use: " + phoneNum);
+      if(users.putIfAbsent(login, user) != null) {
+         if(phoneNum != null)
+            phoneNums.remove(phoneNum, login);
+         throw new SQLException("Login already in use: " + login);
+      }
+   }
+
+   @Override
+   public String credential(String login) {
+      User user = users.get(login);
+      if(user == null)
+         return null;
+      synchronized(user) {
+         return user.password;
+      }
+   }
+
+   @Override
+   public boolean replaceCredential(String login, String expected, String replacement) {
+      User user = users.get(login);
+      if(user == null)
+         return false;
+      synchronized(user) {
+         if(users.get(login) != user || !user.password.equals(expected))
+            return false;
+         user.password = replacement;
+         return true;
+      }
+   }
+
+   @Override
+   public boolean isManager(String login) {
+      User user = users.get(login);
+      return user != null && "Manager".equals(user.type);
+   }
+
+   @Override
+   public void setUserType(String login, String type) throws SQLException {
+      if(!Arrays.asList("Customer", "Employee", "Manager").contains(type))
+         throw new SQLException("Invalid user type: " + type);
+      User user = users.get(login);
+      if(user == null)
+         return;
+      synchronized(user) {
+         user.type = type;
+         user.version++;
+      }
+   }
+
+   @Override
+   public List<String> profile(String login) {
+      User user = users.get(login);
+      if(user == null)
+         return null;
+      synchronized(user) {
+         return Arrays.asList(user.login, user.phoneNum, user.password, user.type, String.valueOf(user.version));
+      }
+   }
+
+   @Override
+   public List<String> updateProfileField(String login, String field, String value, int version) throws SQLException {
+      if(!PROFILE_FIELDS.contains(field))
+         throw new SQLException("Not an editable profile field: " + field);
+      if(field.equals("password"))
+         value = PasswordHasher.hash(value);
+      User user = users.get(login);
+      if(user == null)
+         return null;
+      synchronized(user) {
+         if(users.get(login) != user || user.version != version)
+            return null;
+         String old;
+         switch(field) {
+            case "phonenum":
+               old = user.phoneNum;
+               if(value != null && !value.equals(old) && phoneNums.putIfAbsent(value, login) != null)
+                  throw new SQLException("Phone number already in use: " + value);
+               if(old != null && !old.equals(value))
+                  phoneNums.remove(old, login);
+               user.phoneNum = value;
+               break;
+            case "password":
+               old = user.password;
+               user.password = value;
+               break;
+            default: // login, the key of the user
+               old = user.login;
+               if(value.equals(old))
+                  break;
+               User moved = new User(value);
+               moved.password = user.password;
+               moved.phoneNum = user.phoneNum;
+               moved.favItems = user.favItems;
+               moved.type = user.type;
+               moved.version = version + 1;
+               if(users.putIfAbsent(value, moved) != null)
+                  throw new SQLException("Login already in use: " + value);
+               users.remove(login, user);
+               if(moved.phoneNum != null)
+                  phoneNums.replace(moved.phoneNum, login, value);
+               // Holders of the old user see a changed profile
+               user.version++;
+               return Arrays.asList(old, value, String.valueOf(moved.version));
+         }
+         user.version++;
+         return Arrays.asList(old, value, String.valueOf(user.version));
+      }
+   }
+
+   // FAVORITES
+
+   @Override
+   public String getFavorites(String login) {
+      User user = users.get(login);
+      return user == null ? null : user.favItems;
+   }
+
+   @Override
+   public void setFavorites(String login, String favItems) {
+      User user = users.get(login);
+      if(user != null)
+         user.favItems = favItems;
+   }
+
+   // MENU
+
+   @Override
+   public List<List<String>> menuTypes() {
+      TreeSet<String> types = new TreeSet<String>();
+      for(MenuItem item : menu.values())
+         types.add(item.type);
+      List<List<String>> result = new ArrayList<List<String>>();
+      for(String type : types)
+         result.add(new ArrayList<String>(Arrays.asList(type)));
+      return result;
+   }
+
+   @Override
+   public List<List<String>> itemsOfType(String type) {
+      TreeMap<String, MenuItem> items = new TreeMap<String, MenuItem>();
+      for(MenuItem item : menu.values()) {
+         if(item.type.equals(type))
+            items.put(item.itemName, item);
+      }
+      List<List<String>> result = new ArrayList<List<String>>();
+      for(MenuItem item : items.values())
+         result.add(Arrays.asList(item.itemName, item.price.toPlainString(), item.description));
+      return result;
+   }
+
+   @Override
+   public BigDecimal price(String itemName) {
+      MenuItem item = menu.get(itemName);
+      return item == null ? null : item.price;
+   }
+
+   @Override
+   public void putMenuItem(String itemName, String type, BigDecimal price, String description, String imageURL) {
+      menu.put(itemName, new MenuItem(itemName, type, price.setScale(2, RoundingMode.HALF_UP), description, imageURL));
+   }
+
+   @Override
+   public boolean deleteMenuItem(String itemName) {
+      lock.writeLock().lock();
+      try {
+         if(menu.remove(itemName) == null)
+            return false;
+         // ON DELETE CASCADE from Menu to ItemStatus
+         orders.forEach(order -> order.items.removeIf(item -> item.itemName.equals(itemName)));
+         return true;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   // ORDERS
+
+   @Override
+   public int checkout(String login, Map<String, Integer> items) throws SQLException {
+      if(items.isEmpty())
+         throw new SQLException("An order needs at least one item");
+      lock.writeLock().lock();
+      try {
+         long now = System.currentTimeMillis();
+         BigDecimal total = BigDecimal.ZERO;
+         List<ItemStatus> statuses = new ArrayList<ItemStatus>(items.size());
+         for(Map.Entry<String, Integer> item : items.entrySet()) {
+            MenuItem menuItem = menu.get(item.getKey());
+            if(menuItem == null)
+               throw new SQLException("Unknown menu item: " + item.getKey());
+            total = total.add(menuItem.price.multiply(BigDecimal.valueOf(item.getValue())));
+            statuses.add(new ItemStatus(item.getKey(), item.getValue(), new Timestamp(now)));
+         }
+         Order order = new Order(nextOrderid++, login, now, total, statuses);
+         orders.put(order.orderid, order);
+         ordersByLogin.computeIfAbsent(login, l -> new IntList()).add(order.orderid);
+         ordersByTime.computeIfAbsent(now, t -> new IntList()).add(order.orderid);
+         return order.orderid;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   @Override
+   public List<List<String>> ordersOf(String login) {
+      lock.readLock().lock();
+      try {
+         List<List<String>> result = new ArrayList<List<String>>();
+         IntList ids = ordersByLogin.get(login);
+         for(int i = 0; ids != null && i < ids.size(); i++)
+            result.add(orders.get(ids.get(i)).record());
+         return result;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Records of (orderid, paid, timeStampRecieved, total) received in [from, to),
+    * served by the time index.
+    */
+   public List<List<String>> ordersBetween(long fromMillis, long toMillis) {
+      lock.readLock().lock();
+      try {
+         List<List<String>> result = new ArrayList<List<String>>();
+         for(IntList ids : ordersByTime.subMap(fromMillis, true, toMillis, false).values()) {
+            for(int i = 0; i < ids.size(); i++)
+               result.add(orders.get(ids.get(i)).record());
+         }
+         return result;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   @Override
+   public Boolean isPaid(int orderid) {
+      lock.readLock().lock();
+      try {
+         Order order = orders.get(orderid);
+         return order == null ? null : order.paid;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   @Override
+   public boolean pay(int orderid) {
+      lock.writeLock().lock();
+      try {
+         Order order = orders.get(orderid);
+         if(order == null)
+            return false;
+         order.paid = true;
+         return true;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   @Override
+   public boolean cancel(int orderid) {
+      lock.writeLock().lock();
+      try {
+         Order order = orders.remove(orderid);
+         if(order == null)
+            return false;
+         ordersByLogin.get(order.login).remove(orderid);
+         IntList sameTime = ordersByTime.get(order.received);
+         sameTime.remove(orderid);
+         if(sameTime.size() == 0)
+            ordersByTime.remove(order.received);
+         return true;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   // ITEM STATUS
+
+   @Override
+   public List<List<String>> itemsOfOrder(int orderid) {
+      lock.readLock().lock();
+      try {
+         List<List<String>> result = new ArrayList<List<String>>();
+         Order order = orders.get(orderid);
+         if(order == null)
+            return result;
+         TreeMap<String, ItemStatus> sorted = new TreeMap<String, ItemStatus>();
+         for(ItemStatus item : order.items)
+            sorted.put(item.itemName, item);
+         for(ItemStatus item : sorted.values())
+            result.add(Arrays.asList(item.itemName, String.valueOf(item.quantity), item.status,
+                                     item.lastUpdated.toString(), item.comments));
+         return result;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   @Override
+   public boolean updateItemStatus(int orderid, String itemName, String status, String comments) throws SQLException {
+      if(!Arrays.asList(NEW_ITEM_STATUS, "Started", "Finished").contains(status))
+         throw new SQLException("Invalid item status: " + status);
+      lock.writeLock().lock();
+      try {
+         Order order = orders.get(orderid);
+         if(order == null)
+            return false;
+         for(ItemStatus item : order.items) {
+            if(item.itemName.equals(itemName)) {
+               item.status = status;
+               item.comments = comments;
+               item.lastUpdated = new Timestamp(System.currentTimeMillis());
+               return true;
+            }
+         }
+         return false;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   // Growable array of ints
+   static final class IntList {
+      private int[] values = new int[4];
+      private int size;
+
+      void add(int value) {
+         if(size == values.length)
+            values = Arrays.copyOf(values, size * 2);
+         values[size++] = value;
+      }
+
+      void remove(int value) {
+         for(int i = 0; i < size; i++) {
+            if(values[i] == value) {
+               System.arraycopy(values, i + 1, values, i, size - i - 1);
+               size--;
+               return;
+            }
+         }
+      }
+
+      int get(int index) {
+         return values[index];
+      }
+
+      int size() {
+         return size;
+      }
+   }
+
+   // Open addressing hash map from int keys to values, with linear probing
+   static final class IntObjectMap<V> {
+      private static final int FREE = 0;
+      static final int INITIAL_CAPACITY = 16;
+
+      // keys are stored as key + 1 so that 0 marks a free slot; key -1 is kept aside
+      private int[] keys = new int[INITIAL_CAPACITY];
+      private Object[] values = new Object[INITIAL_CAPACITY];
+      private int size;
+      private boolean hasMinusOne;
+      private Object minusOneValue;
+
+      @SuppressWarnings("unchecked")
+      V get(int key) {
+         if(key == -1)
+            return (V) minusOneValue;
+         int slot = find(key);
+         return slot < 0 ? null : (V) values[slot];
+      }
+
+      void put(int key, V value) {
+         if(key == -1) {
+            if(!hasMinusOne)
+               size++;
+            hasMinusOne = true;
+            minusOneValue = value;
+            return;
+         }
+         if((size + 1) * 4 > keys.length * 3)
+            resize(keys.length * 2);
+         int stored = encode(key);
+         int slot = mix(stored) & (keys.length - 1);
+         while(keys[slot] != FREE && keys[slot] != stored)
+            slot = (slot + 1) & (keys.length - 1);
+         if(keys[slot] == FREE)
+            size++;
+         keys[slot] = stored;
+         values[slot] = value;
+      }
+
+      @SuppressWarnings("unchecked")
+      V remove(int key) {
+         if(key == -1) {
+            V removed = (V) minusOneValue;
+            if(hasMinusOne)
+               size--;
+            hasMinusOne = false;
+            minusOneValue = null;
+            return removed;
+         }
+         int slot = find(key);
+         if(slot < 0)
+            return null;
+         V removed = (V) values[slot];
+         keys[slot] = FREE;
+         values[slot] = null;
+         size--;
+         // Re-insert the rest of the probe chain so lookups do not stop at the hole
+         int next = (slot + 1) & (keys.length - 1);
+         while(keys[next] != FREE) {
+            int stored = keys[next];
+            Object value = values[next];
+            keys[next] = FREE;
+            values[next] = null;
+            size--;
+            putEncoded(stored, value);
+            next = (next + 1) & (keys.length - 1);
+         }
+         return removed;
+      }
+
+      @SuppressWarnings("unchecked")
+      void forEach(Consumer<V> action) {
+         if(hasMinusOne)
+            action.accept((V) minusOneValue);
+         for(int i = 0; i < keys.length; i++) {
+            if(keys[i] != FREE)
+               action.accept((V) values[i]);
+         }
+      }
+
+      int size() {
+         return size;
+      }
+
+      private int find(int key) {
+         int stored = encode(key);
+         int slot = mix(stored) & (keys.length - 1);
+         while(keys[slot] != FREE) {
+            if(keys[slot] == stored)
+               return slot;
+            slot = (slot + 1) & (keys.length - 1);
+         }
+         return -1;
+      }
+
+      private void putEncoded(int stored, Object value) {
+         int slot = mix(stored) & (keys.length - 1);
+         while(keys[slot] != FREE)
+            slot = (slot + 1) & (keys.length - 1);
+         keys[slot] = stored;
+         values[slot] = value;
+         size++;
+      }
+
+      private void resize(int capacity) {
+         int[] oldKeys = keys;
+         Object[] oldValues = values;
+         keys = new int[capacity];
+         values = new Object[capacity];
+         size = hasMinusOne ? 1 : 0;
+         for(int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] != FREE)
+               putEncoded(oldKeys[i], oldValues[i]);
+         }
+      }
+
+      static int encode(int key) {
+         return key + 1;
+      }
+
+      static int mix(int key) {
+         int h = key * 0x9E3779B9;
+         return h ^ (h >>> 16);
+      }
+   }
+}
@@ -0,0 +1,340 @@
+package src;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Proposes indexes for the workload the application actually runs.
+ *
+ * The workload is the set of statement samples recorded by QueryLog plus the
+ * representative application queries below. Every sample is run under
+ * EXPLAIN ANALYZE; sequential scans with a filter become candidate indexes:
+ * a b-tree on the filtered columns, a covering variant that INCLUDEs the
+ * columns the scan returns, and a partial variant when the filter pins a
+ * boolean or enum column. Each candidate is then created inside a transaction,
+ * the affected samples are re-timed against it, and the transaction is rolled
+ * back, so nothing is left behind in the schema.
+ *
+ * Every EXPLAIN ANALYZE run is rolled back to a savepoint, which makes it
+ * safe to include UPDATE and DELETE samples.
+ *
+ * Creating a candidate takes a SHARE lock that blocks every write to its table
+ * until the candidate is rolled back, so the advisor must never run against
+ * the live tables: give it the session on DataSeeder's scratch copy. Only
+ * tables of that session's schema get candidates, and each candidate waits at
+ * most LOCK_TIMEOUT_MS for its lock.
+ */
+public class IndexAdvisor {
+
+   // Representative statements of every screen, used when nothing was recorded yet: the
+   // statements the application runs, with the seeded rows' values in place of the parameters
+   static final Map<String, String> APP_QUERIES = new LinkedHashMap<String, String>();
+   static {
+      APP_QUERIES.put("login", inline(JdbcCafeRepository.CREDENTIAL, "seed_user_1"));
+      APP_QUERIES.put("isManager", inline(JdbcCafeRepository.IS_MANAGER, "seed_user_1"));
+      APP_QUERIES.put("managers", "SELECT login FROM Users WHERE type = 'Manager'");
+      APP_QUERIES.put("menuTypes", JdbcCafeRepository.MENU_TYPES);
+      APP_QUERIES.put("itemsOfType", inline(JdbcCafeRepository.ITEMS_OF_TYPE, "SeedType7"));
+      APP_QUERIES.put("price", inline(JdbcCafeRepository.PRICE, "seed_item_7"));
+      APP_QUERIES.put("ordersOf", inline(JdbcCafeRepository.ORDERS_OF, "seed_user_7"));
+      APP_QUERIES.put("isPaid", inline(JdbcCafeRepository.IS_PAID, 7));
+      APP_QUERIES.put("pay", inline(JdbcCafeRepository.PAY, 7));
+      APP_QUERIES.put("cancel", inline(JdbcCafeRepository.CANCEL, 7));
+      APP_QUERIES.put("itemsOfOrder", inline(JdbcCafeRepository.ITEMS_OF_ORDER, 7));
+      APP_QUERIES.put("staleUnpaid", inline(OrderSweeper.SWEEP, 24, OrderSweeper.BATCH));
+   }
+
+   // A statement with its ? parameters replaced by literals
+   static String inline(String sql, Object... params) {
+      StringBuilder result = new StringBuilder();
+      int param = 0;
+      for(char c : sql.toCharArray()) {
+         if(c != '?') {
+            result.append(c);
+         } else if(params[param] instanceof Number) {
+            result.append(params[param++]);
+         } else {
+            result.append('\'').append(params[param++].toString().replace("'", "''")).append('\'');
+         }
+      }
+      return result.toString();
+   }
+
+   // number of timed runs per statement; the median is reported
+   static final int RUNS = 3;
+
+   // column compared with '=' against a literal, optionally qualified and cast
+   private static final Pattern EQUALITY = Pattern.compile(
+      "\\(*(?:\\w+\\.)?([a-z_][a-z0-9_]*)\\)?(?:::[a-z ]+)?\\s*=\\s*(?:ANY\\s*\\()?\\s*('(?:[^']|'')*'|-?\\d)(?:::([a-z_ ]+))?");
+   // column compared with a range operator
+   private static final Pattern RANGE = Pattern.compile(
+      "\\(*(?:\\w+\\.)?([a-z_][a-z0-9_]*)\\)?(?:::[a-z ]+)?\\s*(?:<|>|<=|>=)\\s*");
+   // a bare boolean column or its negation
+   private static final Pattern BOOLEAN = Pattern.compile("\\((NOT )?(?:\\w+\\.)?([a-z_][a-z0-9_]*)\\)");
+   private static final Set<String> ENUMS = new LinkedHashSet<String>(Arrays.asList("user_type", "item_status"));
+   // widest covering index proposed
+   private static final int MAX_INCLUDE = 4;
+   // longest wait for the lock a candidate index takes
+   static final int LOCK_TIMEOUT_MS = 2000;
+
+   // A proposed index and the samples it should help
+   public static final class Candidate {
+      public final String table;
+      public final String ddl;
+      public final Set<String> samples = new LinkedHashSet<String>();
+      public double beforeMs;
+      public double afterMs;
+      public boolean used;
+
+      Candidate(String table, String ddl) {
+         this.table = table;
+         this.ddl = ddl;
+      }
+
+      // Speedup of the affected samples, above 1 when the index helps
+      public double speedup() {
+         return afterMs > 0 ? beforeMs / afterMs : 0;
+      }
+   }
+
+   private final Cafe esql;
+   private final Map<String, String> parents = new HashMap<String, String>();
+   // tables of the session's schema, the only ones candidates are created on
+   private final Set<String> tables = new HashSet<String>();
+   private final Map<String, Double> baseline = new HashMap<String, Double>();
+
+   /**
+    * @param esql the session the workload is explained in, the scratch copy of DataSeeder.open()
+    */
+   public IndexAdvisor(Cafe esql) {
+      this.esql = esql;
+   }
+
+   // The recorded statement samples followed by the built-in application queries
+   public List<String> workload() {
+      Set<String> samples = new LinkedHashSet<String>();
+      for(QueryLog.Shape shape : QueryLog.shapes()) {
+         String sample = shape.sample();
+         if(sample != null && advisable(sample))
+            samples.add(sample);
+      }
+      samples.addAll(APP_QUERIES.values());
+      return new ArrayList<String>(samples);
+   }
+
+   // Only plain reads and row changes against the application tables are explained
+   static boolean advisable(String sql) {
+      String lower = sql.trim().toLowerCase();
+      if(!(lower.startsWith("select") || lower.startsWith("update") || lower.startsWith("delete")))
+         return false;
+      return !lower.contains("pg_") && !lower.contains("schema_version") && !lower.contains("explain");
+   }
+
+   /**
+    * Explains the workload, proposes candidate indexes for its sequential
+    * scans and measures every candidate.
+    *
+    * @param samples the statements to tune for
+    * @return the candidates, most helpful first
+    * @throws java.sql.SQLException when the database could not be inspected
+    */
+   public List<Candidate> advise(List<String> samples) throws SQLException {
+      Connection connection = esql.getConnection();
+      boolean autoCommit = connection.getAutoCommit();
+      Map<String, Candidate> candidates = new LinkedHashMap<String, Candidate>();
+      try {
+         connection.setAutoCommit(false);
+         loadPartitions(connection);
+         for(String sample : samples) {
+            Map<String, Object> plan;
+            try {
+               plan = explain(connection, sample);
+               baseline.put(sample, median(connection, sample));
+            } catch(SQLException e) {
+               connection.rollback();
+               System.err.println("Skipping " + sample + ": " + e.getMessage());
+               continue;
+            }
+            for(Candidate candidate : propose(plan(plan)))
+               candidates.computeIfAbsent(candidate.ddl, ddl -> candidate).samples.add(sample);
+         }
+         for(Candidate candidate : candidates.values())
+            measure(connection, candidate);
+      } finally {
+         connection.rollback();
+         connection.setAutoCommit(autoCommit);
+      }
+      List<Candidate> result = new ArrayList<Candidate>(candidates.values());
+      result.sort((a, b) -> Double.compare(b.speedup(), a.speedup()));
+      return result;
+   }
+
+   // Formats the outcome of advise() for the manager
+   public static List<String> report(List<Candidate> candidates) {
+      List<String> lines = new ArrayList<String>();
+      if(candidates.isEmpty()) {
+         lines.add("No sequential scans with a filter; the current indexes cover the workload.");
+         return lines;
+      }
+      lines.add(String.format("%10s %10s %8s %5s  %s", "before ms", "after ms", "speedup", "used", "index"));
+      for(Candidate candidate : candidates) {
+         lines.add(String.format("%10.3f %10.3f %7.1fx %5s  %s;", candidate.beforeMs, candidate.afterMs,
+                                 candidate.speedup(), candidate.used ? "yes" : "no", candidate.ddl));
+      }
+      return lines;
+   }
+
+   // Maps every partition to its partitioned parent table and lists the tables of the current schema
+   private void loadPartitions(Connection connection) throws SQLException {
+      try (Statement stmt = connection.createStatement()) {
+         try (ResultSet rs = stmt.executeQuery(
+                 "SELECT c.relname, p.relname FROM pg_inherits i " +
+                 "JOIN pg_class c ON c.oid = i.inhrelid JOIN pg_class p ON p.oid = i.inhparent")) {
+            while(rs.next())
+               parents.put(rs.getString(1), rs.getString(2));
+         }
+         try (ResultSet rs = stmt.executeQuery(
+                 "SELECT relname FROM pg_class WHERE relkind IN ('r', 'p') AND relnamespace = current_schema()::regnamespace")) {
+            while(rs.next())
+               tables.add(rs.getString(1));
+         }
+      }
+      connection.rollback();
+   }
+
+   // Runs EXPLAIN (ANALYZE, VERBOSE, FORMAT JSON) and undoes the statement's effects
+   @SuppressWarnings("unchecked")
+   static Map<String, Object> explain(Connection connection, String sql) throws SQLException {
+      Savepoint savepoint = connection.setSavepoint();
+      try (Statement stmt = connection.createStatement();
+           ResultSet rs = stmt.executeQuery("EXPLAIN (ANALYZE, VERBOSE, FORMAT JSON) " + sql)) {
+         rs.next();
+         List<Object> result = (List<Object>) Json.parse(rs.getString(1));
+         return (Map<String, Object>) result.get(0);
+      } finally {
+         connection.rollback(savepoint);
+      }
+   }
+
+   // The root plan node of an EXPLAIN result
+   @SuppressWarnings("unchecked")
+   static Map<String, Object> plan(Map<String, Object> explained) {
+      return (Map<String, Object>) explained.get("Plan");
+   }
+
+   // Median execution time in milliseconds over RUNS runs
+   static double median(Connection connection, String sql) throws SQLException {
+      double[] times = new double[RUNS];
+      for(int i = 0; i < RUNS; i++)
+         times[i] = ((BigDecimal) explain(connection, sql).get("Execution Time")).doubleValue();
+      Arrays.sort(times);
+      return times[RUNS / 2];
+   }
+
+   // Every node of a plan tree, depth first
+   @SuppressWarnings("unchecked")
+   static List<Map<String, Object>> nodes(Map<String, Object> node) {
+      List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+      result.add(node);
+      Object children = node.get("Plans");
+      if(children instanceof List) {
+         for(Object child : (List<Object>) children)
+            result.addAll(nodes((Map<String, Object>) child));
+      }
+      return result;
+   }
+
+   // Candidate indexes for the filtered sequential scans of a plan
+   @SuppressWarnings("unchecked")
+   private List<Candidate> propose(Map<String, Object> root) {
+      List<Candidate> result = new ArrayList<Candidate>();
+      for(Map<String, Object> node : nodes(root)) {
+         if(!"Seq Scan".equals(node.get("Node Type")) || node.get("Filter") == null)
+            continue;
+         String relation = ((String) node.get("Relation Name")).toLowerCase();
+         String table = parents.getOrDefault(relation, relation);
+         if(!tables.contains(table))
+            continue;
+         String filter = (String) node.get("Filter");
+
+         // Equality columns lead, one range column may follow
+         List<String> keys = new ArrayList<String>();
+         String predicate = null;
+         Matcher equality = EQUALITY.matcher(filter);
+         while(equality.find()) {
+            String column = equality.group(1);
+            if(equality.group(3) != null && ENUMS.contains(equality.group(3).trim()))
+               predicate = column + " = " + equality.group(2);
+            else if(!keys.contains(column))
+               keys.add(column);
+         }
+         Matcher bool = BOOLEAN.matcher(filter);
+         while(bool.find()) {
+            if(predicate == null && !filter.contains(bool.group(2) + " =") && !filter.contains(bool.group(2) + ")::"))
+               predicate = bool.group(2) + " = " + (bool.group(1) == null);
+         }
+         Matcher range = RANGE.matcher(filter);
+         if(range.find() && !keys.contains(range.group(1)))
+            keys.add(range.group(1));
+         if(keys.isEmpty())
+            continue;
+
+         // Columns the scan hands upwards, for an index-only variant
+         List<String> include = new ArrayList<String>();
+         Object output = node.get("Output");
+         if(output instanceof List) {
+            for(Object column : (List<Object>) output) {
+               String name = column.toString().replaceAll("^\\w+\\.", "");
+               if(name.matches("[a-z_][a-z0-9_]*") && !keys.contains(name) && !include.contains(name))
+                  include.add(name);
+            }
+         }
+
+         String name = "advisor_" + table + "_" + String.join("_", keys);
+         String columns = table + " (" + String.join(", ", keys) + ")";
+         result.add(new Candidate(table, "CREATE INDEX " + name + " ON " + columns));
+         if(!include.isEmpty() && include.size() <= MAX_INCLUDE)
+            result.add(new Candidate(table, "CREATE INDEX " + name + "_covering ON " + columns +
+                                            " INCLUDE (" + String.join(", ", include) + ")"));
+         if(predicate != null)
+            result.add(new Candidate(table, "CREATE INDEX " + name + "_partial ON " + columns + " WHERE " + predicate));
+      }
+      return result;
+   }
+
+   // Creates the candidate, re-times its samples and rolls the index back
+   private void measure(Connection connection, Candidate candidate) throws SQLException {
+      String name = candidate.ddl.split(" ")[2];
+      try (Statement stmt = connection.createStatement()) {
+         stmt.executeUpdate(String.format("SET LOCAL lock_timeout = %d", LOCK_TIMEOUT_MS));
+         stmt.executeUpdate(candidate.ddl);
+         for(String sample : candidate.samples) {
+            candidate.beforeMs += baseline.get(sample);
+            candidate.afterMs += median(connection, sample);
+            for(Map<String, Object> node : nodes(plan(explain(connection, sample)))) {
+               if(name.equals(node.get("Index Name")))
+                  candidate.used = true;
+            }
+         }
+      } catch(SQLException e) {
+         System.err.println(candidate.ddl + ": " + e.getMessage());
+      } finally {
+         connection.rollback();
+      }
+   }
+}
@@ -0,0 +1,137 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import src.InMemoryCafeRepository.IntObjectMap;
+
+/**
+ * Self-check of the open addressing map the in-memory engine keeps its orders
+ * in (InMemoryCafeRepository.IntObjectMap).
+ *
+ * Covers insert, overwrite, removal inside a probe chain (including one that
+ * wraps around the end of the table), resizing, the keys -1 (kept outside the
+ * table), 0, Integer.MIN_VALUE and Integer.MAX_VALUE, and finally a random
+ * sequence of operations compared against a HashMap. The process exits with
+ * status 1 on any failure, so it can gate a build.
+ *
+ * Usage:
+ *   java -cp classes src.IntObjectMapCheck [--ops N] [--seed N]
+ */
+public class IntObjectMapCheck {
+
+   // keys every check mixes in, -1 being the one not stored in the table
+   static final int[] EDGE_KEYS = {-1, 0, 1, Integer.MIN_VALUE, Integer.MIN_VALUE + 1, Integer.MAX_VALUE};
+
+   private final List<String> failures = new ArrayList<String>();
+
+   public static void main(String[] args) {
+      Map<String, String> options = CafeBench.parseOptions(args);
+      int ops = Integer.parseInt(options.getOrDefault("ops", "200000"));
+      long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+
+      IntObjectMapCheck check = new IntObjectMapCheck();
+      check.insertAndOverwrite();
+      check.removeInChain(0);
+      check.removeInChain(IntObjectMap.INITIAL_CAPACITY - 1);
+      check.resize();
+      check.random(ops, new Random(seed));
+      for(String failure : check.failures)
+         System.out.println("FAIL " + failure);
+      System.out.println(check.failures.isEmpty() ? "IntObjectMap ok" : check.failures.size() + " failure(s)");
+      if(!check.failures.isEmpty())
+         System.exit(1);
+   }
+
+   private void expect(boolean condition, String what) {
+      if(!condition)
+         failures.add(what);
+   }
+
+   // Every edge key can be stored, read, replaced and removed on its own
+   void insertAndOverwrite() {
+      IntObjectMap<String> map = new IntObjectMap<String>();
+      for(int key : EDGE_KEYS) {
+         map.put(key, "a" + key);
+         expect(("a" + key).equals(map.get(key)), "get after put of " + key);
+      }
+      expect(map.size() == EDGE_KEYS.length, "size after inserts is " + map.size());
+      for(int key : EDGE_KEYS)
+         map.put(key, "b" + key);
+      expect(map.size() == EDGE_KEYS.length, "size after overwrites is " + map.size());
+      for(int key : EDGE_KEYS)
+         expect(("b" + key).equals(map.get(key)), "get after overwrite of " + key);
+      for(int key : EDGE_KEYS) {
+         expect(("b" + key).equals(map.remove(key)), "remove of " + key);
+         expect(map.get(key) == null, "get after remove of " + key);
+         expect(map.remove(key) == null, "second remove of " + key);
+      }
+      expect(map.size() == 0, "size after removes is " + map.size());
+   }
+
+   // Removing the head or middle of a probe chain leaves the rest of the chain reachable
+   void removeInChain(int home) {
+      List<Integer> chain = keysWithHome(home, 4);
+      for(int removed = 0; removed < chain.size(); removed++) {
+         IntObjectMap<Integer> map = new IntObjectMap<Integer>();
+         for(int key : chain)
+            map.put(key, key);
+         expect(Integer.valueOf(chain.get(removed)).equals(map.remove(chain.get(removed))),
+                "remove of chain entry " + removed + " at slot " + home);
+         for(int i = 0; i < chain.size(); i++) {
+            Integer expected = i == removed ? null : chain.get(i);
+            expect(Objects.equals(expected, map.get(chain.get(i))),
+                   "get of chain entry " + i + " after removing entry " + removed + " at slot " + home);
+         }
+         expect(map.size() == chain.size() - 1, "size after removing chain entry " + removed + " is " + map.size());
+      }
+   }
+
+   // Growing past the load factor keeps every entry, -1 included
+   void resize() {
+      IntObjectMap<Integer> map = new IntObjectMap<Integer>();
+      map.put(-1, -1);
+      int keys = IntObjectMap.INITIAL_CAPACITY * 8;
+      for(int key = 0; key < keys; key++)
+         map.put(key * 7919, key);
+      expect(map.size() == keys + 1, "size after growing is " + map.size());
+      expect(Integer.valueOf(-1).equals(map.get(-1)), "get of -1 after growing");
+      for(int key = 0; key < keys; key++)
+         expect(Integer.valueOf(key).equals(map.get(key * 7919)), "get of " + key * 7919 + " after growing");
+      int[] visited = {0};
+      map.forEach(value -> visited[0]++);
+      expect(visited[0] == keys + 1, "forEach visited " + visited[0] + " values");
+   }
+
+   // A random mix of puts and removes over a small key range agrees with a HashMap
+   void random(int ops, Random random) {
+      IntObjectMap<Integer> map = new IntObjectMap<Integer>();
+      Map<Integer, Integer> reference = new HashMap<Integer, Integer>();
+      for(int op = 0; op < ops && failures.isEmpty(); op++) {
+         int key = random.nextInt(8) == 0 ? EDGE_KEYS[random.nextInt(EDGE_KEYS.length)] : random.nextInt(512) - 256;
+         if(random.nextInt(3) == 0) {
+            expect(Objects.equals(reference.remove(key), map.remove(key)), "remove of " + key + " at op " + op);
+         } else {
+            reference.put(key, op);
+            map.put(key, op);
+         }
+         expect(Objects.equals(reference.get(key), map.get(key)), "get of " + key + " at op " + op);
+         expect(reference.size() == map.size(), "size " + map.size() + " instead of " + reference.size() + " at op " + op);
+      }
+      for(Map.Entry<Integer, Integer> entry : reference.entrySet())
+         expect(entry.getValue().equals(map.get(entry.getKey())), "final get of " + entry.getKey());
+   }
+
+   // Keys whose first probe in a table of INITIAL_CAPACITY slots is the given slot
+   private static List<Integer> keysWithHome(int home, int count) {
+      List<Integer> keys = new ArrayList<Integer>();
+      for(int key = 0; keys.size() < count; key++) {
+         if((IntObjectMap.mix(IntObjectMap.encode(key)) & (IntObjectMap.INITIAL_CAPACITY - 1)) == home)
+            keys.add(key);
+      }
+      return keys;
+   }
+}
@@ -0,0 +1,310 @@
+package src;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import src.AdmissionController.OperationClass;
+
+/**
+ * CafeRepository backed by the PostgreSQL connection of a Cafe.
+ * Every statement is prepared with bound parameters.
+ */
+public class JdbcCafeRepository implements CafeRepository {
+
+   // Statements of the busiest screens, whose plans PlanRegression guards
+   static final String CREDENTIAL = "SELECT password FROM Users WHERE login = ?";
+   static final String IS_MANAGER = "SELECT 1 FROM Users WHERE login = ? AND type = 'Manager'";
+   static final String MENU_TYPES = "SELECT DISTINCT type FROM Menu ORDER BY type";
+   static final String ITEMS_OF_TYPE = "SELECT itemName, price, description FROM Menu WHERE type = ? ORDER BY itemName";
+   static final String PRICE = "SELECT price FROM Menu WHERE itemName = ?";
+   static final String ORDERS_OF = "SELECT orderid, paid, timeStampRecieved, total FROM Orders WHERE login = ? " +
+                                   "ORDER BY timeStampRecieved, orderid";
+   static final String IS_PAID = "SELECT paid FROM Orders WHERE orderid = ?";
+   static final String PAY = "UPDATE Orders SET paid = true WHERE orderid = ?";
+   static final String CANCEL = "DELETE FROM Orders WHERE orderid = ?";
+   static final String ITEMS_OF_ORDER = "SELECT itemName, quantity, status, lastUpdated, comments FROM ItemStatus " +
+                                        "WHERE orderid = ? ORDER BY itemName";
+
+   private final Cafe esql;
+
+   public JdbcCafeRepository(Cafe esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Runs the read statements of the first screens once with parameters that
+    * match nothing. With prepareThreshold=1 this leaves them prepared on the
+    * server and in the driver's statement cache, and loads the driver's code
+    * paths before the first customer is served.
+    */
+   @Override
+   public void warmUp() throws SQLException {
+      credential("");
+      isManager("");
+      getFavorites("");
+      menuTypes();
+      itemsOfType("");
+      price("");
+      ordersOf("");
+      isPaid(-1);
+      itemsOfOrder(-1);
+   }
+
+   // USERS
+
+   @Override
+   public void createUser(String login, String password, String phoneNum) throws SQLException {
+      update("INSERT INTO Users (login, phoneNum, password, favItems, type) VALUES (?, ?, ?, '', 'Customer')",
+             login, phoneNum, PasswordHasher.hash(password));
+   }
+
+   @Override
+   public String credential(String login) throws SQLException {
+      List<List<String>> result = query(CREDENTIAL, login);
+      return result.isEmpty() ? null : result.get(0).get(0);
+   }
+
+   @Override
+   public boolean replaceCredential(String login, String expected, String replacement) throws SQLException {
+      return update("UPDATE Users SET password = ? WHERE login = ? AND password = ?", replacement, login, expected) > 0;
+   }
+
+   @Override
+   public boolean isManager(String login) throws SQLException {
+      return !query(IS_MANAGER, login).isEmpty();
+   }
+
+   @Override
+   public void setUserType(String login, String type) throws SQLException {
+      update("UPDATE Users SET type = CAST(? AS user_type), version = version + 1 WHERE login = ?", type, login);
+   }
+
+   @Override
+   public List<String> profile(String login) throws SQLException {
+      List<List<String>> result = query("SELECT login, phoneNum, password, type, version FROM Users WHERE login = ?", login);
+      return result.isEmpty() ? null : result.get(0);
+   }
+
+   @Override
+   public List<String> updateProfileField(String login, String field, String value, int version) throws SQLException {
+      if(!PROFILE_FIELDS.contains(field))
+         throw new SQLException("Not an editable profile field: " + field);
+      if(field.equals("password"))
+         value = PasswordHasher.hash(value);
+      // One round trip: the self join still sees the row as it was before the update
+      List<List<String>> result = query(OperationClass.WRITE, String.format(
+         "UPDATE Users u SET %s = ?, version = u.version + 1 FROM Users o " +
+         "WHERE o.login = u.login AND u.login = ? AND u.version = ? RETURNING o.%s, u.%s, u.version",
+         field, field, field), value, login, version);
+      return result.isEmpty() ? null : result.get(0);
+   }
+
+   // FAVORITES
+
+   @Override
+   public String getFavorites(String login) throws SQLException {
+      List<List<String>> result = query("SELECT coalesce(favItems, '') FROM Users WHERE login = ?", login);
+      return result.isEmpty() ? null : result.get(0).get(0);
+   }
+
+   @Override
+   public void setFavorites(String login, String favItems) throws SQLException {
+      update("UPDATE Users SET favItems = ? WHERE login = ?", favItems, login);
+   }
+
+   // MENU
+
+   @Override
+   public List<List<String>> menuTypes() throws SQLException {
+      return query(MENU_TYPES);
+   }
+
+   @Override
+   public List<List<String>> itemsOfType(String type) throws SQLException {
+      return query(ITEMS_OF_TYPE, type);
+   }
+
+   @Override
+   public BigDecimal price(String itemName) throws SQLException {
+      List<List<String>> result = query(PRICE, itemName);
+      return result.isEmpty() ? null : new BigDecimal(result.get(0).get(0));
+   }
+
+   @Override
+   public void putMenuItem(String itemName, String type, BigDecimal price, String description, String imageURL) throws SQLException {
+      update("INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES (?, ?, ?, ?, ?) " +
+             "ON CONFLICT (itemName) DO UPDATE SET type = EXCLUDED.type, price = EXCLUDED.price, " +
+             "description = EXCLUDED.description, imageURL = EXCLUDED.imageURL",
+             itemName, type, price, description, imageURL);
+   }
+
+   @Override
+   public boolean deleteMenuItem(String itemName) throws SQLException {
+      return update("DELETE FROM Menu WHERE itemName = ?", itemName) > 0;
+   }
+
+   // ORDERS
+
+   @Override
+   public int checkout(String login, Map<String, Integer> items) throws SQLException {
+      if(items.isEmpty())
+         throw new SQLException("An order needs at least one item");
+      return AdmissionController.run(OperationClass.WRITE, () -> placeOrder(login, items));
+   }
+
+   // Prices and stores an order with its items in one transaction
+   private int placeOrder(String login, Map<String, Integer> items) throws SQLException {
+      Connection connection = esql.getConnection();
+      boolean autoCommit = connection.getAutoCommit();
+      try {
+         connection.setAutoCommit(false);
+
+         // Price the whole order in one round trip
+         BigDecimal total = BigDecimal.ZERO;
+         List<List<String>> prices = query("SELECT itemName, price FROM Menu WHERE itemName = ANY(?)",
+                                           connection.createArrayOf("varchar", items.keySet().toArray()));
+         for(Map.Entry<String, Integer> item : items.entrySet()) {
+            BigDecimal price = null;
+            for(List<String> record : prices) {
+               if(record.get(0).equals(item.getKey()))
+                  price = new BigDecimal(record.get(1));
+            }
+            if(price == null)
+               throw new SQLException("Unknown menu item: " + item.getKey());
+            total = total.add(price.multiply(BigDecimal.valueOf(item.getValue())));
+         }
+
+         int orderid;
+         Timestamp received;
+         try (PreparedStatement stmt = connection.prepareStatement(
+               "INSERT INTO Orders (login, paid, timeStampRecieved, total) VALUES (?, false, now(), ?) " +
+               "RETURNING orderid, timeStampRecieved")) {
+            stmt.setQueryTimeout(AdmissionController.queryTimeout());
+            stmt.setString(1, login);
+            stmt.setBigDecimal(2, total);
+            try (ResultSet rs = stmt.executeQuery()) {
+               rs.next();
+               orderid = rs.getInt(1);
+               received = rs.getTimestamp(2);
+            }
+         }
+         try (PreparedStatement stmt = connection.prepareStatement(
+               "INSERT INTO ItemStatus (orderid, orderTimeStamp, itemName, lastUpdated, status, comments, quantity) " +
+               "VALUES (?, ?, ?, now(), 'Hasn''t started', '', ?)")) {
+            stmt.setQueryTimeout(AdmissionController.queryTimeout());
+            for(Map.Entry<String, Integer> item : items.entrySet()) {
+               stmt.setInt(1, orderid);
+               stmt.setTimestamp(2, received);
+               stmt.setString(3, item.getKey());
+               stmt.setInt(4, item.getValue());
+               stmt.addBatch();
+            }
+            stmt.executeBatch();
+         }
+         connection.commit();
+         esql.cache().invalidateTables("orders");
+         return orderid;
+      } catch(SQLException e) {
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setAutoCommit(autoCommit);
+      }
+   }
+
+   @Override
+   public List<List<String>> ordersOf(String login) throws SQLException {
+      return query(ORDERS_OF, login);
+   }
+
+   @Override
+   public Boolean isPaid(int orderid) throws SQLException {
+      List<List<String>> result = query(IS_PAID, orderid);
+      return result.isEmpty() ? null : "t".equals(result.get(0).get(0));
+   }
+
+   @Override
+   public boolean pay(int orderid) throws SQLException {
+      return update(PAY, orderid) > 0;
+   }
+
+   @Override
+   public boolean cancel(int orderid) throws SQLException {
+      return update(CANCEL, orderid) > 0;
+   }
+
+   // ITEM STATUS
+
+   @Override
+   public List<List<String>> itemsOfOrder(int orderid) throws SQLException {
+      return query(ITEMS_OF_ORDER, orderid);
+   }
+
+   @Override
+   public boolean updateItemStatus(int orderid, String itemName, String status, String comments) throws SQLException {
+      return update("UPDATE ItemStatus SET status = CAST(? AS item_status), comments = ?, lastUpdated = now() " +
+                    "WHERE orderid = ? AND itemName = ?", status, comments, orderid, itemName) > 0;
+   }
+
+   // Runs a parameterized query and returns its records
+   private List<List<String>> query(String sql, Object... params) throws SQLException {
+      return query(OperationClass.READ, sql, params);
+   }
+
+   // Runs a parameterized statement returning records, e.g. an UPDATE ... RETURNING as a WRITE
+   private List<List<String>> query(OperationClass operationClass, String sql, Object... params) throws SQLException {
+      if(operationClass == OperationClass.WRITE) {
+         List<List<String>> result = load(operationClass, sql, params);
+         esql.cache().written(sql);
+         return result;
+      }
+      // Reads are served from the query cache outside of transactions
+      if(esql.getConnection().getAutoCommit())
+         return esql.cache().read(sql, params, () -> load(operationClass, sql, params));
+      return load(operationClass, sql, params);
+   }
+
+   private List<List<String>> load(OperationClass operationClass, String sql, Object... params) throws SQLException {
+      try (PreparedStatement stmt = esql.getConnection().prepareStatement(sql)) {
+         bind(stmt, params);
+         long start = System.nanoTime();
+         try (ResultSet rs = AdmissionController.execute(operationClass, stmt, stmt::executeQuery)) {
+            QueryLog.record(sql, params, System.nanoTime() - start);
+            ResultSetMetaData rsmd = rs.getMetaData();
+            int numCol = rsmd.getColumnCount();
+            List<List<String>> result = new ArrayList<List<String>>();
+            while(rs.next()) {
+               List<String> record = new ArrayList<String>(numCol);
+               for(int i = 1; i <= numCol; ++i)
+                  record.add(rs.getString(i));
+               result.add(record);
+            }
+            return result;
+         }
+      }
+   }
+
+   // Runs a parameterized update and returns the number of rows changed
+   private int update(String sql, Object... params) throws SQLException {
+      try (PreparedStatement stmt = esql.getConnection().prepareStatement(sql)) {
+         bind(stmt, params);
+         long start = System.nanoTime();
+         int rows = AdmissionController.execute(OperationClass.WRITE, stmt, stmt::executeUpdate);
+         QueryLog.record(sql, params, System.nanoTime() - start);
+         esql.cache().written(sql);
+         return rows;
+      }
+   }
+
+   private static void bind(PreparedStatement stmt, Object... params) throws SQLException {
+      for(int i = 0; i < params.length; i++)
+         stmt.setObject(i + 1, params[i]);
+   }
+}
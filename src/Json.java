@@ -0,0 +1,172 @@
+package src;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON reader for the small documents the tools exchange (menu delta
+ * files, EXPLAIN output). Objects become a LinkedHashMap, arrays an ArrayList,
+ * numbers a BigDecimal, and true/false/null their Java counterparts.
+ */
+public final class Json {
+
+   private final String text;
+   private int pos;
+
+   private Json(String text) {
+      this.text = text;
+   }
+
+   /**
+    * Parses a JSON document.
+    *
+    * @param text the document
+    * @return the parsed value
+    * @throws IllegalArgumentException when the document is malformed
+    */
+   public static Object parse(String text) {
+      Json parser = new Json(text);
+      Object value = parser.value();
+      parser.skipWhitespace();
+      if(parser.pos != text.length())
+         throw parser.error("Trailing characters");
+      return value;
+   }
+
+   private Object value() {
+      skipWhitespace();
+      if(pos >= text.length())
+         throw error("Unexpected end of document");
+      char c = text.charAt(pos);
+      switch(c) {
+         case '{': return object();
+         case '[': return array();
+         case '"': return string();
+         case 't': return literal("true", Boolean.TRUE);
+         case 'f': return literal("false", Boolean.FALSE);
+         case 'n': return literal("null", null);
+         default:
+            if(c == '-' || (c >= '0' && c <= '9'))
+               return number();
+            throw error("Unexpected character '" + c + "'");
+      }
+   }
+
+   private Map<String, Object> object() {
+      Map<String, Object> object = new LinkedHashMap<String, Object>();
+      pos++;
+      skipWhitespace();
+      if(peek() == '}') {
+         pos++;
+         return object;
+      }
+      while(true) {
+         skipWhitespace();
+         if(peek() != '"')
+            throw error("Expected a member name");
+         String name = string();
+         skipWhitespace();
+         expect(':');
+         object.put(name, value());
+         skipWhitespace();
+         if(peek() == ',') {
+            pos++;
+         } else {
+            expect('}');
+            return object;
+         }
+      }
+   }
+
+   private List<Object> array() {
+      List<Object> array = new ArrayList<Object>();
+      pos++;
+      skipWhitespace();
+      if(peek() == ']') {
+         pos++;
+         return array;
+      }
+      while(true) {
+         array.add(value());
+         skipWhitespace();
+         if(peek() == ',') {
+            pos++;
+         } else {
+            expect(']');
+            return array;
+         }
+      }
+   }
+
+   private String string() {
+      StringBuilder out = new StringBuilder();
+      pos++;
+      while(pos < text.length()) {
+         char c = text.charAt(pos++);
+         if(c == '"')
+            return out.toString();
+         if(c != '\\') {
+            out.append(c);
+            continue;
+         }
+         if(pos >= text.length())
+            break;
+         char escaped = text.charAt(pos++);
+         switch(escaped) {
+            case 'b': out.append('\b'); break;
+            case 'f': out.append('\f'); break;
+            case 'n': out.append('\n'); break;
+            case 'r': out.append('\r'); break;
+            case 't': out.append('\t'); break;
+            case 'u':
+               if(pos + 4 > text.length())
+                  throw error("Truncated unicode escape");
+               out.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+               pos += 4;
+               break;
+            default: out.append(escaped); break;
+         }
+      }
+      throw error("Unterminated string");
+   }
+
+   private BigDecimal number() {
+      int start = pos;
+      while(pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0)
+         pos++;
+      try {
+         return new BigDecimal(text.substring(start, pos));
+      } catch(NumberFormatException e) {
+         throw error("Malformed number");
+      }
+   }
+
+   private Object literal(String word, Object value) {
+      if(!text.startsWith(word, pos))
+         throw error("Unexpected token");
+      pos += word.length();
+      return value;
+   }
+
+   private void expect(char c) {
+      if(peek() != c)
+         throw error("Expected '" + c + "'");
+      pos++;
+   }
+
+   private char peek() {
+      return pos < text.length() ? text.charAt(pos) : '\0';
+   }
+
+   private void skipWhitespace() {
+      while(pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+         pos++;
+   }
+
+   private IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(message + " at position " + pos);
+   }
+}
@@ -0,0 +1,318 @@
+package src;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local TCP proxy in front of PostgreSQL that makes the network slow on
+ * purpose, to see what round trips cost over a WAN link.
+ *
+ * Every chunk of bytes is held back for half the round-trip time, plus or
+ * minus half the jitter, in each direction; chunks keep their order. An
+ * optional bandwidth limit paces each direction of each connection, and a
+ * drop probability closes a connection in the middle of a request. The proxy
+ * counts round trips: every time a client sends after the server answered.
+ *
+ * Usage:
+ *   java -cp classes src.LatencyProxy --target host:port [--listen port]
+ *        [--rtt ms] [--jitter ms] [--bandwidth bytes/s] [--drop probability]
+ *
+ * CafeBench takes the same options; the application starts a proxy in front
+ * of its database when -Dcafe.proxy.rtt (or .jitter, .bandwidth, .drop) is set.
+ */
+public class LatencyProxy implements AutoCloseable {
+
+   private static final int CHUNK = 16 * 1024;
+
+   // Network conditions to simulate
+   public static final class Conditions {
+      final int rttMillis;
+      final int jitterMillis;
+      final long bytesPerSecond;
+      final double dropProbability;
+
+      /**
+       * @param rttMillis round-trip time added
+       * @param jitterMillis spread of the round-trip time
+       * @param bytesPerSecond bandwidth per direction and connection, 0 for unlimited
+       * @param dropProbability chance that a client chunk closes its connection instead
+       */
+      public Conditions(int rttMillis, int jitterMillis, long bytesPerSecond, double dropProbability) {
+         this.rttMillis = rttMillis;
+         this.jitterMillis = jitterMillis;
+         this.bytesPerSecond = bytesPerSecond;
+         this.dropProbability = dropProbability;
+      }
+
+      // Conditions from --rtt, --jitter, --bandwidth and --drop options, null when none is given
+      public static Conditions fromOptions(Map<String, String> options) {
+         if(!(options.containsKey("rtt") || options.containsKey("jitter") || options.containsKey("bandwidth")
+              || options.containsKey("drop")))
+            return null;
+         return new Conditions(Integer.parseInt(options.getOrDefault("rtt", "0")),
+                               Integer.parseInt(options.getOrDefault("jitter", "0")),
+                               Long.parseLong(options.getOrDefault("bandwidth", "0")),
+                               Double.parseDouble(options.getOrDefault("drop", "0")));
+      }
+
+      // Conditions from -Dcafe.proxy.rtt, .jitter, .bandwidth and .drop, null when none is set
+      public static Conditions fromProperties() {
+         Map<String, String> options = new HashMap<String, String>();
+         for(String name : new String[] {"rtt", "jitter", "bandwidth", "drop"}) {
+            if(System.getProperty("cafe.proxy." + name) != null)
+               options.put(name, System.getProperty("cafe.proxy." + name));
+         }
+         return fromOptions(options);
+      }
+
+      // One-way delay of a chunk in nanoseconds
+      long delayNanos() {
+         double jitter = jitterMillis * (ThreadLocalRandom.current().nextDouble() - 0.5);
+         return (long) (Math.max(0, rttMillis / 2.0 + jitter) * 1e6);
+      }
+
+      @Override
+      public String toString() {
+         return rttMillis + " ms rtt, " + jitterMillis + " ms jitter, " +
+                (bytesPerSecond == 0 ? "unlimited" : bytesPerSecond + " bytes/s") + ", drop " + dropProbability;
+      }
+   }
+
+   // Bytes read and the time they may be passed on; an empty chunk ends the stream
+   private static final class Chunk {
+      final byte[] bytes;
+      final long due;
+
+      Chunk(byte[] bytes, long due) {
+         this.bytes = bytes;
+         this.due = due;
+      }
+   }
+
+   private final String targetHost;
+   private final int targetPort;
+   private final Conditions conditions;
+   private final ServerSocket server;
+   private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+   private final AtomicLong connections = new AtomicLong();
+   private final AtomicLong roundTrips = new AtomicLong();
+   private final AtomicLong bytesUp = new AtomicLong();
+   private final AtomicLong bytesDown = new AtomicLong();
+   private final AtomicLong drops = new AtomicLong();
+
+   /**
+    * Starts accepting connections on the loopback interface.
+    *
+    * @param listenPort port to listen on, 0 for any free port
+    * @throws java.io.IOException when the port could not be bound
+    */
+   public LatencyProxy(String targetHost, int targetPort, int listenPort, Conditions conditions) throws IOException {
+      this.targetHost = targetHost;
+      this.targetPort = targetPort;
+      this.conditions = conditions;
+      this.server = new ServerSocket(listenPort, 50, InetAddress.getLoopbackAddress());
+      start("latency-proxy", this::accept);
+   }
+
+   // The port clients connect to
+   public int port() {
+      return server.getLocalPort();
+   }
+
+   // Round trips seen on every connection so far
+   public long roundTrips() {
+      return roundTrips.get();
+   }
+
+   private void accept() {
+      while(!server.isClosed()) {
+         Socket client = null;
+         Socket upstream = null;
+         try {
+            client = server.accept();
+            upstream = new Socket(targetHost, targetPort);
+            client.setTcpNoDelay(true);
+            upstream.setTcpNoDelay(true);
+            sockets.add(client);
+            sockets.add(upstream);
+            connections.incrementAndGet();
+            Link link = new Link(client, upstream);
+            link.pipe(client.getInputStream(), upstream, true);
+            link.pipe(upstream.getInputStream(), client, false);
+         } catch(IOException e) {
+            // the proxy was closed, or the target refused this connection
+            close(client);
+            close(upstream);
+         }
+      }
+   }
+
+   // Both directions of one proxied connection
+   private final class Link {
+      final Socket client;
+      final Socket upstream;
+      // whether the last chunk went from the client to the server, guarded by this
+      boolean clientSpoke;
+      // directions whose stream has ended, guarded by this
+      int finished;
+
+      Link(Socket client, Socket upstream) {
+         this.client = client;
+         this.upstream = upstream;
+      }
+
+      // Counts a round trip when the client speaks after the server did
+      synchronized void turn(boolean fromClient) {
+         if(fromClient && !clientSpoke)
+            roundTrips.incrementAndGet();
+         clientSpoke = fromClient;
+      }
+
+      // Closes both sockets once neither direction has anything left to pass on
+      synchronized void finish() {
+         if(++finished == 2) {
+            close(client);
+            close(upstream);
+         }
+      }
+
+      void drop() {
+         drops.incrementAndGet();
+         close(client);
+         close(upstream);
+      }
+
+      // Reads from in and writes to the socket out once each chunk is due
+      void pipe(InputStream in, Socket out, boolean fromClient) {
+         BlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+         start("latency-proxy-read", () -> {
+            byte[] buffer = new byte[CHUNK];
+            long lastDue = 0;
+            try {
+               int n;
+               while((n = in.read(buffer)) != -1) {
+                  turn(fromClient);
+                  if(fromClient && conditions.dropProbability > 0
+                     && ThreadLocalRandom.current().nextDouble() < conditions.dropProbability) {
+                     drop();
+                     return;
+                  }
+                  (fromClient ? bytesUp : bytesDown).addAndGet(n);
+                  // Chunks never overtake each other, whatever their jitter
+                  lastDue = Math.max(lastDue, System.nanoTime() + conditions.delayNanos());
+                  queue.put(new Chunk(Arrays.copyOf(buffer, n), lastDue));
+               }
+            } catch(IOException | InterruptedException e) {
+               // the connection is gone
+            }
+            queue.add(new Chunk(new byte[0], lastDue));
+         });
+         start("latency-proxy-write", () -> {
+            try {
+               OutputStream output = out.getOutputStream();
+               while(true) {
+                  Chunk chunk = queue.take();
+                  sleepUntil(chunk.due);
+                  if(chunk.bytes.length == 0) {
+                     out.shutdownOutput();
+                     finish();
+                     return;
+                  }
+                  if(conditions.bytesPerSecond > 0)
+                     sleepUntil(System.nanoTime() + chunk.bytes.length * 1000000000L / conditions.bytesPerSecond);
+                  output.write(chunk.bytes);
+                  output.flush();
+               }
+            } catch(IOException | InterruptedException e) {
+               close(client);
+               close(upstream);
+            }
+         });
+      }
+   }
+
+   private static void sleepUntil(long due) throws InterruptedException {
+      long wait = due - System.nanoTime();
+      if(wait > 0)
+         Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+   }
+
+   private static void start(String name, Runnable task) {
+      Thread thread = new Thread(task, name);
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   private void close(Socket socket) {
+      if(socket == null)
+         return;
+      sockets.remove(socket);
+      try {
+         socket.close();
+      } catch(IOException e) {
+         // ignored
+      }
+   }
+
+   // Conditions and counters
+   public List<String> stats() {
+      List<String> lines = new ArrayList<String>();
+      lines.add(conditions + ", port " + port() + " -> " + targetHost + ":" + targetPort);
+      lines.add(String.format("%11s %11s %12s %12s %6s", "connections", "round trips", "bytes up", "bytes down", "drops"));
+      lines.add(String.format("%11d %11d %12d %12d %6d", connections.get(), roundTrips.get(), bytesUp.get(),
+                              bytesDown.get(), drops.get()));
+      return lines;
+   }
+
+   // Stops accepting and closes every proxied connection
+   @Override
+   public void close() {
+      try {
+         server.close();
+      } catch(IOException e) {
+         // ignored
+      }
+      for(Socket socket : sockets)
+         close(socket);
+   }
+
+   public static void main(String[] args) throws Exception {
+      Map<String, String> options = CafeBench.parseOptions(args);
+      if(!options.containsKey("target")) {
+         System.err.println("Usage: java " + LatencyProxy.class.getName() + " --target host:port [--listen port] " +
+                            "[--rtt ms] [--jitter ms] [--bandwidth bytes/s] [--drop probability]");
+         return;
+      }
+      String[] target = options.get("target").split(":");
+      Conditions conditions = Conditions.fromOptions(options);
+      LatencyProxy proxy = new LatencyProxy(target[0], Integer.parseInt(target[1]),
+         Integer.parseInt(options.getOrDefault("listen", "0")),
+         conditions == null ? new Conditions(0, 0, 0, 0) : conditions);
+      System.out.println("Listening on port " + proxy.port());
+      long reported = -1;
+      while(true) {
+         Thread.sleep(10000);
+         if(proxy.roundTrips() != reported) {
+            reported = proxy.roundTrips();
+            for(String line : proxy.stats().subList(1, 3))
+               System.out.println(line);
+         }
+      }
+   }
+}
@@ -0,0 +1,257 @@
+package src;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Bulk menu administration. A delta file is diffed against the current Menu
+ * and the resulting inserts, updates and deletes are applied in a single
+ * transaction with JDBC batches.
+ *
+ * CSV delta files use the layout of sql/data/menu.csv
+ * (itemName;type;price;description;imageURL). A row whose item name starts
+ * with '-' deletes that item, and trailing columns may be left out to keep the
+ * current values of an existing item.
+ *
+ * JSON delta files hold an array of objects with the members itemName, type,
+ * price, description and imageURL, plus "delete": true to delete an item.
+ */
+public class MenuImport {
+
+   // number of rows sent to the server per JDBC batch
+   private static final int BATCH_SIZE = 500;
+
+   // One Menu row; null columns are left unchanged
+   public static final class Item {
+      String itemName;
+      String type;
+      BigDecimal price;
+      String description;
+      String imageURL;
+      boolean delete;
+
+      // Fills in the columns missing from this item with the ones of the current row
+      Item mergedWith(Item current) {
+         Item merged = new Item();
+         merged.itemName = itemName;
+         merged.type = type != null ? type : current.type;
+         merged.price = price != null ? price : current.price;
+         merged.description = description != null ? description : current.description;
+         merged.imageURL = imageURL != null ? imageURL : current.imageURL;
+         return merged;
+      }
+
+      boolean sameAs(Item other) {
+         return Objects.equals(type, other.type)
+            && (price == null ? other.price == null : other.price != null && price.compareTo(other.price) == 0)
+            && Objects.equals(description, other.description)
+            && Objects.equals(imageURL, other.imageURL);
+      }
+   }
+
+   // Changes needed to bring the Menu in line with a delta file
+   public static final class Plan {
+      final List<Item> inserts = new ArrayList<Item>();
+      final List<Item> updates = new ArrayList<Item>();
+      final List<String> deletes = new ArrayList<String>();
+      int unchanged;
+
+      public boolean isEmpty() {
+         return inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty();
+      }
+
+      @Override
+      public String toString() {
+         return inserts.size() + " insert(s), " + updates.size() + " update(s), "
+            + deletes.size() + " delete(s), " + unchanged + " unchanged";
+      }
+   }
+
+   private final Cafe esql;
+
+   public MenuImport(Cafe esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Reads a delta file, as JSON when its name ends with .json and as CSV otherwise.
+    *
+    * @param file the delta file
+    * @return the items of the file
+    * @throws java.io.IOException when the file could not be read
+    * @throws IllegalArgumentException when the file is malformed
+    */
+   public static List<Item> read(Path file) throws IOException {
+      if(file.getFileName().toString().toLowerCase().endsWith(".json"))
+         return readJson(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+      try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+         return readCsv(reader);
+      }
+   }
+
+   // Reads ';' delimited rows in the layout of sql/data/menu.csv
+   static List<Item> readCsv(BufferedReader reader) throws IOException {
+      List<Item> items = new ArrayList<Item>();
+      String line;
+      int lineNumber = 0;
+      while((line = reader.readLine()) != null) {
+         lineNumber++;
+         if(line.trim().isEmpty())
+            continue;
+         String[] columns = line.split(";", -1);
+         Item item = new Item();
+         item.itemName = columns[0].trim();
+         if(item.itemName.startsWith("-")) {
+            item.itemName = item.itemName.substring(1).trim();
+            item.delete = true;
+         }
+         if(item.itemName.isEmpty())
+            throw new IllegalArgumentException("Missing item name on line " + lineNumber);
+         if(columns.length > 1 && !columns[1].trim().isEmpty())
+            item.type = columns[1].trim();
+         if(columns.length > 2 && !columns[2].trim().isEmpty()) {
+            try {
+               item.price = new BigDecimal(columns[2].trim());
+            } catch(NumberFormatException e) {
+               throw new IllegalArgumentException("Invalid price '" + columns[2] + "' on line " + lineNumber);
+            }
+         }
+         if(columns.length > 3)
+            item.description = columns[3];
+         if(columns.length > 4)
+            item.imageURL = columns[4];
+         items.add(item);
+      }
+      return items;
+   }
+
+   // Reads an array of item objects
+   static List<Item> readJson(String text) {
+      Object document = Json.parse(text);
+      if(!(document instanceof List))
+         throw new IllegalArgumentException("Expected an array of menu items");
+      List<Item> items = new ArrayList<Item>();
+      for(Object element : (List<?>) document) {
+         if(!(element instanceof Map))
+            throw new IllegalArgumentException("Expected a menu item object, got " + element);
+         Map<?, ?> object = (Map<?, ?>) element;
+         Item item = new Item();
+         item.itemName = object.get("itemName") == null ? "" : object.get("itemName").toString().trim();
+         if(item.itemName.isEmpty())
+            throw new IllegalArgumentException("Missing itemName in " + object);
+         item.type = object.get("type") == null ? null : object.get("type").toString().trim();
+         if(object.get("price") != null)
+            item.price = new BigDecimal(object.get("price").toString());
+         item.description = object.get("description") == null ? null : object.get("description").toString();
+         item.imageURL = object.get("imageURL") == null ? null : object.get("imageURL").toString();
+         item.delete = Boolean.TRUE.equals(object.get("delete"));
+         items.add(item);
+      }
+      return items;
+   }
+
+   /**
+    * Diffs a delta against the current Menu.
+    *
+    * @param delta the items read from a delta file
+    * @param replace when true the delta is the whole menu and items missing from it are deleted
+    * @return the changes to apply
+    * @throws java.sql.SQLException when the Menu could not be read
+    * @throws IllegalArgumentException when a new item lacks its type or price
+    */
+   public Plan diff(List<Item> delta, boolean replace) throws SQLException {
+      Map<String, Item> current = new LinkedHashMap<String, Item>();
+      // Read past the query cache, since the changes applied are decided from it
+      for(List<String> record : esql.executeQueryAndReturnFreshResult(
+            "SELECT itemName, type, price, description, imageURL FROM Menu")) {
+         Item item = new Item();
+         item.itemName = record.get(0);
+         item.type = record.get(1);
+         item.price = new BigDecimal(record.get(2));
+         item.description = record.get(3);
+         item.imageURL = record.get(4);
+         current.put(item.itemName, item);
+      }
+
+      Plan plan = new Plan();
+      Set<String> seen = new HashSet<String>();
+      for(Item item : delta) {
+         if(!seen.add(item.itemName))
+            throw new IllegalArgumentException("Item '" + item.itemName + "' appears more than once");
+         Item existing = current.get(item.itemName);
+         if(item.delete) {
+            if(existing != null)
+               plan.deletes.add(item.itemName);
+         } else if(existing == null) {
+            if(item.type == null || item.price == null)
+               throw new IllegalArgumentException("New item '" + item.itemName + "' needs a type and a price");
+            plan.inserts.add(item);
+         } else {
+            Item merged = item.mergedWith(existing);
+            if(merged.sameAs(existing))
+               plan.unchanged++;
+            else
+               plan.updates.add(merged);
+         }
+      }
+      if(replace) {
+         for(String itemName : current.keySet()) {
+            if(!seen.contains(itemName))
+               plan.deletes.add(itemName);
+         }
+      }
+      return plan;
+   }
+
+   /**
+    * Applies a plan in one transaction and notifies the menu listeners once.
+    *
+    * @param plan the changes returned by diff
+    * @throws java.sql.SQLException when a change failed; nothing is applied
+    */
+   public void apply(Plan plan) throws SQLException {
+      if(plan.isEmpty())
+         return;
+      Connection connection = esql.getConnection();
+      boolean autoCommit = connection.getAutoCommit();
+      try {
+         connection.setAutoCommit(false);
+         List<Object[]> deletes = new ArrayList<Object[]>();
+         for(String itemName : plan.deletes)
+            deletes.add(new Object[] {itemName});
+         esql.executeBatch("DELETE FROM Menu WHERE itemName = ?", deletes, BATCH_SIZE);
+         List<Object[]> updates = new ArrayList<Object[]>();
+         for(Item item : plan.updates)
+            updates.add(new Object[] {item.type, item.price, item.description, item.imageURL, item.itemName});
+         esql.executeBatch("UPDATE Menu SET type = ?, price = ?, description = ?, imageURL = ? WHERE itemName = ?",
+                           updates, BATCH_SIZE);
+         List<Object[]> inserts = new ArrayList<Object[]>();
+         for(Item item : plan.inserts)
+            inserts.add(new Object[] {item.itemName, item.type, item.price,
+                                      item.description == null ? "" : item.description,
+                                      item.imageURL == null ? "" : item.imageURL});
+         esql.executeBatch("INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES (?, ?, ?, ?, ?)",
+                           inserts, BATCH_SIZE);
+         connection.commit();
+      } catch(SQLException e) {
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setAutoCommit(autoCommit);
+      }
+      esql.menuChanged();
+   }
+}
@@ -0,0 +1,284 @@
+package src;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import src.AdmissionController.OperationClass;
+
+/**
+ * Typeahead search over menu item names, types and descriptions.
+ *
+ * Menus up to LOCAL_LIMIT items are searched in memory: a prefix trie per
+ * field answers "starts with" lookups for every word, and a trigram index over
+ * item names catches typos. Larger catalogs are searched by the database
+ * through the pg_trgm GIN indexes created by schema migration 2.
+ * The in-memory index is dropped whenever the Menu changes and rebuilt on the
+ * next search: right away for changes made by this process, and once the
+ * MenuSnapshotStore sees a new menu version for changes made by others. A
+ * catalog found too large is remembered until the next change alike.
+ */
+public class MenuSearch {
+
+   // largest menu searched in memory
+   static final int LOCAL_LIMIT = 20000;
+
+   // lowest trigram similarity accepted as a fuzzy match (pg_trgm's default)
+   static final float FUZZY_THRESHOLD = 0.3f;
+
+   // weights of a word prefix match per field, and of an item name trigram match
+   private static final float NAME_WEIGHT = 3f;
+   private static final float TYPE_WEIGHT = 2f;
+   private static final float DESCRIPTION_WEIGHT = 1f;
+   private static final float FUZZY_WEIGHT = 2f;
+
+   // One search hit; a record of itemname, type, price, description
+   public static final class Result {
+      public final List<String> item;
+      public final float score;
+
+      Result(List<String> item, float score) {
+         this.item = item;
+         this.score = score;
+      }
+   }
+
+   private final Cafe esql;
+   private volatile Index index;
+   // whether the menu had more than LOCAL_LIMIT items when last counted
+   private volatile boolean large;
+
+   public MenuSearch(Cafe esql) {
+      this.esql = esql;
+      esql.addMenuListener(this::invalidate);
+   }
+
+   // Drops the in-memory index, it is rebuilt on the next search
+   public void invalidate() {
+      index = null;
+      large = false;
+   }
+
+   /**
+    * Searches the menu, best matches first.
+    *
+    * @param query words to look for, each may be a prefix
+    * @param limit maximum number of results
+    * @return the matching items, ranked
+    * @throws java.sql.SQLException when the menu could not be read
+    */
+   public List<Result> search(String query, int limit) throws SQLException {
+      if(tokenize(query).length == 0)
+         return new ArrayList<Result>();
+      if(large)
+         return searchDatabase(query, limit);
+      Index current = index;
+      if(current == null) {
+         int items = esql.executeQuery("SELECT 1 FROM Menu LIMIT " + (LOCAL_LIMIT + 1));
+         if(items > LOCAL_LIMIT) {
+            large = true;
+            return searchDatabase(query, limit);
+         }
+         current = new Index(esql.executeQueryAndReturnResult(
+            "SELECT itemName, type, price, description FROM Menu ORDER BY itemName"));
+         index = current;
+      }
+      return current.search(query, limit);
+   }
+
+   // Ranks matches with pg_trgm, served by the trigram GIN indexes
+   private List<Result> searchDatabase(String query, int limit) throws SQLException {
+      String sql =
+         "SELECT itemName, type, price, description, greatest(" +
+         "   word_similarity(?, itemName) * 3, similarity(type, ?) * 2, word_similarity(?, description)) AS score " +
+         "FROM Menu " +
+         "WHERE itemName ILIKE ? OR ? <% itemName OR type ILIKE ? OR description ILIKE ? " +
+         "ORDER BY score DESC, itemName LIMIT ?";
+      String q = query.trim();
+      String contains = "%" + q.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+      Object[] params = {q, q, q, contains, q, contains, contains, limit};
+      List<Result> results = new ArrayList<Result>();
+      try (PreparedStatement stmt = esql.getConnection().prepareStatement(sql)) {
+         for(int i = 0; i < params.length; i++)
+            stmt.setObject(i + 1, params[i]);
+         long start = System.nanoTime();
+         try (ResultSet rs = AdmissionController.execute(OperationClass.READ, stmt, stmt::executeQuery)) {
+            QueryLog.record(sql, params, System.nanoTime() - start);
+            while(rs.next()) {
+               results.add(new Result(Arrays.asList(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4)),
+                                      rs.getFloat(5)));
+            }
+         }
+      }
+      return results;
+   }
+
+   // Lowercase words of a string
+   static String[] tokenize(String text) {
+      if(text == null)
+         return new String[0];
+      String trimmed = text.toLowerCase().replaceAll("[^\\p{L}\\p{N}]+", " ").trim();
+      return trimmed.isEmpty() ? new String[0] : trimmed.split(" ");
+   }
+
+   // Trigrams of a string, padded the way pg_trgm pads words
+   static Set<String> trigrams(String text) {
+      Set<String> grams = new LinkedHashSet<String>();
+      for(String word : tokenize(text)) {
+         String padded = "  " + word + " ";
+         for(int i = 0; i + 3 <= padded.length(); i++)
+            grams.add(padded.substring(i, i + 3));
+      }
+      return grams;
+   }
+
+   // Prefix trie; every node knows the items below it
+   static final class Trie {
+      private final Map<Character, Trie> children = new HashMap<Character, Trie>();
+      private int[] items = new int[0];
+      private int size;
+
+      void add(String word, int item) {
+         Trie node = this;
+         node.append(item);
+         for(int i = 0; i < word.length(); i++) {
+            node = node.children.computeIfAbsent(word.charAt(i), c -> new Trie());
+            node.append(item);
+         }
+      }
+
+      // Items are added in increasing order, so skipping the last one avoids duplicates
+      private void append(int item) {
+         if(size > 0 && items[size - 1] == item)
+            return;
+         if(size == items.length)
+            items = Arrays.copyOf(items, Math.max(4, size * 2));
+         items[size++] = item;
+      }
+
+      void freeze() {
+         items = Arrays.copyOf(items, size);
+         for(Trie child : children.values())
+            child.freeze();
+      }
+
+      int[] prefix(String prefix) {
+         Trie node = this;
+         for(int i = 0; i < prefix.length() && node != null; i++)
+            node = node.children.get(prefix.charAt(i));
+         return node == null ? new int[0] : node.items;
+      }
+   }
+
+   // Immutable in-memory index over one version of the menu
+   static final class Index {
+      private final List<List<String>> items;
+      private final String[] names;
+      private final Trie nameTrie = new Trie();
+      private final Trie typeTrie = new Trie();
+      private final Trie descriptionTrie = new Trie();
+      private final Map<String, int[]> nameTrigrams = new HashMap<String, int[]>();
+      private final int[] trigramCounts;
+
+      Index(List<List<String>> items) {
+         this.items = items;
+         this.names = new String[items.size()];
+         this.trigramCounts = new int[items.size()];
+         Map<String, List<Integer>> postings = new HashMap<String, List<Integer>>();
+         for(int i = 0; i < items.size(); i++) {
+            List<String> item = items.get(i);
+            names[i] = item.get(0).toLowerCase();
+            for(String word : tokenize(item.get(0)))
+               nameTrie.add(word, i);
+            for(String word : tokenize(item.get(1)))
+               typeTrie.add(word, i);
+            for(String word : tokenize(item.get(3)))
+               descriptionTrie.add(word, i);
+            Set<String> grams = trigrams(item.get(0));
+            trigramCounts[i] = grams.size();
+            for(String gram : grams)
+               postings.computeIfAbsent(gram, g -> new ArrayList<Integer>()).add(i);
+         }
+         nameTrie.freeze();
+         typeTrie.freeze();
+         descriptionTrie.freeze();
+         for(Map.Entry<String, List<Integer>> entry : postings.entrySet())
+            nameTrigrams.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+      }
+
+      List<Result> search(String query, int limit) {
+         String[] tokens = tokenize(query);
+         int n = items.size();
+         float[] scores = new float[n];
+         int[] matchedTokens = new int[n];
+         float[] tokenScores = new float[n];
+
+         // Every word of the query must prefix a word of some field
+         for(String token : tokens) {
+            Arrays.fill(tokenScores, 0f);
+            mark(tokenScores, descriptionTrie.prefix(token), DESCRIPTION_WEIGHT);
+            mark(tokenScores, typeTrie.prefix(token), TYPE_WEIGHT);
+            mark(tokenScores, nameTrie.prefix(token), NAME_WEIGHT);
+            for(int i = 0; i < n; i++) {
+               if(tokenScores[i] > 0) {
+                  scores[i] += tokenScores[i];
+                  matchedTokens[i]++;
+               }
+            }
+         }
+         String whole = String.join(" ", tokens);
+         for(int i = 0; i < n; i++) {
+            if(matchedTokens[i] != tokens.length) {
+               scores[i] = 0;
+            } else if(names[i].equals(whole)) {
+               scores[i] += 2 * NAME_WEIGHT;
+            } else if(names[i].startsWith(whole)) {
+               scores[i] += NAME_WEIGHT;
+            }
+         }
+
+         // Typos: trigram similarity of the whole query against item names
+         Set<String> grams = trigrams(query);
+         if(!grams.isEmpty()) {
+            int[] shared = new int[n];
+            for(String gram : grams) {
+               int[] posting = nameTrigrams.get(gram);
+               if(posting != null) {
+                  for(int item : posting)
+                     shared[item]++;
+               }
+            }
+            for(int i = 0; i < n; i++) {
+               if(shared[i] == 0)
+                  continue;
+               float similarity = (float) shared[i] / (grams.size() + trigramCounts[i] - shared[i]);
+               if(similarity >= FUZZY_THRESHOLD)
+                  scores[i] = Math.max(scores[i], similarity * FUZZY_WEIGHT);
+            }
+         }
+
+         List<Integer> hits = new ArrayList<Integer>();
+         for(int i = 0; i < n; i++) {
+            if(scores[i] > 0)
+               hits.add(i);
+         }
+         hits.sort((a, b) -> scores[a] != scores[b] ? Float.compare(scores[b], scores[a]) : names[a].compareTo(names[b]));
+         List<Result> results = new ArrayList<Result>();
+         for(int i = 0; i < hits.size() && i < limit; i++)
+            results.add(new Result(items.get(hits.get(i)), scores[hits.get(i)]));
+         return results;
+      }
+
+      // Keeps the best field weight per item for the current query word
+      private static void mark(float[] tokenScores, int[] matches, float weight) {
+         for(int item : matches)
+            tokenScores[item] = Math.max(tokenScores[item], weight);
+      }
+   }
+}
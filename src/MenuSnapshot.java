@@ -0,0 +1,223 @@
+package src;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only, memory-mapped copy of the Menu table at one menu version.
+ *
+ * Opening a snapshot maps the file and checks its header; nothing else is
+ * read until an item is looked at. The layout (big-endian) is:
+ *
+ *   header   magic, format, menu version (long), type count, item count
+ *   types    per type: name offset, index of its first item, item count
+ *   items    per item, grouped by type: name offset, price in cents (long),
+ *            description offset
+ *   strings  per string: byte length, UTF-8 bytes
+ *
+ * Offsets are absolute file positions. Files are replaced atomically, so a
+ * mapped snapshot stays valid while a newer one is written next to it.
+ */
+public final class MenuSnapshot {
+
+   static final int MAGIC = 0x43414645; // "CAFE"
+   static final int FORMAT = 1;
+
+   private static final int HEADER = 24;
+   private static final int TYPE_ENTRY = 12;
+   private static final int ITEM_ENTRY = 16;
+   // price of an item without one
+   private static final long NO_PRICE = Long.MIN_VALUE;
+
+   private final ByteBuffer buffer;
+   private final long version;
+   private final int types;
+   private final int items;
+
+   private MenuSnapshot(ByteBuffer buffer) {
+      this.buffer = buffer;
+      this.version = buffer.getLong(8);
+      this.types = buffer.getInt(16);
+      this.items = buffer.getInt(20);
+   }
+
+   /**
+    * Maps a snapshot file.
+    *
+    * @return the snapshot, or null when the file is missing or not a snapshot
+    * @throws java.io.IOException when the file could not be read
+    */
+   public static MenuSnapshot open(Path file) throws IOException {
+      if(!Files.exists(file))
+         return null;
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+         if(channel.size() < HEADER)
+            return null;
+         ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT)
+            return null;
+         return new MenuSnapshot(buffer);
+      }
+   }
+
+   /**
+    * Writes a snapshot and atomically replaces the file with it.
+    *
+    * @param version the menu version the items were read at
+    * @param menu records of (itemName, type, price, description), grouped by type
+    * @throws java.io.IOException when the file could not be written
+    */
+   public static void write(Path file, long version, List<List<String>> menu) throws IOException {
+      // Group the items by type, keeping the order of the records
+      Map<String, List<List<String>>> byType = new LinkedHashMap<String, List<List<String>>>();
+      for(List<String> item : menu)
+         byType.computeIfAbsent(item.get(1), t -> new ArrayList<List<String>>()).add(item);
+
+      int stringsStart = HEADER + byType.size() * TYPE_ENTRY + menu.size() * ITEM_ENTRY;
+      ByteArrayOutputStream strings = new ByteArrayOutputStream();
+      ByteArrayOutputStream tables = new ByteArrayOutputStream();
+      DataOutputStream table = new DataOutputStream(tables);
+      DataOutputStream heap = new DataOutputStream(strings);
+
+      int first = 0;
+      for(Map.Entry<String, List<List<String>>> type : byType.entrySet()) {
+         table.writeInt(stringsStart + append(heap, type.getKey()));
+         table.writeInt(first);
+         table.writeInt(type.getValue().size());
+         first += type.getValue().size();
+      }
+      for(List<List<String>> ofType : byType.values()) {
+         for(List<String> item : ofType) {
+            table.writeInt(stringsStart + append(heap, item.get(0)));
+            table.writeLong(item.get(2) == null ? NO_PRICE : new BigDecimal(item.get(2)).movePointRight(2).longValueExact());
+            table.writeInt(stringsStart + append(heap, item.get(3)));
+         }
+      }
+
+      Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+      try (OutputStream out = Files.newOutputStream(tmp)) {
+         DataOutputStream header = new DataOutputStream(out);
+         header.writeInt(MAGIC);
+         header.writeInt(FORMAT);
+         header.writeLong(version);
+         header.writeInt(byType.size());
+         header.writeInt(menu.size());
+         tables.writeTo(out);
+         strings.writeTo(out);
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   // Appends a string to the heap and returns its offset within the heap
+   private static int append(DataOutputStream heap, String value) throws IOException {
+      int offset = heap.size();
+      byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+      heap.writeInt(bytes.length);
+      heap.write(bytes);
+      return offset;
+   }
+
+   // The menu version this snapshot was taken at
+   public long version() {
+      return version;
+   }
+
+   // Records of (type), like CafeRepository.menuTypes()
+   public List<List<String>> menuTypes() {
+      List<List<String>> result = new ArrayList<List<String>>(types);
+      for(int t = 0; t < types; t++) {
+         List<String> record = new ArrayList<String>(1);
+         record.add(string(buffer.getInt(typeEntry(t))));
+         result.add(record);
+      }
+      return result;
+   }
+
+   // Records of (itemName, price, description) of one type, like CafeRepository.itemsOfType()
+   public List<List<String>> itemsOfType(String type) {
+      List<List<String>> result = new ArrayList<List<String>>();
+      for(int t = 0; t < types; t++) {
+         if(string(buffer.getInt(typeEntry(t))).equals(type))
+            addItems(result, t, null);
+      }
+      return result;
+   }
+
+   // Records of (itemName, type, price, description) of the whole menu
+   public List<List<String>> items() {
+      List<List<String>> result = new ArrayList<List<String>>(items);
+      for(int t = 0; t < types; t++)
+         addItems(result, t, string(buffer.getInt(typeEntry(t))));
+      return result;
+   }
+
+   /**
+    * The price of one item, compared like the char(50) itemName column: trailing
+    * blanks do not count.
+    *
+    * @param itemName the item to look up
+    * @return the price, null when the item is not on the menu
+    */
+   public BigDecimal price(String itemName) {
+      String wanted = itemName.stripTrailing();
+      for(int i = 0; i < items; i++) {
+         int item = itemEntry(i);
+         if(string(buffer.getInt(item)).stripTrailing().equals(wanted)) {
+            long cents = buffer.getLong(item + 4);
+            return cents == NO_PRICE ? null : BigDecimal.valueOf(cents, 2);
+         }
+      }
+      return null;
+   }
+
+   // Adds the items of type t, with their type name when one is given
+   private void addItems(List<List<String>> result, int t, String type) {
+      int first = buffer.getInt(typeEntry(t) + 4);
+      int count = buffer.getInt(typeEntry(t) + 8);
+      for(int i = first; i < first + count; i++) {
+         int item = itemEntry(i);
+         List<String> record = new ArrayList<String>(4);
+         record.add(string(buffer.getInt(item)));
+         if(type != null)
+            record.add(type);
+         record.add(price(buffer.getLong(item + 4)));
+         record.add(string(buffer.getInt(item + 12)));
+         result.add(record);
+      }
+   }
+
+   private int typeEntry(int t) {
+      return HEADER + t * TYPE_ENTRY;
+   }
+
+   private int itemEntry(int i) {
+      return HEADER + types * TYPE_ENTRY + i * ITEM_ENTRY;
+   }
+
+   // Decodes a string of the heap; absolute reads keep the buffer shareable between threads
+   private String string(int offset) {
+      byte[] bytes = new byte[buffer.getInt(offset)];
+      ByteBuffer view = buffer.duplicate();
+      view.position(offset + 4);
+      view.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   private static String price(long cents) {
+      return cents == NO_PRICE ? null : BigDecimal.valueOf(cents, 2).toPlainString();
+   }
+}
@@ -0,0 +1,187 @@
+package src;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves menu browsing from a MenuSnapshot file and keeps that file current.
+ *
+ * The snapshot on disk is mapped when the store is created, so browsing works
+ * before the database connection is up and while the database is unreachable.
+ * Once connected, a background thread compares the snapshot with the menu
+ * version the database keeps (table menu_version, bumped by a trigger on every
+ * change of Menu, schema migration 6) and rewrites the snapshot when they
+ * differ. Changes made by this process are picked up right away. Listeners are
+ * told about every new version, including those written by other processes.
+ */
+public class MenuSnapshotStore implements AutoCloseable {
+
+   private final Path file;
+   private volatile MenuSnapshot snapshot;
+   private volatile Cafe esql;
+   private Connection refreshConnection;
+   private volatile ScheduledExecutorService refresher;
+   // run after a new menu version was loaded
+   private final List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+
+   /**
+    * Maps the snapshot file if there is one.
+    *
+    * @param file the snapshot file, created on the first refresh
+    */
+   public MenuSnapshotStore(Path file) {
+      this.file = file;
+      try {
+         this.snapshot = MenuSnapshot.open(file);
+      } catch(IOException e) {
+         System.err.println("Unable to read menu snapshot: " + e.getMessage());
+      }
+   }
+
+   /**
+    * Starts refreshing the snapshot from the database of a connected Cafe.
+    *
+    * @param esql the application, used to open the refresh connection
+    * @param refreshSeconds interval between checks of the menu version
+    */
+   public synchronized void connect(Cafe esql, int refreshSeconds) {
+      if(refresher != null)
+         return;
+      this.esql = esql;
+      this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread thread = new Thread(r, "menu-snapshot-refresh");
+         thread.setDaemon(true);
+         return thread;
+      });
+      esql.addMenuListener(() -> refresher.execute(this::refreshQuietly));
+      refresher.scheduleWithFixedDelay(this::refreshQuietly, 0, refreshSeconds, TimeUnit.SECONDS);
+   }
+
+   /**
+    * Registers a listener run on the refresh thread after every snapshot
+    * written for a new menu version, whichever process changed the menu.
+    *
+    * @param listener the listener to run
+    */
+   public void addListener(Runnable listener) {
+      listeners.add(listener);
+   }
+
+   // The current snapshot, null before the first one was written
+   public MenuSnapshot snapshot() {
+      return snapshot;
+   }
+
+   // Distinct item types, from the snapshot when there is one
+   public List<List<String>> menuTypes() throws SQLException {
+      MenuSnapshot current = snapshot;
+      if(current != null)
+         return current.menuTypes();
+      return database().repository().menuTypes();
+   }
+
+   // Records of (itemName, price, description) of one type, from the snapshot when there is one
+   public List<List<String>> itemsOfType(String type) throws SQLException {
+      MenuSnapshot current = snapshot;
+      if(current != null)
+         return current.itemsOfType(type);
+      return database().repository().itemsOfType(type);
+   }
+
+   // The price of an item, null when it is not on the menu; from the snapshot when there is one
+   public BigDecimal price(String itemName) throws SQLException {
+      MenuSnapshot current = snapshot;
+      if(current != null)
+         return current.price(itemName);
+      return database().repository().price(itemName);
+   }
+
+   private Cafe database() throws SQLException {
+      if(esql == null)
+         throw new SQLException("The menu is not available yet: no snapshot and no database connection");
+      return esql;
+   }
+
+   /**
+    * Rewrites the snapshot if the menu version of the database moved on.
+    *
+    * @return whether a new snapshot was written
+    * @throws java.sql.SQLException when the database could not be read
+    * @throws java.io.IOException when the snapshot could not be written
+    */
+   public synchronized boolean refresh() throws SQLException, IOException {
+      if(esql == null)
+         return false;
+      if(refreshConnection == null)
+         refreshConnection = esql.openConnection();
+      try (Statement stmt = refreshConnection.createStatement()) {
+         // The version is read first, so a concurrent change is caught by the next refresh
+         long version;
+         try (ResultSet rs = stmt.executeQuery("SELECT version FROM menu_version")) {
+            version = rs.next() ? rs.getLong(1) : 0;
+         }
+         MenuSnapshot current = snapshot;
+         if(current != null && current.version() == version)
+            return false;
+         List<List<String>> menu = new ArrayList<List<String>>();
+         try (ResultSet rs = stmt.executeQuery("SELECT itemName, type, price, description FROM Menu ORDER BY type, itemName")) {
+            while(rs.next()) {
+               List<String> record = new ArrayList<String>(4);
+               for(int i = 1; i <= 4; i++)
+                  record.add(rs.getString(i));
+               menu.add(record);
+            }
+         }
+         MenuSnapshot.write(file, version, menu);
+         snapshot = MenuSnapshot.open(file);
+         for(Runnable listener : listeners) {
+            try {
+               listener.run();
+            } catch(RuntimeException e) {
+               System.err.println(e.getMessage());
+            }
+         }
+         return true;
+      } catch(SQLException e) {
+         // Reconnect on the next refresh
+         closeConnection();
+         throw e;
+      }
+   }
+
+   private void refreshQuietly() {
+      try {
+         refresh();
+      } catch(Exception e) {
+         // the database is unreachable; browsing keeps using the current snapshot
+      }
+   }
+
+   private void closeConnection() {
+      try {
+         if(refreshConnection != null)
+            refreshConnection.close();
+      } catch(SQLException e) {
+         // ignored
+      }
+      refreshConnection = null;
+   }
+
+   @Override
+   public void close() {
+      if(refresher != null)
+         refresher.shutdownNow();
+      closeConnection();
+   }
+}
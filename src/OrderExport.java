@@ -0,0 +1,129 @@
+package src;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+/**
+ * Streams Orders and their ItemStatus rows for a time range to files through
+ * COPY TO STDOUT. Rows go straight from the server to the (optionally
+ * compressed) file, so memory use stays constant however many rows there are.
+ * Both files of an export are read in one REPEATABLE READ, READ ONLY
+ * transaction, so every exported item belongs to an exported order.
+ */
+public class OrderExport {
+
+   // Layout of the exported rows
+   public enum Format {
+      CSV("csv", "(FORMAT csv, HEADER)"),
+      BINARY("pgcopy", "(FORMAT binary)");
+
+      private final String extension;
+      private final String options;
+
+      Format(String extension, String options) {
+         this.extension = extension;
+         this.options = options;
+      }
+   }
+
+   // Compression applied to the exported files
+   public enum Compression {
+      NONE(""),
+      GZIP(".gz");
+
+      private final String extension;
+
+      Compression(String extension) {
+         this.extension = extension;
+      }
+
+      // Wraps a file stream with the compressor
+      public OutputStream open(Path file) throws IOException {
+         OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+         if(this == GZIP)
+            return new GZIPOutputStream(out, 1 << 16);
+         return out;
+      }
+
+      public String extension() {
+         return extension;
+      }
+   }
+
+   private final Cafe esql;
+
+   public OrderExport(Cafe esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Exports the orders received in [from, to) and their items to two files,
+    * &lt;prefix&gt;_orders and &lt;prefix&gt;_itemstatus, in the given directory.
+    *
+    * @param from start of the time range, inclusive
+    * @param to end of the time range, exclusive
+    * @param dir directory receiving the files
+    * @param prefix file name prefix
+    * @param format CSV or PostgreSQL binary COPY format
+    * @param compression compression of the files
+    * @return the files written
+    * @throws java.sql.SQLException when a COPY failed
+    * @throws java.io.IOException when a file could not be written
+    */
+   public List<Path> export(LocalDateTime from, LocalDateTime to, Path dir, String prefix,
+                            Format format, Compression compression) throws SQLException, IOException {
+      Files.createDirectories(dir);
+      List<Path> files = new ArrayList<Path>();
+      String orders = String.format(
+         "SELECT orderid, login, paid, timeStampRecieved, total FROM Orders " +
+         "WHERE timeStampRecieved >= '%s' AND timeStampRecieved < '%s' ORDER BY timeStampRecieved", from, to);
+      String items = String.format(
+         "SELECT orderid, orderTimeStamp, itemName, lastUpdated, status, comments FROM ItemStatus " +
+         "WHERE orderTimeStamp >= '%s' AND orderTimeStamp < '%s' ORDER BY orderTimeStamp", from, to);
+      Connection connection = esql.getConnection();
+      boolean autoCommit = connection.getAutoCommit();
+      try {
+         connection.setAutoCommit(false);
+         // One snapshot for both files
+         esql.executeUpdate("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+         files.add(copyOut(orders, dir.resolve(prefix + "_orders." + format.extension + compression.extension()), format, compression));
+         files.add(copyOut(items, dir.resolve(prefix + "_itemstatus." + format.extension + compression.extension()), format, compression));
+         connection.commit();
+      } catch(SQLException | IOException e) {
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setAutoCommit(autoCommit);
+      }
+      return files;
+   }
+
+   /**
+    * Streams a table or query through COPY TO STDOUT into a file.
+    *
+    * @param source a table name or a SELECT statement
+    * @param file the file to write
+    * @return the file written
+    */
+   public Path copyOut(String source, Path file, Format format, Compression compression) throws SQLException, IOException {
+      if(source.trim().toUpperCase().startsWith("SELECT"))
+         source = "(" + source + ")";
+      CopyManager copy = new CopyManager(esql.getConnection().unwrap(BaseConnection.class));
+      try (OutputStream out = compression.open(file)) {
+         copy.copyOut(String.format("COPY %s TO STDOUT WITH %s", source, format.options), out);
+      }
+      return file;
+   }
+}
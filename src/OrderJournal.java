@@ -0,0 +1,560 @@
+package src;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.sql.Savepoint;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import src.AdmissionController.OperationClass;
+
+/**
+ * Append-only, memory-mapped journal of checkout and payment commands.
+ *
+ * Commands are acknowledged as soon as they are forced to disk; the caller
+ * never waits for the database. A background thread replays them in batches
+ * right after they are appended and every few seconds, on connections of its
+ * own: one per shard when the application is sharded, where a checkout goes
+ * to the shard of its user and a payment to the shard of its order. Every
+ * command carries a random idempotency key which is stored in
+ * order_journal_applied in the same transaction as the command's effect, so a
+ * batch replayed twice (after a crash between the commit and the journal
+ * header update) is applied once. Orders placed while the database is
+ * unreachable are priced when they are replayed.
+ *
+ * A command the database rejects for good (e.g. an item that left the menu or
+ * a constraint violation) is rolled back to its savepoint, recorded as applied
+ * without effect and counted as dropped, so it never holds up the commands
+ * behind it. Connection failures, timeouts, deadlocks and serialization
+ * failures leave the batch in the journal for the next replay.
+ *
+ * File layout: a header of magic, format version and the sequence number of
+ * the last replayed command, followed by records of
+ * [int length][body][int crc32 of body]. A record with length 0 or a bad
+ * checksum marks the end of the journal (a torn write is discarded).
+ */
+public class OrderJournal implements AutoCloseable {
+
+   private static final int MAGIC = 0x43414a4c;
+   private static final int FORMAT = 1;
+   private static final int HEADER_SIZE = 16;
+   private static final int APPLIED_OFFSET = 8;
+   private static final int INITIAL_CAPACITY = 8 << 20;
+
+   private static final byte CHECKOUT = 1;
+   private static final byte PAYMENT = 2;
+
+   // number of commands replayed per database transaction
+   static final int BATCH_SIZE = 100;
+
+   // A command read back from the journal
+   static final class Command {
+      long seq;
+      long time;
+      byte type;
+      UUID key;
+      String login;
+      Map<String, Integer> items;
+      int orderid;
+      int end;
+   }
+
+   // the databases commands are replayed to, every shard when sharded
+   private final List<Cafe> databases;
+   private final ShardedCafeRepository sharded;
+   private final FileChannel channel;
+   private MappedByteBuffer buffer;
+   private long nextSeq;
+   private long appliedSeq;
+   // file offset of the first record after appliedSeq, where the next replay starts reading
+   private int appliedEnd = HEADER_SIZE;
+   // replay connection per database, guarded by replayLock
+   private final Connection[] replayConnections;
+   private final Object replayLock = new Object();
+   private final ScheduledExecutorService replayer;
+   // whether a replay was requested and has not started yet
+   private final AtomicBoolean replayRequested = new AtomicBoolean();
+
+   private final AtomicLong appended = new AtomicLong();
+   private final AtomicLong replayed = new AtomicLong();
+   private final AtomicLong dropped = new AtomicLong();
+   private final AtomicLong failedReplays = new AtomicLong();
+   private volatile String lastDropped;
+   private volatile String lastError;
+
+   /**
+    * Opens or creates a journal and starts replaying it in the background.
+    *
+    * @param esql the application, whose databases (every shard when sharded) the commands go to
+    * @param file the journal file
+    * @param replaySeconds interval between background replays
+    * @throws java.io.IOException when the file could not be mapped
+    */
+   public OrderJournal(Cafe esql, Path file, int replaySeconds) throws IOException {
+      this.sharded = esql.repository() instanceof ShardedCafeRepository ? (ShardedCafeRepository) esql.repository() : null;
+      this.databases = sharded != null ? sharded.shards() : Collections.singletonList(esql);
+      this.replayConnections = new Connection[databases.size()];
+      this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      long size = Math.max(channel.size(), INITIAL_CAPACITY);
+      this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      if(buffer.getInt(0) != MAGIC) {
+         buffer.putInt(0, MAGIC);
+         buffer.putInt(4, FORMAT);
+         buffer.putLong(APPLIED_OFFSET, 0);
+         buffer.force();
+      } else if(buffer.getInt(4) != FORMAT) {
+         throw new IOException("Unsupported journal format " + buffer.getInt(4) + " in " + file);
+      }
+      recover();
+      this.replayer = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread thread = new Thread(r, "order-journal-replay");
+         thread.setDaemon(true);
+         return thread;
+      });
+      replayer.scheduleWithFixedDelay(this::replayQuietly, replaySeconds, replaySeconds, TimeUnit.SECONDS);
+   }
+
+   // Finds the end of the valid records and the next sequence number
+   private void recover() {
+      appliedSeq = buffer.getLong(APPLIED_OFFSET);
+      nextSeq = appliedSeq + 1;
+      int position = HEADER_SIZE;
+      Command command;
+      while((command = read(position)) != null) {
+         nextSeq = command.seq + 1;
+         position = command.end;
+         if(command.seq <= appliedSeq)
+            appliedEnd = position;
+      }
+      buffer.position(position);
+      // Zero whatever a torn write left behind so it is never mistaken for a record
+      for(int i = position; i < Math.min(buffer.capacity(), position + 8); i++)
+         buffer.put(i, (byte) 0);
+   }
+
+   /**
+    * Records a checkout; it is placed by the background replay.
+    *
+    * @param login the ordering user
+    * @param items quantity per item name
+    * @return the sequence number of the command
+    * @throws java.io.IOException when the command could not be written to the journal
+    */
+   public long checkout(String login, Map<String, Integer> items) throws IOException {
+      long seq = append(CHECKOUT, login, items, 0);
+      requestReplay();
+      return seq;
+   }
+
+   /**
+    * Records a payment; it is applied by the background replay.
+    *
+    * @param orderid the order to pay
+    * @throws java.io.IOException when the command could not be written to the journal
+    */
+   public void pay(int orderid) throws IOException {
+      append(PAYMENT, null, null, orderid);
+      requestReplay();
+   }
+
+   // Has the replayer run soon, once for any number of commands appended meanwhile
+   private void requestReplay() {
+      if(replayRequested.compareAndSet(false, true))
+         replayer.execute(this::replayQuietly);
+   }
+
+   // Number of commands not yet replayed
+   public synchronized long pending() {
+      return nextSeq - 1 - appliedSeq;
+   }
+
+   // Sequence number of the last command replayed, or dropped, and committed
+   public synchronized long appliedSeq() {
+      return appliedSeq;
+   }
+
+   // Writes one command and forces it to disk; returns its sequence number
+   private synchronized long append(byte type, String login, Map<String, Integer> items, int orderid) throws IOException {
+      UUID key = UUID.randomUUID();
+      List<byte[]> strings = new ArrayList<byte[]>();
+      int bodySize = 8 + 8 + 1 + 16;
+      if(type == CHECKOUT) {
+         byte[] name = login.getBytes(StandardCharsets.UTF_8);
+         strings.add(name);
+         bodySize += 2 + name.length + 2;
+         for(String itemName : items.keySet()) {
+            byte[] item = itemName.getBytes(StandardCharsets.UTF_8);
+            strings.add(item);
+            bodySize += 2 + item.length + 4;
+         }
+      } else {
+         bodySize += 4;
+      }
+      ensureCapacity(4 + bodySize + 4 + 4);
+
+      int start = buffer.position();
+      buffer.putInt(bodySize);
+      buffer.putLong(nextSeq);
+      buffer.putLong(System.currentTimeMillis());
+      buffer.put(type);
+      buffer.putLong(key.getMostSignificantBits());
+      buffer.putLong(key.getLeastSignificantBits());
+      if(type == CHECKOUT) {
+         putString(strings.get(0));
+         buffer.putShort((short) items.size());
+         int i = 1;
+         for(Integer quantity : items.values()) {
+            putString(strings.get(i++));
+            buffer.putInt(quantity);
+         }
+      } else {
+         buffer.putInt(orderid);
+      }
+      CRC32 crc = new CRC32();
+      for(int i = start + 4; i < start + 4 + bodySize; i++)
+         crc.update(buffer.get(i));
+      buffer.putInt((int) crc.getValue());
+      buffer.putInt(buffer.position(), 0);
+      buffer.force();
+      appended.incrementAndGet();
+      return nextSeq++;
+   }
+
+   private void putString(byte[] bytes) {
+      buffer.putShort((short) bytes.length);
+      buffer.put(bytes);
+   }
+
+   private String getString(int[] position) {
+      int length = buffer.getShort(position[0]) & 0xffff;
+      byte[] bytes = new byte[length];
+      for(int i = 0; i < length; i++)
+         bytes[i] = buffer.get(position[0] + 2 + i);
+      position[0] += 2 + length;
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   // Grows the mapping when a record would not fit
+   private void ensureCapacity(int needed) throws IOException {
+      if(buffer.position() + needed <= buffer.capacity())
+         return;
+      int position = buffer.position();
+      buffer.force();
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(buffer.capacity() * 2L, position + needed));
+      buffer.position(position);
+   }
+
+   // Decodes the record at a position, null at the end of the journal
+   private synchronized Command read(int position) {
+      if(position + 4 > buffer.capacity())
+         return null;
+      int bodySize = buffer.getInt(position);
+      if(bodySize <= 0 || position + 4 + bodySize + 4 > buffer.capacity())
+         return null;
+      CRC32 crc = new CRC32();
+      for(int i = position + 4; i < position + 4 + bodySize; i++)
+         crc.update(buffer.get(i));
+      if((int) crc.getValue() != buffer.getInt(position + 4 + bodySize))
+         return null;
+
+      Command command = new Command();
+      int[] at = {position + 4};
+      command.seq = buffer.getLong(at[0]);
+      command.time = buffer.getLong(at[0] + 8);
+      command.type = buffer.get(at[0] + 16);
+      command.key = new UUID(buffer.getLong(at[0] + 17), buffer.getLong(at[0] + 25));
+      at[0] += 33;
+      if(command.type == CHECKOUT) {
+         command.login = getString(at);
+         int count = buffer.getShort(at[0]) & 0xffff;
+         at[0] += 2;
+         command.items = new LinkedHashMap<String, Integer>();
+         for(int i = 0; i < count; i++) {
+            String itemName = getString(at);
+            command.items.put(itemName, buffer.getInt(at[0]));
+            at[0] += 4;
+         }
+      } else {
+         command.orderid = buffer.getInt(at[0]);
+      }
+      command.end = position + 4 + bodySize + 4;
+      return command;
+   }
+
+   // Replays pending commands, leaving them in the journal if the database is unreachable
+   private void replayQuietly() {
+      replayRequested.set(false);
+      try {
+         replay();
+      } catch(SQLException e) {
+         // Database unreachable, the commands stay in the journal
+         failedReplays.incrementAndGet();
+         lastError = e.getMessage();
+         closeReplayConnections();
+      }
+   }
+
+   /**
+    * Replays every pending command to the database, BATCH_SIZE at a time in
+    * one transaction per database.
+    *
+    * @return the number of commands replayed
+    * @throws java.sql.SQLException when the database is unreachable
+    */
+   public int replay() throws SQLException {
+      synchronized(replayLock) {
+         int count = 0;
+         while(true) {
+            List<Command> batch = pendingBatch();
+            if(batch.isEmpty())
+               break;
+            // A shard that committed before another failed skips its commands by key next time
+            Map<Integer, List<Command>> byDatabase = new TreeMap<Integer, List<Command>>();
+            for(Command command : batch)
+               byDatabase.computeIfAbsent(databaseOf(command), d -> new ArrayList<Command>()).add(command);
+            for(Map.Entry<Integer, List<Command>> commands : byDatabase.entrySet())
+               applyBatch(commands.getKey(), commands.getValue());
+            markApplied(batch.get(batch.size() - 1));
+            count += batch.size();
+            replayed.addAndGet(batch.size());
+         }
+         compact();
+         return count;
+      }
+   }
+
+   // Index in databases of the shard a command belongs to
+   private int databaseOf(Command command) {
+      if(sharded == null)
+         return 0;
+      return command.type == CHECKOUT ? sharded.shardOf(command.login) : sharded.shardOfOrder(command.orderid);
+   }
+
+   // Reads up to BATCH_SIZE commands following the last applied one
+   private synchronized List<Command> pendingBatch() {
+      List<Command> batch = new ArrayList<Command>();
+      int position = appliedEnd;
+      Command command;
+      while(batch.size() < BATCH_SIZE && (command = read(position)) != null) {
+         batch.add(command);
+         position = command.end;
+      }
+      return batch;
+   }
+
+   private synchronized void markApplied(Command last) {
+      appliedSeq = last.seq;
+      appliedEnd = last.end;
+      buffer.putLong(APPLIED_OFFSET, last.seq);
+      buffer.force();
+   }
+
+   // Starts the journal over once everything in it has been replayed
+   private synchronized void compact() {
+      if(pending() != 0 || buffer.position() == HEADER_SIZE)
+         return;
+      buffer.putInt(HEADER_SIZE, 0);
+      buffer.position(HEADER_SIZE);
+      appliedEnd = HEADER_SIZE;
+      buffer.force();
+   }
+
+   // Applies the commands of one database in a single transaction, skipping those whose key was already applied
+   private void applyBatch(int database, List<Command> batch) throws SQLException {
+      Connection connection = replayConnection(database);
+      try {
+         Set<UUID> applied = new HashSet<UUID>();
+         UUID[] keys = new UUID[batch.size()];
+         for(int i = 0; i < keys.length; i++)
+            keys[i] = batch.get(i).key;
+         try (PreparedStatement stmt = connection.prepareStatement(
+               "SELECT key FROM order_journal_applied WHERE key = ANY(?)")) {
+            stmt.setQueryTimeout(OperationClass.WRITE.timeoutSeconds);
+            stmt.setArray(1, connection.createArrayOf("uuid", keys));
+            try (ResultSet rs = stmt.executeQuery()) {
+               while(rs.next())
+                  applied.add((UUID) rs.getObject(1));
+            }
+         }
+
+         for(Command command : batch) {
+            if(applied.contains(command.key))
+               continue;
+            Integer orderid;
+            Savepoint savepoint = connection.setSavepoint();
+            try {
+               orderid = command.type == CHECKOUT ? placeOrder(connection, command) : payOrder(connection, command);
+            } catch(SQLException e) {
+               if(retryable(e))
+                  throw e;
+               connection.rollback(savepoint);
+               orderid = null;
+               drop(command, e.getMessage());
+            }
+            try (PreparedStatement stmt = connection.prepareStatement(
+                  "INSERT INTO order_journal_applied (key, orderid) VALUES (?, ?)")) {
+               stmt.setQueryTimeout(OperationClass.WRITE.timeoutSeconds);
+               stmt.setObject(1, command.key);
+               stmt.setObject(2, orderid);
+               stmt.executeUpdate();
+            }
+         }
+         connection.commit();
+         databases.get(database).cache().invalidateTables("orders");
+      } catch(SQLException e) {
+         try {
+            connection.rollback();
+         } catch(SQLException ignored) {
+            // the connection is gone, the batch is replayed later
+         }
+         throw e;
+      }
+   }
+
+   // Whether a failure may go away by itself: lost connections, timeouts, deadlocks, serialization or lock failures
+   private static boolean retryable(SQLException e) {
+      if(e instanceof SQLTransientException || e instanceof SQLRecoverableException)
+         return true;
+      String state = e.getSQLState();
+      return state == null || state.startsWith("08") || state.startsWith("40") || state.startsWith("53")
+             || state.startsWith("57") || state.equals("55P03");
+   }
+
+   // Counts a command that can never be applied
+   private void drop(Command command, String reason) {
+      dropped.incrementAndGet();
+      lastDropped = (command.type == CHECKOUT ? "order of " + command.login : "payment of order " + command.orderid) +
+                    ": " + reason;
+   }
+
+   // Inserts a journaled order priced at replay time; null when an item no longer exists
+   private Integer placeOrder(Connection connection, Command command) throws SQLException {
+      Map<String, BigDecimal> prices = new HashMap<String, BigDecimal>();
+      try (PreparedStatement stmt = connection.prepareStatement("SELECT itemName, price FROM Menu WHERE itemName = ANY(?)")) {
+         stmt.setQueryTimeout(OperationClass.WRITE.timeoutSeconds);
+         stmt.setArray(1, connection.createArrayOf("varchar", command.items.keySet().toArray()));
+         try (ResultSet rs = stmt.executeQuery()) {
+            while(rs.next())
+               prices.put(rs.getString(1), rs.getBigDecimal(2));
+         }
+      }
+      BigDecimal total = BigDecimal.ZERO;
+      for(Map.Entry<String, Integer> item : command.items.entrySet()) {
+         BigDecimal price = prices.get(item.getKey());
+         if(price == null) {
+            drop(command, "unknown menu item " + item.getKey());
+            return null;
+         }
+         total = total.add(price.multiply(BigDecimal.valueOf(item.getValue())));
+      }
+
+      Timestamp received = new Timestamp(command.time);
+      int orderid;
+      try (PreparedStatement stmt = connection.prepareStatement(
+            "INSERT INTO Orders (login, paid, timeStampRecieved, total) VALUES (?, false, ?, ?) RETURNING orderid")) {
+         stmt.setQueryTimeout(OperationClass.WRITE.timeoutSeconds);
+         stmt.setString(1, command.login);
+         stmt.setTimestamp(2, received);
+         stmt.setBigDecimal(3, total);
+         try (ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            orderid = rs.getInt(1);
+         }
+      }
+      try (PreparedStatement stmt = connection.prepareStatement(
+            "INSERT INTO ItemStatus (orderid, orderTimeStamp, itemName, lastUpdated, status, comments, quantity) " +
+            "VALUES (?, ?, ?, ?, 'Hasn''t started', '', ?)")) {
+         stmt.setQueryTimeout(OperationClass.WRITE.timeoutSeconds);
+         for(Map.Entry<String, Integer> item : command.items.entrySet()) {
+            stmt.setInt(1, orderid);
+            stmt.setTimestamp(2, received);
+            stmt.setString(3, item.getKey());
+            stmt.setTimestamp(4, received);
+            stmt.setInt(5, item.getValue());
+            stmt.addBatch();
+         }
+         stmt.executeBatch();
+      }
+      return orderid;
+   }
+
+   private Integer payOrder(Connection connection, Command command) throws SQLException {
+      try (PreparedStatement stmt = connection.prepareStatement("UPDATE Orders SET paid = true WHERE orderid = ?")) {
+         stmt.setQueryTimeout(OperationClass.WRITE.timeoutSeconds);
+         stmt.setInt(1, command.orderid);
+         stmt.executeUpdate();
+      }
+      return command.orderid;
+   }
+
+   private Connection replayConnection(int database) throws SQLException {
+      if(replayConnections[database] == null || replayConnections[database].isClosed()) {
+         replayConnections[database] = databases.get(database).openConnection();
+         replayConnections[database].setAutoCommit(false);
+      }
+      return replayConnections[database];
+   }
+
+   private void closeReplayConnections() {
+      synchronized(replayLock) {
+         for(int i = 0; i < replayConnections.length; i++) {
+            try {
+               if(replayConnections[i] != null)
+                  replayConnections[i].close();
+            } catch(SQLException e) {
+               // ignored.
+            }
+            replayConnections[i] = null;
+         }
+      }
+   }
+
+   // Commands appended, replayed and dropped
+   public List<String> stats() {
+      List<String> lines = new ArrayList<String>();
+      lines.add(String.format("%9s %9s %8s %8s %15s", "appended", "replayed", "pending", "dropped", "failed replays"));
+      lines.add(String.format("%9d %9d %8d %8d %15d", appended.get(), replayed.get(), pending(), dropped.get(),
+                              failedReplays.get()));
+      if(lastDropped != null)
+         lines.add("last dropped: " + lastDropped);
+      if(lastError != null)
+         lines.add("last replay error: " + lastError);
+      return lines;
+   }
+
+   // Stops the background replay; pending commands stay in the file for the next start
+   @Override
+   public void close() throws IOException {
+      replayer.shutdownNow();
+      closeReplayConnections();
+      synchronized(this) {
+         buffer.force();
+         channel.close();
+      }
+   }
+}
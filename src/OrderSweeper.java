@@ -0,0 +1,196 @@
+package src;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import src.AdmissionController.OperationClass;
+
+/**
+ * Deletes unpaid orders nobody came back for, in the background.
+ *
+ * Every run deletes orders that stayed unpaid for longer than the TTL, oldest
+ * first, batch by batch. A batch is one statement that picks its orders
+ * through the partial index orders_unpaid_idx (schema migration 8), skips
+ * rows another transaction holds, and deletes them together with their item
+ * statuses. Between batches the sweeper pauses, and it leaves the rest of a
+ * run for later as soon as checkouts or payments of this application are in
+ * flight, so it never competes with customers. It uses its own connection per
+ * database.
+ *
+ * Enabled with -Dcafe.sweeper.ttlHours=<hours>; the batch size, the pause
+ * between batches and the interval between runs are read from
+ * cafe.sweeper.batch, .pauseMillis and .intervalSeconds.
+ */
+public class OrderSweeper implements AutoCloseable {
+
+   static final int BATCH = Integer.getInteger("cafe.sweeper.batch", 500);
+   static final long PAUSE_MILLIS = Long.getLong("cafe.sweeper.pauseMillis", 200);
+   static final int INTERVAL_SECONDS = Integer.getInteger("cafe.sweeper.intervalSeconds", 300);
+
+   // Deletes one batch of stale unpaid orders, returning their totals
+   static final String SWEEP =
+      "DELETE FROM Orders WHERE paid = false AND (orderid, timeStampRecieved) IN (" +
+         "SELECT orderid, timeStampRecieved FROM Orders " +
+         "WHERE paid = false AND timeStampRecieved < now() - make_interval(hours => ?) " +
+         "ORDER BY timeStampRecieved LIMIT ? FOR UPDATE SKIP LOCKED) " +
+      "RETURNING total";
+
+   private final List<Cafe> databases;
+   private final int ttlHours;
+   private final Connection[] connections;
+   private final ScheduledExecutorService sweeper;
+
+   private final AtomicLong runs = new AtomicLong();
+   private final AtomicLong batches = new AtomicLong();
+   private final AtomicLong deleted = new AtomicLong();
+   private final AtomicLong deferred = new AtomicLong();
+   private final AtomicLong failed = new AtomicLong();
+   private final AtomicLong sweepNanos = new AtomicLong();
+   // sum of the totals of the deleted orders
+   private final AtomicReference<BigDecimal> deletedTotal = new AtomicReference<BigDecimal>(BigDecimal.ZERO);
+   private volatile String lastError;
+
+   /**
+    * Starts sweeping in the background.
+    *
+    * @param databases the databases to sweep, e.g. every shard
+    * @param ttlHours hours an order may stay unpaid
+    */
+   public OrderSweeper(List<Cafe> databases, int ttlHours) {
+      this.databases = databases;
+      this.ttlHours = ttlHours;
+      this.connections = new Connection[databases.size()];
+      this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread thread = new Thread(r, "order-sweeper");
+         thread.setDaemon(true);
+         return thread;
+      });
+      sweeper.scheduleWithFixedDelay(this::sweepQuietly, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+   }
+
+   /**
+    * Deletes stale unpaid orders until none are left or checkouts need the
+    * database.
+    *
+    * @return the number of orders deleted
+    * @throws java.sql.SQLException when a database could not be swept
+    */
+   public synchronized long sweep() throws SQLException {
+      runs.incrementAndGet();
+      long start = System.nanoTime();
+      long count = 0;
+      try {
+         for(int i = 0; i < databases.size(); i++) {
+            int rows = BATCH;
+            while(rows == BATCH) {
+               if(AdmissionController.inFlight(OperationClass.WRITE) > 0) {
+                  deferred.incrementAndGet();
+                  return count;
+               }
+               rows = batch(i);
+               count += rows;
+               if(rows == BATCH)
+                  pause();
+            }
+         }
+         return count;
+      } finally {
+         sweepNanos.addAndGet(System.nanoTime() - start);
+      }
+   }
+
+   // Deletes one batch on database i
+   private int batch(int i) throws SQLException {
+      try (PreparedStatement stmt = connection(i).prepareStatement(SWEEP)) {
+         stmt.setQueryTimeout(OperationClass.WRITE.timeoutSeconds);
+         stmt.setInt(1, ttlHours);
+         stmt.setInt(2, BATCH);
+         int rows = 0;
+         BigDecimal total = BigDecimal.ZERO;
+         try (ResultSet rs = stmt.executeQuery()) {
+            while(rs.next()) {
+               rows++;
+               total = total.add(rs.getBigDecimal(1));
+            }
+         }
+         if(rows > 0)
+            databases.get(i).cache().invalidateTables("orders");
+         batches.incrementAndGet();
+         deleted.addAndGet(rows);
+         deletedTotal.accumulateAndGet(total, BigDecimal::add);
+         return rows;
+      } catch(SQLException e) {
+         closeConnection(i);
+         throw e;
+      }
+   }
+
+   // The sweeping connection of database i; it never waits for locks
+   private Connection connection(int i) throws SQLException {
+      if(connections[i] == null) {
+         connections[i] = databases.get(i).openConnection();
+         try (Statement stmt = connections[i].createStatement()) {
+            stmt.execute("SET lock_timeout = '100ms'");
+         }
+      }
+      return connections[i];
+   }
+
+   private void pause() {
+      try {
+         Thread.sleep(PAUSE_MILLIS);
+      } catch(InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private void sweepQuietly() {
+      try {
+         sweep();
+      } catch(Exception e) {
+         // retried on the next run
+         failed.incrementAndGet();
+         lastError = e.getMessage();
+      }
+   }
+
+   // Runs and what they deleted
+   public List<String> stats() {
+      List<String> lines = new ArrayList<String>();
+      lines.add(String.format("%6s %8s %9s %9s %7s %12s %10s", "ttl", "runs", "batches", "deleted", "failed",
+                              "value", "avg run"));
+      long runCount = runs.get();
+      lines.add(String.format("%5dh %8d %9d %9d %7d %12s %8.1fms", ttlHours, runCount, batches.get(), deleted.get(),
+         failed.get(), deletedTotal.get().toPlainString(), runCount == 0 ? 0 : sweepNanos.get() / 1e6 / runCount));
+      lines.add(deferred.get() + " run(s) cut short for checkouts" +
+                (lastError == null ? "" : "; last error: " + lastError));
+      return lines;
+   }
+
+   private void closeConnection(int i) {
+      try {
+         if(connections[i] != null)
+            connections[i].close();
+      } catch(SQLException e) {
+         // ignored
+      }
+      connections[i] = null;
+   }
+
+   @Override
+   public void close() {
+      sweeper.shutdownNow();
+      for(int i = 0; i < connections.length; i++)
+         closeConnection(i);
+   }
+}
@@ -0,0 +1,263 @@
+package src;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Manages the monthly range partitions of Orders and ItemStatus.
+ *
+ * Every month has one Orders partition (orders_pYYYY_MM) and one ItemStatus
+ * partition (itemstatus_pYYYY_MM) covering the same range, so an order and its
+ * items are always attached, detached and archived together. Rows of months
+ * without partitions land in the default partitions (Orders_default and
+ * ItemStatus_default) and are moved out as soon as their month gets its own.
+ */
+public class PartitionManager {
+
+   private static final DateTimeFormatter SUFFIX = DateTimeFormatter.ofPattern("uuuu_MM");
+
+   private final Cafe esql;
+
+   public PartitionManager(Cafe esql) {
+      this.esql = esql;
+   }
+
+   // Name of the Orders partition for a month
+   public static String ordersPartition(YearMonth month) {
+      return "orders_p" + month.format(SUFFIX);
+   }
+
+   // Name of the ItemStatus partition for a month
+   public static String itemStatusPartition(YearMonth month) {
+      return "itemstatus_p" + month.format(SUFFIX);
+   }
+
+   // Parses a month given as YYYY-MM
+   public static YearMonth parseMonth(String month) {
+      return YearMonth.parse(month.trim());
+   }
+
+   /**
+    * Creates the partitions for the current month and the given number of
+    * months ahead of it, skipping the ones that already exist.
+    *
+    * @param monthsAhead number of future months to create
+    * @return the number of months for which partitions were created
+    * @throws java.sql.SQLException when a partition could not be created
+    */
+   public int ensureFuturePartitions(int monthsAhead) throws SQLException {
+      int created = 0;
+      YearMonth month = YearMonth.now();
+      for(int i = 0; i <= monthsAhead; i++) {
+         if(createPartitions(month.plusMonths(i)))
+            created++;
+      }
+      return created;
+   }
+
+   /**
+    * Creates the partitions for every month that still has rows in the default
+    * partitions, e.g. the history loaded before the monthly partitions existed.
+    *
+    * @return the number of months for which partitions were created
+    * @throws java.sql.SQLException when a partition could not be created
+    */
+   public int ensureHistoryPartitions() throws SQLException {
+      int created = 0;
+      for(YearMonth month : defaultMonths()) {
+         if(createPartitions(month))
+            created++;
+      }
+      return created;
+   }
+
+   /**
+    * Creates the Orders and ItemStatus partitions of a month if they are
+    * missing. Rows of that month already sitting in the default partitions are
+    * moved into the new partitions, in one transaction that keeps new rows out
+    * of the default partitions until the partitions are attached.
+    *
+    * @param month the month to create
+    * @return false when the partitions already existed
+    * @throws java.sql.SQLException when a partition could not be created
+    */
+   public boolean createPartitions(YearMonth month) throws SQLException {
+      if(exists(ordersPartition(month)) && exists(itemStatusPartition(month)))
+         return false;
+      String from = month.atDay(1).toString();
+      String to = month.plusMonths(1).atDay(1).toString();
+      String orders = ordersPartition(month);
+      String items = itemStatusPartition(month);
+      Connection connection = esql.getConnection();
+      boolean autoCommit = connection.getAutoCommit();
+      try {
+         connection.setAutoCommit(false);
+         esql.executeUpdate("LOCK TABLE Orders_default, ItemStatus_default IN EXCLUSIVE MODE");
+         // Items first, so no order is deleted while its items still reference it
+         esql.executeUpdate(String.format("CREATE TABLE IF NOT EXISTS %s (LIKE ItemStatus INCLUDING DEFAULTS)", items));
+         esql.executeUpdate(String.format(
+            "WITH moved AS (DELETE FROM ItemStatus_default WHERE orderTimeStamp >= '%s' AND orderTimeStamp < '%s' RETURNING *) " +
+            "INSERT INTO %s SELECT * FROM moved", from, to, items));
+         esql.executeUpdate(String.format("CREATE TABLE IF NOT EXISTS %s (LIKE Orders INCLUDING DEFAULTS)", orders));
+         esql.executeUpdate(String.format(
+            "WITH moved AS (DELETE FROM Orders_default WHERE timeStampRecieved >= '%s' AND timeStampRecieved < '%s' RETURNING *) " +
+            "INSERT INTO %s SELECT * FROM moved", from, to, orders));
+         attachPartitions(month);
+         connection.commit();
+      } catch(SQLException e) {
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setAutoCommit(autoCommit);
+      }
+      return true;
+   }
+
+   /**
+    * Lists the partitions of Orders and ItemStatus with their bounds and size.
+    *
+    * @return records of (table, partition, bounds, total size)
+    * @throws java.sql.SQLException when failed to read the catalog
+    */
+   public List<List<String>> listPartitions() throws SQLException {
+      return esql.executeQueryAndReturnResult(
+         "SELECT p.relname, c.relname, pg_get_expr(c.relpartbound, c.oid), pg_size_pretty(pg_total_relation_size(c.oid)) " +
+         "FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid JOIN pg_class p ON p.oid = i.inhparent " +
+         "WHERE p.relname IN ('orders', 'itemstatus') AND p.relnamespace = current_schema()::regnamespace " +
+         "ORDER BY p.relname, c.relname");
+   }
+
+   /**
+    * Detaches the partitions of a month, after moving the month out of the
+    * default partitions if it is still there. The ItemStatus partition goes first and
+    * loses its foreign key to Orders, otherwise the Orders partition could not be
+    * detached while rows still reference it.
+    *
+    * @param month the month to detach
+    * @throws java.sql.SQLException when a partition could not be detached
+    */
+   public void detach(YearMonth month) throws SQLException {
+      // A month still in the default partitions gets its own partitions first
+      if(!exists(ordersPartition(month)) && defaultMonths().contains(month))
+         createPartitions(month);
+      String items = itemStatusPartition(month);
+      String orders = ordersPartition(month);
+      if(isAttached(items)) {
+         esql.executeUpdate(String.format("ALTER TABLE ItemStatus DETACH PARTITION %s", items));
+         esql.executeUpdate(String.format("ALTER TABLE %s DROP CONSTRAINT IF EXISTS itemstatus_order_fkey", items));
+      }
+      if(isAttached(orders))
+         esql.executeUpdate(String.format("ALTER TABLE Orders DETACH PARTITION %s", orders));
+   }
+
+   /**
+    * Attaches previously detached partitions of a month. Orders goes first so the
+    * foreign key cloned onto the ItemStatus partition can be validated.
+    *
+    * @param month the month to attach
+    * @throws java.sql.SQLException when a partition could not be attached
+    */
+   public void attach(YearMonth month) throws SQLException {
+      attachPartitions(month);
+   }
+
+   // Attaches the existing, detached partitions of a month
+   private void attachPartitions(YearMonth month) throws SQLException {
+      String from = month.atDay(1).toString();
+      String to = month.plusMonths(1).atDay(1).toString();
+      String orders = ordersPartition(month);
+      String items = itemStatusPartition(month);
+      if(exists(orders) && !isAttached(orders))
+         esql.executeUpdate(String.format(
+            "ALTER TABLE Orders ATTACH PARTITION %s FOR VALUES FROM ('%s') TO ('%s')", orders, from, to));
+      if(exists(items) && !isAttached(items))
+         esql.executeUpdate(String.format(
+            "ALTER TABLE ItemStatus ATTACH PARTITION %s FOR VALUES FROM ('%s') TO ('%s')", items, from, to));
+   }
+
+   /**
+    * Archives a month: detaches its partitions, copies them to gzip compressed
+    * CSV files in the given directory and drops them.
+    *
+    * @param month the month to archive
+    * @param dir directory receiving the archive files
+    * @return the archive files written
+    * @throws java.sql.SQLException when a partition could not be copied or dropped
+    * @throws java.io.IOException when an archive file could not be written
+    */
+   public List<Path> archive(YearMonth month, Path dir) throws SQLException, IOException {
+      detach(month);
+      Files.createDirectories(dir);
+      List<Path> files = new ArrayList<Path>();
+      OrderExport export = new OrderExport(esql);
+      for(String table : new String[] {ordersPartition(month), itemStatusPartition(month)}) {
+         if(!exists(table))
+            continue;
+         Path file = dir.resolve(table + ".csv" + OrderExport.Compression.GZIP.extension());
+         files.add(export.copyOut(table, file, OrderExport.Format.CSV, OrderExport.Compression.GZIP));
+      }
+      // Only drop once both files are safely on disk
+      for(String table : new String[] {itemStatusPartition(month), ordersPartition(month)}) {
+         if(exists(table))
+            esql.executeUpdate(String.format("DROP TABLE %s", table));
+      }
+      return files;
+   }
+
+   /**
+    * Archives every monthly partition older than the given number of months.
+    *
+    * @param keepMonths number of months, counting the current one, to keep online
+    * @param dir directory receiving the archive files
+    * @return the months that were archived
+    */
+   public List<YearMonth> archiveOlderThan(int keepMonths, Path dir) throws SQLException, IOException {
+      YearMonth cutoff = YearMonth.now().minusMonths(keepMonths - 1);
+      List<YearMonth> archived = new ArrayList<YearMonth>();
+      // Months with their own partitions and months still in the default partitions
+      TreeSet<YearMonth> months = new TreeSet<YearMonth>(defaultMonths());
+      List<List<String>> result = esql.executeQueryAndReturnResult(
+         "SELECT substr(relname, 9) FROM pg_class WHERE relkind IN ('r', 'p') AND relname ~ '^orders_p[0-9]{4}_[0-9]{2}$' " +
+         "AND relnamespace = current_schema()::regnamespace ORDER BY relname");
+      for(List<String> record : result)
+         months.add(YearMonth.parse(record.get(0), SUFFIX));
+      for(YearMonth month : months) {
+         if(month.isBefore(cutoff)) {
+            archive(month, dir);
+            archived.add(month);
+         }
+      }
+      return archived;
+   }
+
+   // Months that have orders in the default partition
+   private List<YearMonth> defaultMonths() throws SQLException {
+      List<YearMonth> months = new ArrayList<YearMonth>();
+      for(List<String> record : esql.executeQueryAndReturnResult(
+            "SELECT DISTINCT to_char(timeStampRecieved, 'YYYY_MM') FROM Orders_default ORDER BY 1"))
+         months.add(YearMonth.parse(record.get(0), SUFFIX));
+      return months;
+   }
+
+   // Checks if a table exists in the current schema, which tells the live tables and a scratch copy (see DataSeeder) apart
+   private boolean exists(String table) throws SQLException {
+      return esql.executeQuery(String.format(
+         "SELECT 1 FROM pg_class WHERE relname = '%s' AND relkind IN ('r', 'p') " +
+         "AND relnamespace = current_schema()::regnamespace", table)) > 0;
+   }
+
+   // Checks if a table is currently attached as a partition
+   private boolean isAttached(String table) throws SQLException {
+      return esql.executeQuery(String.format(
+         "SELECT 1 FROM pg_class WHERE relname = '%s' AND relispartition " +
+         "AND relnamespace = current_schema()::regnamespace", table)) > 0;
+   }
+}
@@ -0,0 +1,217 @@
+package src;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2 password hashes, computed on a bounded pool of workers.
+ *
+ * Users.password holds "pbkdf2-sha512$<iterations>$<salt>$<hash>" (Base64).
+ * Rows from before hashing still hold the plaintext password; they are
+ * checked as such and replaced by a hash on the user's next successful login,
+ * as are hashes with fewer than the current number of iterations. A value
+ * starting with LOCKED matches no password at all.
+ *
+ * Hashing costs a tenth of a second of CPU or more on purpose, so it never runs on
+ * the caller's thread or while a statement is open: a fixed number of worker
+ * threads take the hashes from a bounded queue. When the queue is full, or a
+ * hash is not done within the deadline, the login is rejected right away with
+ * an SQLTransientException (SQLSTATE 53000), like an operation the admission
+ * controller turns down. Unknown logins are checked against a dummy hash, so
+ * they take as long as wrong passwords.
+ *
+ * The pool is sized by -Dcafe.passwords.threads (default: the number of
+ * processors), .queue (64) and .waitMillis (5000); the work factor by
+ * -Dcafe.passwords.iterations (210000).
+ */
+public final class PasswordHasher {
+
+   static final String PREFIX = "pbkdf2-sha512$";
+   // stored password of accounts nobody may log in to, e.g. seeded ones
+   static final String LOCKED = "!locked";
+   static final int ITERATIONS = Integer.getInteger("cafe.passwords.iterations", 210000);
+   static final int THREADS = Integer.getInteger("cafe.passwords.threads", Runtime.getRuntime().availableProcessors());
+   static final int QUEUE = Integer.getInteger("cafe.passwords.queue", 64);
+   static final long WAIT_MILLIS = Long.getLong("cafe.passwords.waitMillis", 5000);
+
+   private static final String ALGORITHM = "PBKDF2WithHmacSHA512";
+   private static final int SALT_BYTES = 16;
+   private static final int HASH_BITS = 256;
+
+   private static final SecureRandom random = new SecureRandom();
+   private static final ThreadPoolExecutor workers = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.SECONDS,
+      new ArrayBlockingQueue<Runnable>(QUEUE), r -> {
+         Thread thread = new Thread(r, "password-hasher");
+         thread.setDaemon(true);
+         return thread;
+      });
+
+   private static final AtomicLong hashed = new AtomicLong();
+   private static final AtomicLong verified = new AtomicLong();
+   private static final AtomicLong mismatched = new AtomicLong();
+   private static final AtomicLong rehashed = new AtomicLong();
+   private static final AtomicLong rejected = new AtomicLong();
+   private static final AtomicLong waitNanos = new AtomicLong();
+   private static final AtomicLong hashNanos = new AtomicLong();
+
+   // compared with when the login is unknown
+   private static volatile String dummy;
+
+   private PasswordHasher() {
+   }
+
+   /**
+    * Hashes a new password with a fresh salt.
+    *
+    * @return the value to store in Users.password
+    * @throws java.sql.SQLException when the workers are too busy
+    */
+   public static String hash(String password) throws SQLException {
+      byte[] salt = new byte[SALT_BYTES];
+      random.nextBytes(salt);
+      byte[] hash = offload(() -> pbkdf2(password, salt, ITERATIONS));
+      hashed.incrementAndGet();
+      Base64.Encoder base64 = Base64.getEncoder();
+      return PREFIX + ITERATIONS + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(hash);
+   }
+
+   /**
+    * Checks a password against a stored value, a hash or a legacy plaintext.
+    *
+    * @param stored the value of Users.password, null for an unknown login
+    * @throws java.sql.SQLException when the workers are too busy
+    */
+   public static boolean verify(String password, String stored) throws SQLException {
+      boolean unknown = stored == null;
+      if(unknown) {
+         if(dummy == null)
+            dummy = hash("");
+         stored = dummy;
+      }
+      boolean match;
+      if(stored.startsWith(LOCKED)) {
+         match = false;
+      } else if(!stored.startsWith(PREFIX)) {
+         match = MessageDigest.isEqual(stored.trim().getBytes(StandardCharsets.UTF_8),
+                                       password.getBytes(StandardCharsets.UTF_8));
+      } else {
+         String[] parts = stored.substring(PREFIX.length()).split("\\$");
+         if(parts.length != 3)
+            throw new SQLException("Malformed password hash");
+         Base64.Decoder base64 = Base64.getDecoder();
+         byte[] salt = base64.decode(parts[1]);
+         byte[] expected = base64.decode(parts[2]);
+         byte[] actual = offload(() -> pbkdf2(password, salt, Integer.parseInt(parts[0])));
+         match = MessageDigest.isEqual(expected, actual) && !unknown;
+      }
+      (match ? verified : mismatched).incrementAndGet();
+      return match;
+   }
+
+   // Whether a stored value is plaintext or weaker than new hashes
+   public static boolean needsRehash(String stored) {
+      if(stored.startsWith(LOCKED))
+         return false;
+      return !stored.startsWith(PREFIX) || Integer.parseInt(stored.substring(PREFIX.length()).split("\\$")[0]) < ITERATIONS;
+   }
+
+   /**
+    * Checks the credentials of a user and upgrades the stored value to a
+    * current hash when they match. A failed upgrade leaves the old value in
+    * place and is retried on the next login.
+    *
+    * @param repository holds the user
+    * @throws java.sql.SQLException when the user could not be read or the workers are too busy
+    */
+   public static boolean check(CafeRepository repository, String login, String password) throws SQLException {
+      String stored = repository.credential(login);
+      if(!verify(password, stored))
+         return false;
+      if(needsRehash(stored)) {
+         try {
+            if(repository.replaceCredential(login, stored, hash(password)))
+               rehashed.incrementAndGet();
+         } catch(SQLException e) {
+            System.err.println("Unable to upgrade the password hash of " + login + ": " + e.getMessage());
+         }
+      }
+      return true;
+   }
+
+   private static byte[] pbkdf2(String password, byte[] salt, int iterations) throws GeneralSecurityException {
+      PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+      try {
+         return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+      } finally {
+         spec.clearPassword();
+      }
+   }
+
+   // Runs a hash on the workers and waits for it, within the deadline
+   private static byte[] offload(Callable<byte[]> hash) throws SQLException {
+      long submitted = System.nanoTime();
+      Future<byte[]> future;
+      try {
+         future = workers.submit(() -> {
+            long start = System.nanoTime();
+            waitNanos.addAndGet(start - submitted);
+            try {
+               return hash.call();
+            } finally {
+               hashNanos.addAndGet(System.nanoTime() - start);
+            }
+         });
+      } catch(RejectedExecutionException e) {
+         throw reject("queue is full");
+      }
+      try {
+         return future.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+      } catch(TimeoutException e) {
+         future.cancel(true);
+         throw reject("waited " + WAIT_MILLIS + " ms");
+      } catch(InterruptedException e) {
+         future.cancel(true);
+         Thread.currentThread().interrupt();
+         throw reject("interrupted");
+      } catch(ExecutionException e) {
+         throw new SQLException("Unable to hash the password: " + e.getCause().getMessage(), e.getCause());
+      }
+   }
+
+   private static SQLException reject(String reason) {
+      rejected.incrementAndGet();
+      return new SQLTransientException("Too many password checks at once (" + reason + "); please try again",
+                                       AdmissionController.REJECTED);
+   }
+
+   // Pool size and counters
+   public static List<String> stats() {
+      List<String> lines = new ArrayList<String>();
+      lines.add(String.format("%7s %6s %7s %8s %9s %10s %9s %9s %10s %10s", "threads", "active", "queued", "hashed",
+                              "verified", "mismatched", "rehashed", "rejected", "avg wait", "avg hash"));
+      long completed = workers.getCompletedTaskCount();
+      lines.add(String.format("%7d %6d %7d %8d %9d %10d %9d %9d %8.1fms %8.1fms", THREADS, workers.getActiveCount(),
+         workers.getQueue().size(), hashed.get(), verified.get(), mismatched.get(), rehashed.get(), rejected.get(),
+         completed == 0 ? 0 : waitNanos.get() / 1e6 / completed, completed == 0 ? 0 : hashNanos.get() / 1e6 / completed));
+      lines.add("PBKDF2-HMAC-SHA512, " + ITERATIONS + " iterations per new hash");
+      return lines;
+   }
+}
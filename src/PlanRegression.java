@@ -0,0 +1,231 @@
+package src;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Guards the query plans of the application against regressions.
+ *
+ * Seeds a production-sized dataset into the scratch schema of DataSeeder,
+ * which leaves the live tables alone, then runs EXPLAIN (FORMAT JSON) on every
+ * statement in CHECKS. A statement fails when its plan sequentially scans a
+ * table that must always be reached through an index, when its estimated cost
+ * exceeds its budget, or when its plan shape differs from the recorded
+ * baseline or is missing from it. The process exits with status 1 on any
+ * failure, so it can gate a build.
+ *
+ * Usage:
+ *   java -cp classes:lib/postgresql-42.4.0.jar src.PlanRegression --db dbname --port port --user user
+ *        [--password password] [--scale N] [--baseline file] [--record]
+ *
+ * The statements are the ones JdbcCafeRepository and OrderSweeper run (see
+ * IndexAdvisor.APP_QUERIES), with values of the seeded rows as parameters.
+ *
+ * The baseline file, sql/plan_baseline.txt unless given, holds one
+ * "name<TAB>shape" line per statement; other lines, e.g. "#" comments, are
+ * kept as they are. The file is only written with --record, which replaces
+ * the shapes of every statement instead of comparing them, e.g. to accept an
+ * intentional plan change or to add a new check.
+ */
+public class PlanRegression {
+
+   // tables that must never be scanned sequentially, partitions included
+   static final Set<String> INDEXED_ONLY = new LinkedHashSet<String>(Arrays.asList("orders", "itemstatus"));
+
+   // A statement of IndexAdvisor.APP_QUERIES, as the application runs it, and its estimated cost budget
+   static final class Check {
+      final String name;
+      final double budget;
+
+      Check(String name, double budget) {
+         this.name = name;
+         this.budget = budget;
+      }
+
+      String sql() {
+         return IndexAdvisor.APP_QUERIES.get(name);
+      }
+   }
+
+   // Budgets leave room for one index probe per monthly partition
+   static final List<Check> CHECKS = Arrays.asList(
+      new Check("login", 20),
+      new Check("isManager", 20),
+      new Check("itemsOfType", 100),
+      new Check("price", 20),
+      new Check("ordersOf", 600),
+      new Check("isPaid", 300),
+      new Check("pay", 300),
+      new Check("cancel", 300),
+      new Check("itemsOfOrder", 300),
+      // the sweeper's whole DELETE, which joins its batch back to the partitions
+      new Check("staleUnpaid", 2000));
+
+   private final Connection connection;
+   private final Map<String, String> parents = new HashMap<String, String>();
+
+   public PlanRegression(Connection connection) throws SQLException {
+      this.connection = connection;
+      try (Statement stmt = connection.createStatement();
+           ResultSet rs = stmt.executeQuery(
+              "SELECT c.relname, p.relname FROM pg_inherits i " +
+              "JOIN pg_class c ON c.oid = i.inhrelid JOIN pg_class p ON p.oid = i.inhparent")) {
+         while(rs.next())
+            parents.put(rs.getString(1), rs.getString(2));
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      Map<String, String> options = CafeBench.parseOptions(args);
+      int scale = Integer.parseInt(options.getOrDefault("scale", "5"));
+      Path baselineFile = Paths.get(options.getOrDefault("baseline", "sql/plan_baseline.txt"));
+      boolean record = Boolean.parseBoolean(options.get("record"));
+
+      Cafe esql = new Cafe(options.get("db"), options.get("port"), options.get("user"),
+                           options.getOrDefault("password", ""));
+      DataSeeder seeder = new DataSeeder(esql);
+      List<String> failures = new ArrayList<String>();
+      try {
+         new SchemaMigrator(esql).migrate();
+         // Seeding takes far longer than the write timeout allows, so it runs as a report
+         Cafe scratch = esql.report(() -> seeder.open(false));
+         System.out.println("Seeding " + scale * DataSeeder.ORDERS_PER_SCALE + " orders...");
+         scratch.report(() -> { seeder.seed(scale); return null; });
+
+         Map<String, String> baseline = Files.exists(baselineFile) ? readBaseline(baselineFile) : new HashMap<String, String>();
+         Map<String, String> shapes = new LinkedHashMap<String, String>();
+         PlanRegression suite = new PlanRegression(scratch.getConnection());
+         for(Check check : CHECKS) {
+            Map<String, Object> plan = suite.explain(check.sql());
+            String shape = suite.shape(plan);
+            shapes.put(check.name, shape);
+            List<String> problems = suite.verify(check, plan);
+            // With --record the shape becomes the baseline instead
+            if(!record) {
+               String recorded = baseline.get(check.name);
+               if(recorded == null)
+                  problems.add("no baseline shape in " + baselineFile + "; record one with --record");
+               else if(!recorded.equals(shape))
+                  problems.add("plan changed from " + recorded);
+            }
+            System.out.println(String.format("%-6s %-14s cost %8.1f  %s", problems.isEmpty() ? "ok" : "FAIL",
+               check.name, cost(plan), shape));
+            for(String problem : problems) {
+               System.out.println("         " + problem);
+               failures.add(check.name + ": " + problem);
+            }
+         }
+         if(record) {
+            recordBaseline(baselineFile, shapes);
+            System.out.println("Recorded the plan shapes in baseline " + baselineFile);
+         }
+      } finally {
+         try {
+            esql.report(() -> { seeder.clear(); return null; });
+         } finally {
+            esql.cleanup();
+         }
+      }
+      System.out.println(failures.isEmpty() ? "All plans within budget" : failures.size() + " plan regression(s)");
+      if(!failures.isEmpty())
+         System.exit(1);
+   }
+
+   // Estimated plan of a statement, which is not executed
+   @SuppressWarnings("unchecked")
+   Map<String, Object> explain(String sql) throws SQLException {
+      try (Statement stmt = connection.createStatement();
+           ResultSet rs = stmt.executeQuery("EXPLAIN (FORMAT JSON) " + sql)) {
+         rs.next();
+         List<Object> result = (List<Object>) Json.parse(rs.getString(1));
+         return IndexAdvisor.plan((Map<String, Object>) result.get(0));
+      }
+   }
+
+   // The rule violations of a plan
+   List<String> verify(Check check, Map<String, Object> plan) {
+      List<String> problems = new ArrayList<String>();
+      for(Map<String, Object> node : IndexAdvisor.nodes(plan)) {
+         if("Seq Scan".equals(node.get("Node Type")) && INDEXED_ONLY.contains(table(node)))
+            problems.add("sequential scan on " + node.get("Relation Name"));
+      }
+      if(cost(plan) > check.budget)
+         problems.add(String.format("estimated cost %.1f over budget %.1f", cost(plan), check.budget));
+      return problems;
+   }
+
+   /**
+    * Compact shape of a plan, e.g. "Sort(Append(Index Only Scan orders))".
+    * Partitions are named after their parent and repeated children of an
+    * Append are collapsed, so adding a month does not change the shape.
+    */
+   @SuppressWarnings("unchecked")
+   String shape(Map<String, Object> node) {
+      StringBuilder shape = new StringBuilder((String) node.get("Node Type"));
+      String table = table(node);
+      if(table != null)
+         shape.append(' ').append(table);
+      Object children = node.get("Plans");
+      if(children instanceof List) {
+         List<String> parts = new ArrayList<String>();
+         for(Object child : (List<Object>) children) {
+            String part = shape((Map<String, Object>) child);
+            if(!parts.contains(part))
+               parts.add(part);
+         }
+         shape.append('(').append(String.join(", ", parts)).append(')');
+      }
+      return shape.toString();
+   }
+
+   // The scanned table of a node, partitions mapped to their parent
+   private String table(Map<String, Object> node) {
+      Object relation = node.get("Relation Name");
+      if(relation == null)
+         return null;
+      String name = relation.toString().toLowerCase();
+      return parents.getOrDefault(name, name);
+   }
+
+   private static double cost(Map<String, Object> plan) {
+      return ((Number) plan.get("Total Cost")).doubleValue();
+   }
+
+   private static Map<String, String> readBaseline(Path file) throws IOException {
+      Map<String, String> baseline = new HashMap<String, String>();
+      for(String line : Files.readAllLines(file)) {
+         int tab = line.indexOf('\t');
+         if(tab > 0)
+            baseline.put(line.substring(0, tab), line.substring(tab + 1));
+      }
+      return baseline;
+   }
+
+   // Replaces the shape lines of the baseline, keeping its other lines
+   private static void recordBaseline(Path file, Map<String, String> shapes) throws IOException {
+      List<String> lines = new ArrayList<String>();
+      if(Files.exists(file)) {
+         for(String line : Files.readAllLines(file)) {
+            if(line.indexOf('\t') <= 0)
+               lines.add(line);
+         }
+      }
+      for(Map.Entry<String, String> entry : shapes.entrySet())
+         lines.add(entry.getKey() + "\t" + entry.getValue());
+      Files.write(file, lines);
+   }
+}
@@ -0,0 +1,327 @@
+package src;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import src.AdmissionController.OperationClass;
+
+/**
+ * Time-decayed popularity of menu items, overall and per user.
+ *
+ * Every ordered item counts its quantity times 2^(t / HALF_LIFE_DAYS), t being
+ * the time of the order since a fixed origin (forward decay): an order counts
+ * twice as much as one HALF_LIFE_DAYS older, and existing scores never have
+ * to be rescaled when a new order is added. Checkouts of this process are added as
+ * they happen; a background thread reloads the scores of the last
+ * LOOKBACK_DAYS from Orders and ItemStatus of every shard, on connections of
+ * its own, to pick up everything else. A checkout is added again on top of
+ * every reload until a reload has seen it in the database: one recorded
+ * after the reload started, or journaled and not yet replayed when it
+ * started. Such a checkout may count twice until the next reload, but is
+ * never lost.
+ *
+ * Readers only look at an immutable Ranking, republished after every change,
+ * so ranking the items of a type, the overall top and a user's usuals costs
+ * a few map lookups. The order of the items of a type is the overall order
+ * restricted to that type.
+ */
+public class PopularityIndex implements AutoCloseable {
+
+   // days after which an order counts half as much
+   static final double HALF_LIFE_DAYS = 30;
+   // orders older than this are left out of the reload
+   static final int LOOKBACK_DAYS = 365;
+   // items remembered per user
+   static final int USER_ITEMS = 8;
+   // items kept in the overall top
+   static final int TOP_ITEMS = 10;
+
+   private static final long HALF_LIFE_MILLIS = (long) (HALF_LIFE_DAYS * 24 * 3600 * 1000);
+
+   // A user's most ordered items, best first; replaced as a whole
+   private static final class Usage {
+      final String[] items;
+      final double[] scores;
+
+      Usage(String[] items, double[] scores) {
+         this.items = items;
+         this.scores = scores;
+      }
+
+      // This usage with score added to item, keeping the USER_ITEMS best
+      Usage add(String item, double score) {
+         int n = items.length;
+         int at = Arrays.asList(items).indexOf(item);
+         String[] newItems = Arrays.copyOf(items, at < 0 ? n + 1 : n);
+         double[] newScores = Arrays.copyOf(scores, newItems.length);
+         if(at < 0)
+            at = n;
+         newItems[at] = item;
+         newScores[at] += score;
+         // Move the item up to its place
+         while(at > 0 && newScores[at - 1] < newScores[at]) {
+            String i = newItems[at]; newItems[at] = newItems[at - 1]; newItems[at - 1] = i;
+            double s = newScores[at]; newScores[at] = newScores[at - 1]; newScores[at - 1] = s;
+            at--;
+         }
+         int keep = Math.min(newItems.length, USER_ITEMS);
+         return new Usage(Arrays.copyOf(newItems, keep), Arrays.copyOf(newScores, keep));
+      }
+   }
+
+   // What readers see: positions in the overall order, the top and the menu records
+   private static final class Ranking {
+      static final Ranking EMPTY = new Ranking(new HashMap<String, Integer>(), new ArrayList<String>(),
+                                               new HashMap<String, List<String>>());
+
+      final Map<String, Integer> position;
+      final List<String> top;
+      final Map<String, List<String>> menu;
+
+      Ranking(Map<String, Integer> position, List<String> top, Map<String, List<String>> menu) {
+         this.position = position;
+         this.top = top;
+         this.menu = menu;
+      }
+   }
+
+   // A checkout of this process that no reload has seen yet
+   private static final class Checkout {
+      final String login;
+      final Map<String, Double> scores;
+      // System.nanoTime() once the checkout was stored or journaled
+      final long recorded;
+      // sequence number in the order journal, 0 when stored directly
+      final long journalSeq;
+
+      Checkout(String login, Map<String, Double> scores, long recorded, long journalSeq) {
+         this.login = login;
+         this.scores = scores;
+         this.recorded = recorded;
+         this.journalSeq = journalSeq;
+      }
+   }
+
+   private final Cafe esql;
+   // the databases scores are read from, every shard when sharded
+   private final List<Cafe> databases;
+   private final OrderJournal journal;
+   // origin of the forward decay
+   private final long origin = System.currentTimeMillis();
+   private volatile Map<String, Double> scores = new ConcurrentHashMap<String, Double>();
+   private volatile Map<String, Usage> users = new ConcurrentHashMap<String, Usage>();
+   // records of (itemName, price, description) by item name
+   private volatile Map<String, List<String>> menu = new HashMap<String, List<String>>();
+   private volatile Ranking ranking = Ranking.EMPTY;
+   // checkouts to add on top of the next reload; refresh thread only
+   private final List<Checkout> unseen = new ArrayList<Checkout>();
+   private final Connection[] refreshConnections;
+   private final ScheduledExecutorService refresher;
+
+   /**
+    * Starts loading the index in the background.
+    *
+    * @param esql the connected application
+    * @param journal the order journal checkouts may be recorded in, or null
+    * @param refreshSeconds interval between reloads from the database
+    */
+   public PopularityIndex(Cafe esql, OrderJournal journal, int refreshSeconds) {
+      this.esql = esql;
+      this.databases = esql.repository() instanceof ShardedCafeRepository
+         ? ((ShardedCafeRepository) esql.repository()).shards() : Collections.singletonList(esql);
+      this.journal = journal;
+      this.refreshConnections = new Connection[databases.size()];
+      this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread thread = new Thread(r, "popularity-refresh");
+         thread.setDaemon(true);
+         return thread;
+      });
+      esql.addMenuListener(() -> refresher.execute(this::refreshQuietly));
+      refresher.scheduleWithFixedDelay(this::refreshQuietly, 0, refreshSeconds, TimeUnit.SECONDS);
+   }
+
+   /**
+    * Adds a checkout to the index, once it is stored or journaled.
+    *
+    * @param login the user who ordered
+    * @param items quantity per item name
+    * @param journalSeq its sequence number in the order journal, 0 when stored directly
+    */
+   public void record(String login, Map<String, Integer> items, long journalSeq) {
+      double weight = Math.pow(2, (double) (System.currentTimeMillis() - origin) / HALF_LIFE_MILLIS);
+      Map<String, Double> itemScores = new HashMap<String, Double>();
+      for(Map.Entry<String, Integer> item : items.entrySet())
+         itemScores.merge(item.getKey().trim(), item.getValue() * weight, Double::sum);
+      Checkout checkout = new Checkout(login.trim(), itemScores, System.nanoTime(), journalSeq);
+      // Added on the refresh thread, so a reload never replaces the maps under it
+      refresher.execute(() -> {
+         unseen.add(checkout);
+         add(checkout, scores, users);
+         publish();
+      });
+   }
+
+   // Adds the scores of a checkout to score maps
+   private static void add(Checkout checkout, Map<String, Double> scores, Map<String, Usage> users) {
+      for(Map.Entry<String, Double> item : checkout.scores.entrySet()) {
+         scores.merge(item.getKey(), item.getValue(), Double::sum);
+         users.compute(checkout.login, (l, usage) -> (usage == null ? new Usage(new String[0], new double[0]) : usage)
+                                                     .add(item.getKey(), item.getValue()));
+      }
+   }
+
+   /**
+    * Orders records of a type, e.g. from itemsOfType, most popular first.
+    * Items nobody ordered keep their order after the others.
+    *
+    * @param records records with the item name first
+    * @return a sorted copy
+    */
+   public List<List<String>> rank(List<List<String>> records) {
+      Map<String, Integer> position = ranking.position;
+      List<List<String>> ranked = new ArrayList<List<String>>(records);
+      ranked.sort((a, b) -> Integer.compare(position.getOrDefault(a.get(0).trim(), Integer.MAX_VALUE),
+                                            position.getOrDefault(b.get(0).trim(), Integer.MAX_VALUE)));
+      return ranked;
+   }
+
+   // Records of (itemName, price, description) of the most ordered items
+   public List<List<String>> top() {
+      Ranking current = ranking;
+      return records(current, current.top);
+   }
+
+   // Records of (itemName, price, description) of the items a user orders most
+   public List<List<String>> usuals(String login) {
+      Usage usage = users.get(login.trim());
+      return usage == null ? new ArrayList<List<String>>() : records(ranking, Arrays.asList(usage.items));
+   }
+
+   // Menu records of items, leaving out those no longer on the menu
+   private static List<List<String>> records(Ranking ranking, List<String> items) {
+      List<List<String>> result = new ArrayList<List<String>>();
+      for(String item : items) {
+         List<String> record = ranking.menu.get(item);
+         if(record != null)
+            result.add(record);
+      }
+      return result;
+   }
+
+   /**
+    * Reloads the scores and the menu from the database. Runs on the refresh
+    * thread only.
+    *
+    * @throws java.sql.SQLException when the database could not be read
+    */
+   private void refresh() throws SQLException {
+      // Whatever was stored or replayed before this point is in the snapshots read below
+      long started = System.nanoTime();
+      long replayed = journal == null ? 0 : journal.appliedSeq();
+      String query = String.format(
+         "SELECT o.login, s.itemName, " +
+         "sum(s.quantity * power(2, (extract(epoch FROM o.timeStampRecieved) * 1000 - %d)::float8 / %d)) " +
+         "FROM Orders o JOIN ItemStatus s ON s.orderid = o.orderid AND s.orderTimeStamp = o.timeStampRecieved " +
+         "WHERE o.timeStampRecieved > now() - interval '%d days' GROUP BY o.login, s.itemName",
+         origin, HALF_LIFE_MILLIS, LOOKBACK_DAYS);
+      // Users live on different shards
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for(int database = 0; database < databases.size(); database++)
+         rows.addAll(query(database, query, 3));
+      Map<String, List<String>> newMenu = new HashMap<String, List<String>>();
+      for(List<String> record : query(0, "SELECT itemName, price, description FROM Menu", 3))
+         newMenu.put(record.get(0).trim(), record);
+
+      Map<String, Double> newScores = new ConcurrentHashMap<String, Double>();
+      Map<String, Usage> newUsers = new ConcurrentHashMap<String, Usage>();
+      for(List<String> row : rows) {
+         if(row.get(0) == null)
+            continue;
+         String item = row.get(1).trim();
+         double score = Double.parseDouble(row.get(2));
+         newScores.merge(item, score, Double::sum);
+         newUsers.compute(row.get(0).trim(), (l, usage) -> (usage == null ? new Usage(new String[0], new double[0]) : usage)
+                                                           .add(item, score));
+      }
+      // Checkouts the snapshots may have missed count on top of them
+      unseen.removeIf(checkout -> checkout.recorded < started && checkout.journalSeq <= replayed);
+      for(Checkout checkout : unseen)
+         add(checkout, newScores, newUsers);
+      scores = newScores;
+      users = newUsers;
+      menu = newMenu;
+      publish();
+   }
+
+   // Runs a query on the refresh connection of a database, which is reopened after a failure
+   private List<List<String>> query(int database, String query, int numCol) throws SQLException {
+      if(refreshConnections[database] == null)
+         refreshConnections[database] = databases.get(database).openConnection();
+      try (Statement stmt = refreshConnections[database].createStatement()) {
+         stmt.setQueryTimeout(OperationClass.REPORT.timeoutSeconds);
+         List<List<String>> result = new ArrayList<List<String>>();
+         try (ResultSet rs = stmt.executeQuery(query)) {
+            while(rs.next()) {
+               List<String> record = new ArrayList<String>(numCol);
+               for(int i = 1; i <= numCol; i++)
+                  record.add(rs.getString(i));
+               result.add(record);
+            }
+         }
+         return result;
+      } catch(SQLException e) {
+         closeConnection(database);
+         throw e;
+      }
+   }
+
+   // Sorts the scores into a new Ranking; runs on the refresh thread only
+   private void publish() {
+      List<Map.Entry<String, Double>> entries = new ArrayList<Map.Entry<String, Double>>(scores.entrySet());
+      entries.sort(Collections.reverseOrder(Map.Entry.comparingByValue()));
+      Map<String, Integer> position = new HashMap<String, Integer>(entries.size() * 2);
+      List<String> top = new ArrayList<String>(TOP_ITEMS);
+      for(Map.Entry<String, Double> entry : entries) {
+         position.put(entry.getKey(), position.size());
+         if(top.size() < TOP_ITEMS)
+            top.add(entry.getKey());
+      }
+      ranking = new Ranking(position, top, menu);
+   }
+
+   private void refreshQuietly() {
+      try {
+         refresh();
+      } catch(Exception e) {
+         // the database is unreachable; the current ranking stays in use
+      }
+   }
+
+   private void closeConnection(int database) {
+      try {
+         if(refreshConnections[database] != null)
+            refreshConnections[database].close();
+      } catch(SQLException e) {
+         // ignored
+      }
+      refreshConnections[database] = null;
+   }
+
+   @Override
+   public void close() {
+      refresher.shutdownNow();
+      for(int database = 0; database < refreshConnections.length; database++)
+         closeConnection(database);
+   }
+}
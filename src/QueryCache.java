@@ -0,0 +1,291 @@
+package src;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Read-through cache of query results, tagged by the tables they read.
+ *
+ * A result is cached under its statement text (whitespace normalized) and
+ * parameter values, and is served until it is older than the TTL, pushed out
+ * by the byte budget (least recently used first), or one of its tables is
+ * written. Every table has a generation that each write moves on; a result
+ * remembers the generations it was read at and is stale as soon as one of
+ * them moved. The generations are taken before the query runs, so a write
+ * that races with the read can only make the result stale, never hidden.
+ *
+ * Only plain SELECTs over the tables in TABLES are cached; statements that
+ * read the clock, lock rows or touch other tables always go to the database.
+ * Writes made by other processes are seen once the TTL expires.
+ *
+ * Enabled with -Dcafe.cache.bytes=<budget>; -Dcafe.cache.ttlSeconds sets the
+ * TTL (default 30).
+ */
+public class QueryCache {
+
+   // tables results are tagged with, and the tables a write to them also changes by cascade
+   static final Map<String, List<String>> TABLES = new HashMap<String, List<String>>();
+   static {
+      TABLES.put("users", Arrays.asList("users"));
+      TABLES.put("menu", Arrays.asList("menu", "itemstatus"));
+      TABLES.put("orders", Arrays.asList("orders", "itemstatus"));
+      TABLES.put("itemstatus", Arrays.asList("itemstatus"));
+   }
+
+   private static final Pattern TABLE = Pattern.compile("\\b(?:from|join|into|update)\\s+([a-z_][\\w.]*)");
+   private static final Pattern UNCACHEABLE = Pattern.compile(
+      "\\b(?:now|random|nextval|currval|setval|clock_timestamp|pg_\\w+)\\s*\\(|\\bcurrent_(?:date|time|timestamp)\\b|\\bfor\\s+(?:update|share)\\b");
+   private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+   // bytes of a cached string beyond its characters, and of a cached list
+   private static final int STRING_OVERHEAD = 40;
+   private static final int LIST_OVERHEAD = 40;
+
+   // An operation loading a result from the database
+   public interface Loader {
+      List<List<String>> load() throws SQLException;
+   }
+
+   private static final class Key {
+      final String sql;
+      final List<Object> params;
+
+      Key(String sql, Object[] params) {
+         this.sql = sql;
+         this.params = Arrays.asList(params);
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         return o instanceof Key && ((Key) o).sql.equals(sql) && ((Key) o).params.equals(params);
+      }
+
+      @Override
+      public int hashCode() {
+         return sql.hashCode() * 31 + params.hashCode();
+      }
+   }
+
+   private static final class Entry {
+      final List<List<String>> result;
+      final String[] tables;
+      final long[] generations;
+      final long expiresAt;
+      final long bytes;
+
+      Entry(List<List<String>> result, String[] tables, long[] generations, long expiresAt, long bytes) {
+         this.result = result;
+         this.tables = tables;
+         this.generations = generations;
+         this.expiresAt = expiresAt;
+         this.bytes = bytes;
+      }
+   }
+
+   private final long maxBytes;
+   private final long ttlNanos;
+   private final Map<String, AtomicLong> generations = new HashMap<String, AtomicLong>();
+   // least recently used first, guarded by this
+   private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+   private long bytes;
+
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   private final AtomicLong bypassed = new AtomicLong();
+   private final AtomicLong evictions = new AtomicLong();
+   private final AtomicLong invalidations = new AtomicLong();
+
+   /**
+    * @param maxBytes estimated size of all cached results, 0 to cache nothing
+    * @param ttlSeconds seconds a result is served at most
+    */
+   public QueryCache(long maxBytes, int ttlSeconds) {
+      this.maxBytes = maxBytes;
+      this.ttlNanos = ttlSeconds * 1000000000L;
+      for(String table : TABLES.keySet())
+         generations.put(table, new AtomicLong());
+   }
+
+   // A cache configured by -Dcafe.cache.bytes and -Dcafe.cache.ttlSeconds, caching nothing by default
+   public static QueryCache fromProperties() {
+      return new QueryCache(Long.getLong("cafe.cache.bytes", 0), Integer.getInteger("cafe.cache.ttlSeconds", 30));
+   }
+
+   public boolean enabled() {
+      return maxBytes > 0;
+   }
+
+   /**
+    * Returns the cached result of a query, or loads and caches it.
+    *
+    * @param sql the query
+    * @param params the values bound to its parameters
+    * @param loader runs the query when the result is not cached
+    * @return the records of the result; callers may change them
+    * @throws java.sql.SQLException when the query failed
+    */
+   public List<List<String>> read(String sql, Object[] params, Loader loader) throws SQLException {
+      String[] tables = enabled() ? tablesRead(sql, params) : null;
+      if(tables == null) {
+         bypassed.incrementAndGet();
+         return loader.load();
+      }
+      Key key = new Key(WHITESPACE.matcher(sql).replaceAll(" ").trim(), params);
+      long[] current = generations(tables);
+      long now = System.nanoTime();
+      synchronized(this) {
+         Entry entry = entries.get(key);
+         if(entry != null && now - entry.expiresAt < 0 && Arrays.equals(entry.generations, current)) {
+            hits.incrementAndGet();
+            return copy(entry.result);
+         }
+      }
+      misses.incrementAndGet();
+      List<List<String>> result = loader.load();
+      store(key, new Entry(copy(result), tables, current, now + ttlNanos, bytesOf(key, result)));
+      return result;
+   }
+
+   /**
+    * Marks the results read from the tables a write statement changes as
+    * stale. Statements other than INSERT, UPDATE and DELETE (DDL, COPY,
+    * TRUNCATE) make every result stale; SET, RESET and ANALYZE none.
+    *
+    * @param sql the write statement
+    */
+   public void written(String sql) {
+      if(!enabled())
+         return;
+      String text = sql.trim().toLowerCase(Locale.ROOT);
+      if(text.startsWith("set ") || text.startsWith("reset ") || text.startsWith("analyze"))
+         return;
+      if(!(text.startsWith("insert") || text.startsWith("update") || text.startsWith("delete"))) {
+         invalidateTables(TABLES.keySet().toArray(new String[0]));
+         return;
+      }
+      Matcher matcher = TABLE.matcher(text);
+      if(matcher.find())
+         invalidateTables(table(matcher.group(1)));
+   }
+
+   // Marks the results read from tables, and from the tables they cascade to, as stale
+   public void invalidateTables(String... tables) {
+      if(!enabled())
+         return;
+      Set<String> changed = new LinkedHashSet<String>();
+      for(String table : tables) {
+         List<String> cascade = TABLES.get(table);
+         // Unknown tables may be anything, e.g. a partition
+         changed.addAll(cascade != null ? cascade : TABLES.keySet());
+      }
+      for(String table : changed)
+         generations.get(table).incrementAndGet();
+      invalidations.incrementAndGet();
+   }
+
+   // The tracked tables a cacheable query reads, null when it is not cacheable
+   private static String[] tablesRead(String sql, Object[] params) {
+      for(Object param : params) {
+         if(!(param == null || param instanceof String || param instanceof Number || param instanceof Boolean))
+            return null;
+      }
+      String text = sql.trim().toLowerCase(Locale.ROOT);
+      if(!text.startsWith("select") || UNCACHEABLE.matcher(text).find())
+         return null;
+      Set<String> tables = new LinkedHashSet<String>();
+      Matcher matcher = TABLE.matcher(text);
+      while(matcher.find()) {
+         String table = table(matcher.group(1));
+         if(!TABLES.containsKey(table))
+            return null;
+         tables.add(table);
+      }
+      return tables.isEmpty() ? null : tables.toArray(new String[0]);
+   }
+
+   // Table name without schema; partitions count as their parent table
+   static String table(String name) {
+      name = name.substring(name.lastIndexOf('.') + 1);
+      for(String table : TABLES.keySet()) {
+         if(name.startsWith(table + "_p") || name.equals(table + "_default"))
+            return table;
+      }
+      return name;
+   }
+
+   private long[] generations(String[] tables) {
+      long[] result = new long[tables.length];
+      for(int i = 0; i < tables.length; i++)
+         result[i] = generations.get(tables[i]).get();
+      return result;
+   }
+
+   private synchronized void store(Key key, Entry entry) {
+      if(entry.bytes > maxBytes / 4)
+         return;
+      Entry previous = entries.put(key, entry);
+      if(previous != null)
+         bytes -= previous.bytes;
+      bytes += entry.bytes;
+      // Stale entries go first, then the least recently used
+      long now = System.nanoTime();
+      for(Iterator<Entry> i = entries.values().iterator(); bytes > maxBytes && i.hasNext(); ) {
+         Entry e = i.next();
+         if(now - e.expiresAt >= 0 || !Arrays.equals(e.generations, generations(e.tables))) {
+            bytes -= e.bytes;
+            i.remove();
+         }
+      }
+      for(Iterator<Entry> i = entries.values().iterator(); bytes > maxBytes && i.hasNext(); ) {
+         bytes -= i.next().bytes;
+         i.remove();
+         evictions.incrementAndGet();
+      }
+   }
+
+   // Estimated heap size of a cached result with its key
+   private static long bytesOf(Key key, List<List<String>> result) {
+      long size = STRING_OVERHEAD + 2L * key.sql.length() + LIST_OVERHEAD * 2;
+      for(Object param : key.params)
+         size += STRING_OVERHEAD + (param instanceof String ? 2L * ((String) param).length() : 0);
+      for(List<String> record : result) {
+         size += LIST_OVERHEAD + 8L * record.size();
+         for(String value : record)
+            size += value == null ? 0 : STRING_OVERHEAD + 2L * value.length();
+      }
+      return size;
+   }
+
+   private static List<List<String>> copy(List<List<String>> result) {
+      List<List<String>> copy = new ArrayList<List<String>>(result.size());
+      for(List<String> record : result)
+         copy.add(new ArrayList<String>(record));
+      return copy;
+   }
+
+   // Hit rate, size and counters
+   public synchronized List<String> stats() {
+      if(!enabled())
+         return Collections.singletonList("disabled (-Dcafe.cache.bytes=<budget> enables it)");
+      long hitCount = hits.get();
+      long lookups = hitCount + misses.get();
+      List<String> lines = new ArrayList<String>();
+      lines.add(String.format("%8s %10s %10s %9s %8s %10s %10s %13s", "entries", "bytes", "hits", "misses", "hit rate",
+                              "bypassed", "evictions", "invalidations"));
+      lines.add(String.format("%8d %10d %10d %9d %7.1f%% %10d %10d %13d", entries.size(), bytes, hitCount, misses.get(),
+         lookups == 0 ? 0 : 100.0 * hitCount / lookups, bypassed.get(), evictions.get(), invalidations.get()));
+      return lines;
+   }
+}
@@ -0,0 +1,123 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Records the shapes of the statements the application sends to the database.
+ *
+ * A shape is the statement text with its literals and parameters replaced by
+ * '?'. For every shape the log keeps the number of executions, the total time
+ * spent, and one sample statement with its literals in place, which the index
+ * advisor runs under EXPLAIN.
+ */
+public final class QueryLog {
+
+   // most distinct shapes remembered; later new shapes are ignored
+   static final int MAX_SHAPES = 500;
+
+   private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+   private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w$])-?\\d+(?:\\.\\d+)?(?![\\w])");
+   private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+   // Execution statistics of one statement shape
+   public static final class Shape {
+      public final String shape;
+      public final AtomicLong count = new AtomicLong();
+      public final AtomicLong totalNanos = new AtomicLong();
+      volatile String sample;
+
+      Shape(String shape) {
+         this.shape = shape;
+      }
+
+      public String sample() {
+         return sample;
+      }
+   }
+
+   private static final Map<String, Shape> shapes = new ConcurrentHashMap<String, Shape>();
+
+   private QueryLog() {
+   }
+
+   /**
+    * Records one execution of a plain statement.
+    *
+    * @param sql the statement text, literals included
+    * @param nanos time spent executing it
+    */
+   public static void record(String sql, long nanos) {
+      String shape = shapeOf(sql);
+      Shape entry = shapes.get(shape);
+      if(entry == null) {
+         if(shapes.size() >= MAX_SHAPES)
+            return;
+         entry = shapes.computeIfAbsent(shape, Shape::new);
+      }
+      entry.count.incrementAndGet();
+      entry.totalNanos.addAndGet(nanos);
+      entry.sample = sql;
+   }
+
+   /**
+    * Records one execution of a prepared statement. The sample keeps the
+    * parameter values inlined as literals.
+    *
+    * @param sql the statement text with '?' placeholders
+    * @param params the bound parameter values
+    * @param nanos time spent executing it
+    */
+   public static void record(String sql, Object[] params, long nanos) {
+      if(params.length == 0) {
+         record(sql, nanos);
+         return;
+      }
+      StringBuilder inlined = new StringBuilder();
+      int param = 0;
+      boolean quoted = false;
+      for(int i = 0; i < sql.length(); i++) {
+         char c = sql.charAt(i);
+         if(c == '\'')
+            quoted = !quoted;
+         if(c == '?' && !quoted && param < params.length)
+            inlined.append(literal(params[param++]));
+         else
+            inlined.append(c);
+      }
+      record(inlined.toString(), nanos);
+   }
+
+   // Renders a parameter value as an SQL literal
+   static String literal(Object value) {
+      if(value == null)
+         return "NULL";
+      if(value instanceof Number || value instanceof Boolean)
+         return value.toString();
+      // Strings, timestamps, uuids and arrays (rendered as {a,b}) become quoted literals
+      return "'" + value.toString().replace("'", "''") + "'";
+   }
+
+   // Replaces the literals of a statement by '?'
+   public static String shapeOf(String sql) {
+      String shape = STRING_LITERAL.matcher(sql).replaceAll("?");
+      shape = NUMBER_LITERAL.matcher(shape).replaceAll("?");
+      return WHITESPACE.matcher(shape).replaceAll(" ").trim();
+   }
+
+   // Snapshot of the recorded shapes, most time consuming first
+   public static List<Shape> shapes() {
+      List<Shape> result = new ArrayList<Shape>(shapes.values());
+      result.sort((a, b) -> Long.compare(b.totalNanos.get(), a.totalNanos.get()));
+      return result;
+   }
+
+   // Forgets every recorded shape
+   public static void clear() {
+      shapes.clear();
+   }
+}
@@ -0,0 +1,213 @@
+package src;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders query results as aligned columns through one buffered writer.
+ *
+ * Column widths are computed from the header and the first SAMPLE_ROWS rows;
+ * later, wider cells simply push the rest of their row to the right. Trailing
+ * blanks (the padding of char(n) columns) are cut by writing only the leading
+ * part of the string, without copying it. When a page size is given, output
+ * stops after every page until Enter is pressed, or for good on 'q'.
+ */
+public class ResultPrinter {
+
+   // rows used to compute the column widths
+   static final int SAMPLE_ROWS = 100;
+   // widest column computed from the sample
+   static final int MAX_WIDTH = 48;
+   // characters buffered before they are written out
+   static final int BUFFER_SIZE = 1 << 16;
+   // blank columns between two cells
+   private static final String GAP = "  ";
+   private static final String SPACES = "                                                                ";
+
+   private final Writer out;
+   private final BufferedReader in;
+   private final int pageRows;
+   private int pageLines;
+   private boolean stopped;
+
+   /**
+    * @param out where to render, e.g. System.out
+    * @param in where to read the paging key from, null to never page
+    * @param pageRows rows per page, 0 to never page
+    */
+   public ResultPrinter(OutputStream out, BufferedReader in, int pageRows) {
+      this.out = new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE);
+      this.in = in;
+      this.pageRows = in == null ? 0 : pageRows;
+   }
+
+   /**
+    * A printer for the terminal. Pages hold -Dcafe.pageRows rows (default
+    * 40); output is not paged when it is not going to a terminal.
+    */
+   public static ResultPrinter console(BufferedReader in) {
+      return new ResultPrinter(System.out, System.console() != null ? in : null, Integer.getInteger("cafe.pageRows", 40));
+   }
+
+   /**
+    * Renders a result set with its column names as header.
+    *
+    * @return the number of rows in the result, also those not shown after 'q'
+    * @throws java.sql.SQLException when the rows could not be read
+    */
+   public int print(ResultSet rs) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      String[] header = new String[numCol];
+      for(int i = 1; i <= numCol; i++)
+         header[i - 1] = rsmd.getColumnName(i);
+
+      // Sample the first rows for the column widths
+      List<String[]> sample = new ArrayList<String[]>();
+      boolean more;
+      while((more = rs.next()) && sample.size() < SAMPLE_ROWS)
+         sample.add(row(rs, numCol));
+      int[] widths = widths(header, sample, numCol);
+
+      int rowCount = sample.size();
+      if(rowCount > 0) {
+         line(null, 0, header, widths);
+         for(int i = 0; i < sample.size() && !stopped; i++)
+            line(null, 0, sample.get(i), widths);
+      }
+      // rs is positioned on the row after the sample
+      while(more) {
+         if(!stopped)
+            line(null, 0, row(rs, numCol), widths);
+         rowCount++;
+         more = rs.next();
+      }
+      flush();
+      return rowCount;
+   }
+
+   /**
+    * Renders records numbered from 0, for the user to pick one by number.
+    *
+    * @param rows the records
+    * @param colCount number of leading columns of each record to show
+    * @param header column names, none for no header line
+    */
+   public void printNumbered(List<List<String>> rows, int colCount, String... header) {
+      List<String[]> sample = new ArrayList<String[]>();
+      for(List<String> row : rows.subList(0, Math.min(SAMPLE_ROWS, rows.size())))
+         sample.add(row.subList(0, colCount).toArray(new String[0]));
+      int[] widths = widths(header.length == 0 ? null : header, sample, colCount);
+      String number = Integer.toString(rows.size());
+      if(header.length > 0)
+         line("#", number.length(), header, widths);
+      for(int i = 0; i < rows.size() && !stopped; i++) {
+         String[] cells = i < sample.size() ? sample.get(i) : rows.get(i).subList(0, colCount).toArray(new String[0]);
+         line(i + ".", number.length(), cells, widths);
+      }
+      flush();
+   }
+
+   /**
+    * Writes a line of text through the buffer, e.g. the '< Exit' entry of a
+    * numbered list.
+    */
+   public void println(String text) {
+      try {
+         out.write(text);
+         out.write('\n');
+      } catch(IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   public void flush() {
+      try {
+         out.flush();
+      } catch(IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   private static String[] row(ResultSet rs, int numCol) throws SQLException {
+      String[] row = new String[numCol];
+      for(int i = 1; i <= numCol; i++)
+         row[i - 1] = rs.getString(i);
+      return row;
+   }
+
+   // Widths of the header and sampled cells, capped at MAX_WIDTH
+   private static int[] widths(String[] header, List<String[]> sample, int numCol) {
+      int[] widths = new int[numCol];
+      for(int j = 0; j < numCol; j++) {
+         int width = header == null || j >= header.length ? 0 : trimmedLength(header[j]);
+         for(String[] row : sample)
+            width = Math.max(width, trimmedLength(row[j]));
+         widths[j] = Math.min(width, MAX_WIDTH);
+      }
+      return widths;
+   }
+
+   // Length of a cell without its trailing blanks
+   static int trimmedLength(String cell) {
+      if(cell == null)
+         return 0;
+      int length = cell.length();
+      while(length > 0 && cell.charAt(length - 1) == ' ')
+         length--;
+      return length;
+   }
+
+   // Writes one row, optionally behind a right aligned label, then pages if needed
+   private void line(String label, int labelWidth, String[] cells, int[] widths) {
+      try {
+         if(label != null) {
+            pad(labelWidth + 1 - label.length());
+            out.write(label);
+            out.write(' ');
+         }
+         for(int j = 0; j < cells.length; j++) {
+            int length = trimmedLength(cells[j]);
+            if(length > 0)
+               out.write(cells[j], 0, length);
+            if(j < cells.length - 1) {
+               pad(widths[j] - length);
+               out.write(GAP);
+            }
+         }
+         out.write('\n');
+         if(pageRows > 0 && ++pageLines >= pageRows)
+            page();
+      } catch(IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   private void pad(int count) throws IOException {
+      while(count > 0) {
+         int chunk = Math.min(count, SPACES.length());
+         out.write(SPACES, 0, chunk);
+         count -= chunk;
+      }
+   }
+
+   // Waits for the user after a full page
+   private void page() throws IOException {
+      pageLines = 0;
+      out.write("-- more: Enter to continue, q to stop --");
+      out.flush();
+      String answer = in.readLine();
+      if(answer == null || answer.trim().equalsIgnoreCase("q"))
+         stopped = true;
+   }
+}
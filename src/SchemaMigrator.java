@@ -0,0 +1,154 @@
+package src;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Brings the database schema up to date on startup.
+ *
+ * sql/create_tables.sql creates version 0 of the schema. Every later change is
+ * a numbered migration below; the versions applied so far are recorded in the
+ * schema_version table. Each migration runs in its own transaction, under an
+ * advisory lock so that several registers starting at once migrate only once.
+ * New migrations are appended to the end of the list and never edited once
+ * released.
+ */
+public class SchemaMigrator {
+
+   // arbitrary key of the advisory lock serializing migrations
+   private static final long LOCK_KEY = 0x43616665L;
+
+   // A numbered schema change
+   static final class Migration {
+      final int version;
+      final String description;
+      final String[] statements;
+
+      Migration(int version, String description, String... statements) {
+         this.version = version;
+         this.description = description;
+         this.statements = statements;
+      }
+   }
+
+   static final List<Migration> MIGRATIONS = Arrays.asList(
+      new Migration(1, "text columns, numeric money and enum types",
+         // The Menu foreign key is recreated once both sides have their new type
+         "ALTER TABLE ItemStatus DROP CONSTRAINT IF EXISTS itemstatus_itemname_fkey",
+         "CREATE TYPE user_type AS ENUM ('Customer', 'Employee', 'Manager')",
+         "CREATE TYPE item_status AS ENUM ('Hasn''t started', 'Started', 'Finished')",
+         "ALTER TABLE Users " +
+            "ALTER COLUMN login TYPE varchar(50) USING rtrim(login), " +
+            "ALTER COLUMN phoneNum TYPE varchar(16) USING rtrim(phoneNum), " +
+            "ALTER COLUMN password TYPE text USING rtrim(password), " +
+            "ALTER COLUMN favItems TYPE text USING rtrim(favItems), " +
+            "ALTER COLUMN type TYPE user_type USING rtrim(type)::user_type",
+         "ALTER TABLE Menu " +
+            "ALTER COLUMN itemName TYPE varchar(50) USING rtrim(itemName), " +
+            "ALTER COLUMN type TYPE varchar(20) USING rtrim(type), " +
+            "ALTER COLUMN price TYPE numeric(10,2) USING round(price::numeric, 2), " +
+            "ALTER COLUMN description TYPE text USING rtrim(description), " +
+            "ALTER COLUMN imageURL TYPE text USING rtrim(imageURL)",
+         "ALTER TABLE Orders " +
+            "ALTER COLUMN login TYPE varchar(50) USING rtrim(login), " +
+            "ALTER COLUMN total TYPE numeric(10,2) USING round(total::numeric, 2)",
+         "ALTER TABLE ItemStatus " +
+            "ALTER COLUMN itemName TYPE varchar(50) USING rtrim(itemName), " +
+            "ALTER COLUMN status TYPE item_status USING rtrim(status)::item_status, " +
+            "ALTER COLUMN comments TYPE text USING rtrim(comments)",
+         "ALTER TABLE ItemStatus ADD CONSTRAINT itemstatus_itemname_fkey " +
+            "FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON DELETE CASCADE"),
+      new Migration(2, "trigram indexes for menu search",
+         "CREATE EXTENSION IF NOT EXISTS pg_trgm",
+         "CREATE INDEX IF NOT EXISTS menu_itemname_trgm ON Menu USING gin (itemName gin_trgm_ops)",
+         "CREATE INDEX IF NOT EXISTS menu_type_trgm ON Menu USING gin (type gin_trgm_ops)",
+         "CREATE INDEX IF NOT EXISTS menu_description_trgm ON Menu USING gin (description gin_trgm_ops)"),
+      new Migration(3, "quantity of each ordered item",
+         "ALTER TABLE ItemStatus ADD COLUMN IF NOT EXISTS quantity integer NOT NULL DEFAULT 1"),
+      new Migration(4, "idempotency keys of replayed journal commands",
+         "CREATE TABLE IF NOT EXISTS order_journal_applied(" +
+            "key uuid PRIMARY KEY, orderid integer, appliedAt timestamp NOT NULL DEFAULT now())"),
+      new Migration(5, "indexes recommended by the index advisor",
+         // Order history is answered from the index alone
+         "CREATE INDEX IF NOT EXISTS orders_login_idx ON Orders (login) INCLUDE (paid, timeStampRecieved, total)",
+         // Items of a type come out already sorted by name
+         "CREATE INDEX IF NOT EXISTS menu_type_idx ON Menu (type, itemName) INCLUDE (price)"),
+      new Migration(6, "menu version for menu snapshots",
+         "CREATE TABLE IF NOT EXISTS menu_version(" +
+            "id boolean PRIMARY KEY DEFAULT true CHECK (id), version bigint NOT NULL)",
+         "INSERT INTO menu_version (version) VALUES (1) ON CONFLICT DO NOTHING",
+         "CREATE OR REPLACE FUNCTION bump_menu_version() RETURNS trigger AS $$ " +
+            "BEGIN UPDATE menu_version SET version = version + 1; RETURN NULL; END $$ LANGUAGE plpgsql",
+         // Once per statement, so a bulk import bumps the version once
+         "CREATE TRIGGER menu_version_bump AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Menu " +
+            "FOR EACH STATEMENT EXECUTE FUNCTION bump_menu_version()"),
+      new Migration(7, "row version of user profiles",
+         "ALTER TABLE Users ADD COLUMN IF NOT EXISTS version integer NOT NULL DEFAULT 0"),
+      new Migration(8, "partial index of unpaid orders for the order sweeper",
+         "CREATE INDEX IF NOT EXISTS orders_unpaid_idx ON Orders (timeStampRecieved) WHERE paid = false"),
+      new Migration(9, "shard layout the data was spread with",
+         "CREATE TABLE IF NOT EXISTS shard_layout(" +
+            "id boolean PRIMARY KEY DEFAULT true CHECK (id), shards integer NOT NULL, shard integer NOT NULL)"),
+      new Migration(10, "drop the manager index duplicating the Users primary key",
+         // Created by earlier releases of migration 5; lookups by login already use users_pkey
+         "DROP INDEX IF EXISTS users_managers_idx"));
+
+   private final Cafe esql;
+
+   public SchemaMigrator(Cafe esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Applies every migration newer than the current schema version.
+    *
+    * @return the number of migrations applied
+    * @throws java.sql.SQLException when a migration failed; it is rolled back
+    */
+   public int migrate() throws SQLException {
+      // Long running like a report, so the migration is not cut off by the read and write timeouts
+      return AdmissionController.run(AdmissionController.OperationClass.REPORT, this::applyMigrations);
+   }
+
+   private int applyMigrations() throws SQLException {
+      Connection connection = esql.getConnection();
+      boolean autoCommit = connection.getAutoCommit();
+      int applied = 0;
+      try {
+         connection.setAutoCommit(false);
+         esql.executeUpdate("CREATE TABLE IF NOT EXISTS schema_version(" +
+            "version integer PRIMARY KEY, description text NOT NULL, appliedAt timestamp NOT NULL DEFAULT now())");
+         connection.commit();
+         for(Migration migration : MIGRATIONS) {
+            esql.executeQuery(String.format("SELECT pg_advisory_xact_lock(%d)", LOCK_KEY));
+            if(migration.version <= currentVersion()) {
+               connection.commit();
+               continue;
+            }
+            System.out.println("Migrating schema to version " + migration.version + " (" + migration.description + ")");
+            for(String statement : migration.statements)
+               esql.executeUpdate(statement);
+            esql.executeUpdate(String.format("INSERT INTO schema_version (version, description) VALUES (%d, '%s')",
+                                             migration.version, migration.description.replace("'", "''")));
+            connection.commit();
+            applied++;
+         }
+      } catch(SQLException e) {
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setAutoCommit(autoCommit);
+      }
+      return applied;
+   }
+
+   /**
+    * @return the version of the newest applied migration, 0 for a fresh schema
+    */
+   public int currentVersion() throws SQLException {
+      List<List<String>> result = esql.executeQueryAndReturnResult("SELECT coalesce(max(version), 0) FROM schema_version");
+      return Integer.parseInt(result.get(0).get(0));
+   }
+}
@@ -0,0 +1,484 @@
+package src;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import src.AdmissionController.OperationClass;
+
+/**
+ * CafeRepository spreading users and their orders over N databases (shards).
+ *
+ * A user, their favorites and their orders live on shard hash(login) mod N.
+ * Each shard's order sequence hands out orderids congruent to the shard index
+ * mod N, so an orderid alone names its shard. The Menu is replicated: shard 0
+ * is the primary, menu writes go to every shard, and the replicas are synced
+ * from the primary whenever the menu changes. Manager reports run on all
+ * shards in parallel and their results are merged (scatter-gather).
+ *
+ * The number of shards is fixed once users or orders exist: every shard
+ * records the layout (number of shards, its index) in shard_layout, and
+ * connecting with another layout is refused while there is data. A database
+ * without a recorded layout, e.g. one loaded before sharding was turned on,
+ * is only accepted when it holds nothing but its own users and orders under
+ * the new layout. Moving data between shards is not supported.
+ */
+public class ShardedCafeRepository implements CafeRepository, AutoCloseable {
+
+   // runs the per-shard parts of scatter-gather reports
+   private static final ExecutorService SCATTER = Executors.newCachedThreadPool(r -> {
+      Thread thread = new Thread(r, "shard-scatter");
+      thread.setDaemon(true);
+      return thread;
+   });
+
+   private final List<Cafe> shards;
+   private final List<CafeRepository> repositories = new ArrayList<CafeRepository>();
+   // latency proxies in front of shards 1 to N-1, when the network is simulated
+   private final List<LatencyProxy> proxies = new ArrayList<LatencyProxy>();
+
+   /**
+    * @param shards one connected Cafe per shard, the primary first
+    */
+   public ShardedCafeRepository(List<Cafe> shards) {
+      this.shards = shards;
+      for(Cafe shard : shards)
+         repositories.add(new JdbcCafeRepository(shard));
+   }
+
+   /**
+    * Connects to the other shards, migrates them, aligns their order
+    * sequences and replicates the Menu of the primary.
+    *
+    * @param primary the connected primary, shard 0
+    * @param spec comma separated host:port/dbname of shards 1 to N-1
+    * @param conditions network conditions to put a latency proxy in front of every shard, or null
+    * @throws java.sql.SQLException when a shard could not be set up
+    */
+   public static ShardedCafeRepository connect(Cafe primary, String spec, String user, String passwd,
+                                               LatencyProxy.Conditions conditions) throws SQLException {
+      List<Cafe> shards = new ArrayList<Cafe>();
+      shards.add(primary);
+      List<LatencyProxy> proxies = new ArrayList<LatencyProxy>();
+      ShardedCafeRepository sharded;
+      try {
+         for(String entry : spec.split(",")) {
+            if(entry.trim().isEmpty())
+               continue;
+            String[] parts = entry.trim().split("[:/]");
+            if(parts.length != 3)
+               throw new SQLException("Shards are given as host:port/dbname, got " + entry);
+            String host = parts[0];
+            String port = parts[1];
+            if(conditions != null) {
+               LatencyProxy proxy = newProxy(host, port, conditions);
+               proxies.add(proxy);
+               host = "localhost";
+               port = String.valueOf(proxy.port());
+            }
+            Cafe shard = new Cafe(host, parts[2], port, user, passwd, false);
+            shards.add(shard);
+            new SchemaMigrator(shard).migrate();
+         }
+         checkLayout(shards);
+         sharded = new ShardedCafeRepository(shards);
+         sharded.proxies.addAll(proxies);
+         for(int i = 0; i < shards.size(); i++)
+            sharded.alignOrderSequence(i);
+         sharded.replicateMenu();
+      } catch(SQLException e) {
+         // Close the shards connected so far
+         for(Cafe shard : shards.subList(1, shards.size()))
+            shard.cleanup();
+         for(LatencyProxy proxy : proxies)
+            proxy.close();
+         throw e;
+      }
+      primary.addMenuListener(sharded::replicateMenuQuietly);
+      return sharded;
+   }
+
+   /**
+    * Checks that the databases were last used as these shards, in this order,
+    * and records the layout when they were not used as shards before. The
+    * application checks its single database as a layout of one shard.
+    *
+    * @param shards the connected databases, the primary first
+    * @throws java.sql.SQLException when the data was spread with another layout
+    */
+   public static void checkLayout(List<Cafe> shards) throws SQLException {
+      // Scans every shard's users and orders at worst, so it runs with the time of a report
+      AdmissionController.run(OperationClass.REPORT, () -> {
+         int n = shards.size();
+         boolean recorded = true;
+         boolean empty = true;
+         for(int i = 0; i < n; i++) {
+            List<List<String>> layout = shards.get(i).executeQueryAndReturnResult("SELECT shards, shard FROM shard_layout");
+            boolean same = !layout.isEmpty() && Integer.parseInt(layout.get(0).get(0)) == n
+                           && Integer.parseInt(layout.get(0).get(1)) == i;
+            boolean shardEmpty = isEmpty(shards.get(i));
+            // Rerouting would strand every user and order placed with the old layout
+            if(!layout.isEmpty() && !same && !shardEmpty)
+               throw new SQLException(String.format(
+                  "Database %d holds data spread over %s shards as shard %s, not %d shards as shard %d; " +
+                  "start with the same shards in the same order", i, layout.get(0).get(0), layout.get(0).get(1), n, i));
+            recorded &= same;
+            empty &= shardEmpty;
+         }
+         if(recorded)
+            return null;
+         for(int i = 0; i < n && !empty; i++) {
+            String misplaced = misplaced(shards.get(i), i, n);
+            if(misplaced != null)
+               throw new SQLException(String.format(
+                  "Database %d holds %s that belong to another of %d shards; sharding a loaded database " +
+                  "needs its users and orders moved to their shards first", i, misplaced, n));
+         }
+         for(int i = 0; i < n; i++) {
+            shards.get(i).executeUpdate("DELETE FROM shard_layout");
+            shards.get(i).executeUpdate(String.format("INSERT INTO shard_layout (shards, shard) VALUES (%d, %d)", n, i));
+         }
+         return null;
+      });
+   }
+
+   private static boolean isEmpty(Cafe shard) throws SQLException {
+      return shard.executeQuery("SELECT 1 FROM Users LIMIT 1") == 0 && shard.executeQuery("SELECT 1 FROM Orders LIMIT 1") == 0;
+   }
+
+   // What a database holds that routing with n shards would look for elsewhere, null when nothing
+   private static String misplaced(Cafe shard, int index, int n) throws SQLException {
+      if(n == 1)
+         return null;
+      int orders = Integer.parseInt(shard.executeQueryAndReturnResult(String.format(
+         "SELECT count(*) FROM Orders WHERE orderid %% %d <> %d", n, index)).get(0).get(0));
+      if(orders > 0)
+         return orders + " order(s)";
+      int users = 0;
+      for(List<String> record : shard.executeQueryAndReturnResult("SELECT login FROM Users")) {
+         if(shardOf(record.get(0), n) != index)
+            users++;
+      }
+      return users > 0 ? users + " user(s)" : null;
+   }
+
+   private static LatencyProxy newProxy(String host, String port, LatencyProxy.Conditions conditions) throws SQLException {
+      try {
+         return new LatencyProxy(host, Integer.parseInt(port), 0, conditions);
+      } catch(IOException e) {
+         throw new SQLException("Unable to start the latency proxy of shard " + host + ":" + port + ": " + e.getMessage(), e);
+      }
+   }
+
+   // The latency proxies in front of shards 1 to N-1, empty unless the network is simulated
+   public List<LatencyProxy> proxies() {
+      return Collections.unmodifiableList(proxies);
+   }
+
+   public int shardCount() {
+      return shards.size();
+   }
+
+   // The connected shards, the primary first
+   public List<Cafe> shards() {
+      return Collections.unmodifiableList(shards);
+   }
+
+   // Shard of a user and their orders
+   public int shardOf(String login) {
+      return shardOf(login, shards.size());
+   }
+
+   private static int shardOf(String login, int n) {
+      return (login.hashCode() & 0x7fffffff) % n;
+   }
+
+   // Shard of an order
+   public int shardOfOrder(int orderid) {
+      return Math.floorMod(orderid, shards.size());
+   }
+
+   private CafeRepository user(String login) {
+      return repositories.get(shardOf(login));
+   }
+
+   private CafeRepository order(int orderid) {
+      return repositories.get(shardOfOrder(orderid));
+   }
+
+   private CafeRepository primary() {
+      return repositories.get(0);
+   }
+
+   // Makes the order sequence of a shard hand out orderids equal to the shard index mod N
+   void alignOrderSequence(int shard) throws SQLException {
+      Cafe esql = shards.get(shard);
+      int n = shards.size();
+      String sequence = esql.executeQueryAndReturnResult(
+         "SELECT pg_get_serial_sequence('orders', 'orderid')").get(0).get(0);
+      List<String> state = esql.executeQueryAndReturnResult(String.format(
+         "SELECT s.seqincrement, q.last_value, (SELECT coalesce(max(orderid), 0) FROM Orders) " +
+         "FROM pg_sequence s, %s q WHERE s.seqrelid = '%s'::regclass", sequence, sequence)).get(0);
+      long increment = Long.parseLong(state.get(0));
+      long last = Long.parseLong(state.get(1));
+      long max = Long.parseLong(state.get(2));
+      if(increment == n && Math.floorMod(last, n) == shard && last >= max)
+         return;
+      long next = (Math.max(last, max) / n + 1) * n + shard;
+      esql.executeUpdate(String.format("ALTER SEQUENCE %s INCREMENT BY %d", sequence, n));
+      esql.executeQuery(String.format("SELECT setval('%s', %d, false)", sequence, next));
+   }
+
+   /**
+    * Brings the Menu of every replica in line with the primary.
+    *
+    * @throws java.sql.SQLException when a replica could not be updated
+    */
+   public void replicateMenu() throws SQLException {
+      if(shards.size() == 1)
+         return;
+      List<MenuImport.Item> items = new ArrayList<MenuImport.Item>();
+      for(List<String> record : shards.get(0).executeQueryAndReturnResult(
+            "SELECT itemName, type, price, description, imageURL FROM Menu")) {
+         MenuImport.Item item = new MenuImport.Item();
+         item.itemName = record.get(0);
+         item.type = record.get(1);
+         item.price = new BigDecimal(record.get(2));
+         item.description = record.get(3);
+         item.imageURL = record.get(4);
+         items.add(item);
+      }
+      for(Cafe replica : shards.subList(1, shards.size())) {
+         MenuImport menuImport = new MenuImport(replica);
+         MenuImport.Plan plan = menuImport.diff(items, true);
+         if(!plan.isEmpty())
+            menuImport.apply(plan);
+      }
+   }
+
+   private void replicateMenuQuietly() {
+      try {
+         replicateMenu();
+      } catch(SQLException e) {
+         System.err.println("Unable to replicate the menu: " + e.getMessage());
+      }
+   }
+
+   // USERS
+
+   @Override
+   public void createUser(String login, String password, String phoneNum) throws SQLException {
+      user(login).createUser(login, password, phoneNum);
+   }
+
+   @Override
+   public boolean checkCredentials(String login, String password) throws SQLException {
+      return user(login).checkCredentials(login, password);
+   }
+
+   @Override
+   public String credential(String login) throws SQLException {
+      return user(login).credential(login);
+   }
+
+   @Override
+   public boolean replaceCredential(String login, String expected, String replacement) throws SQLException {
+      return user(login).replaceCredential(login, expected, replacement);
+   }
+
+   @Override
+   public boolean isManager(String login) throws SQLException {
+      return user(login).isManager(login);
+   }
+
+   @Override
+   public void setUserType(String login, String type) throws SQLException {
+      user(login).setUserType(login, type);
+   }
+
+   @Override
+   public List<String> profile(String login) throws SQLException {
+      return user(login).profile(login);
+   }
+
+   @Override
+   public List<String> updateProfileField(String login, String field, String value, int version) throws SQLException {
+      // A new login would belong on another shard, with the user's orders
+      if("login".equals(field) && shardOf(value) != shardOf(login))
+         throw new SQLException("The new login belongs to another shard; logins can only be changed within a shard");
+      return user(login).updateProfileField(login, field, value, version);
+   }
+
+   // FAVORITES
+
+   @Override
+   public String getFavorites(String login) throws SQLException {
+      return user(login).getFavorites(login);
+   }
+
+   @Override
+   public void setFavorites(String login, String favItems) throws SQLException {
+      user(login).setFavorites(login, favItems);
+   }
+
+   // MENU
+
+   @Override
+   public List<List<String>> menuTypes() throws SQLException {
+      return primary().menuTypes();
+   }
+
+   @Override
+   public List<List<String>> itemsOfType(String type) throws SQLException {
+      return primary().itemsOfType(type);
+   }
+
+   @Override
+   public BigDecimal price(String itemName) throws SQLException {
+      return primary().price(itemName);
+   }
+
+   @Override
+   public void putMenuItem(String itemName, String type, BigDecimal price, String description, String imageURL) throws SQLException {
+      for(CafeRepository repository : repositories)
+         repository.putMenuItem(itemName, type, price, description, imageURL);
+   }
+
+   @Override
+   public boolean deleteMenuItem(String itemName) throws SQLException {
+      boolean deleted = false;
+      for(CafeRepository repository : repositories)
+         deleted |= repository.deleteMenuItem(itemName);
+      return deleted;
+   }
+
+   // ORDERS
+
+   @Override
+   public int checkout(String login, Map<String, Integer> items) throws SQLException {
+      return user(login).checkout(login, items);
+   }
+
+   @Override
+   public List<List<String>> ordersOf(String login) throws SQLException {
+      return user(login).ordersOf(login);
+   }
+
+   @Override
+   public Boolean isPaid(int orderid) throws SQLException {
+      return order(orderid).isPaid(orderid);
+   }
+
+   @Override
+   public boolean pay(int orderid) throws SQLException {
+      return order(orderid).pay(orderid);
+   }
+
+   @Override
+   public boolean cancel(int orderid) throws SQLException {
+      return order(orderid).cancel(orderid);
+   }
+
+   // ITEM STATUS
+
+   @Override
+   public List<List<String>> itemsOfOrder(int orderid) throws SQLException {
+      return order(orderid).itemsOfOrder(orderid);
+   }
+
+   @Override
+   public boolean updateItemStatus(int orderid, String itemName, String status, String comments) throws SQLException {
+      return order(orderid).updateItemStatus(orderid, itemName, status, comments);
+   }
+
+   @Override
+   public void warmUp() throws SQLException {
+      for(CafeRepository repository : repositories)
+         repository.warmUp();
+   }
+
+   // REPORTS
+
+   /**
+    * Runs a query on every shard in parallel.
+    *
+    * @return the records of every shard, each prefixed with its shard index
+    * @throws java.sql.SQLException when a shard failed
+    */
+   public List<List<String>> scatterGather(String query) throws SQLException {
+      List<Future<List<List<String>>>> parts = new ArrayList<Future<List<List<String>>>>();
+      for(Cafe shard : shards)
+         parts.add(SCATTER.submit(() -> AdmissionController.within(OperationClass.REPORT,
+                                                                    () -> shard.executeQueryAndReturnResult(query))));
+      List<List<String>> result = new ArrayList<List<String>>();
+      for(int i = 0; i < parts.size(); i++) {
+         try {
+            for(List<String> record : parts.get(i).get()) {
+               List<String> tagged = new ArrayList<String>(record.size() + 1);
+               tagged.add(Integer.toString(i));
+               tagged.addAll(record);
+               result.add(tagged);
+            }
+         } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for shard " + i);
+         } catch(ExecutionException e) {
+            throw new SQLException("Shard " + i + ": " + e.getCause().getMessage(), e.getCause());
+         }
+      }
+      return result;
+   }
+
+   // Records of (shard, users, orders, unpaid orders)
+   public List<List<String>> shardSizes() throws SQLException {
+      return scatterGather("SELECT (SELECT count(*) FROM Users), count(*), count(*) FILTER (WHERE NOT paid) FROM Orders");
+   }
+
+   // Records of (month, orders, revenue) of paid orders over all shards, by month
+   public List<List<String>> revenueByMonth() throws SQLException {
+      Map<String, BigDecimal[]> months = new TreeMap<String, BigDecimal[]>();
+      for(List<String> record : scatterGather(
+            "SELECT to_char(timeStampRecieved, 'YYYY-MM'), count(*), coalesce(sum(total), 0) FROM Orders " +
+            "WHERE paid GROUP BY 1")) {
+         BigDecimal[] sums = months.computeIfAbsent(record.get(1), m -> new BigDecimal[] {BigDecimal.ZERO, BigDecimal.ZERO});
+         sums[0] = sums[0].add(new BigDecimal(record.get(2)));
+         sums[1] = sums[1].add(new BigDecimal(record.get(3)));
+      }
+      List<List<String>> result = new ArrayList<List<String>>();
+      for(Map.Entry<String, BigDecimal[]> month : months.entrySet())
+         result.add(Arrays.asList(month.getKey(), month.getValue()[0].toPlainString(), month.getValue()[1].toPlainString()));
+      return result;
+   }
+
+   // Records of (itemName, quantity) of the most ordered items over all shards
+   public List<List<String>> topItems(int limit) throws SQLException {
+      // Every shard returns all of its items, so the merged ranking is exact
+      Map<String, Long> quantities = new TreeMap<String, Long>();
+      for(List<String> record : scatterGather("SELECT itemName, sum(quantity) FROM ItemStatus GROUP BY itemName"))
+         quantities.merge(record.get(1), Long.parseLong(record.get(2)), Long::sum);
+      List<Map.Entry<String, Long>> ranked = new ArrayList<Map.Entry<String, Long>>(quantities.entrySet());
+      ranked.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+      List<List<String>> result = new ArrayList<List<String>>();
+      for(Map.Entry<String, Long> item : ranked.subList(0, Math.min(limit, ranked.size())))
+         result.add(Arrays.asList(item.getKey(), item.getValue().toString()));
+      return result;
+   }
+
+   // Closes the connections and proxies of shards 1 to N-1; the primary belongs to the application
+   @Override
+   public void close() {
+      for(Cafe shard : shards.subList(1, shards.size()))
+         shard.cleanup();
+      for(LatencyProxy proxy : proxies)
+         proxy.close();
+   }
+}